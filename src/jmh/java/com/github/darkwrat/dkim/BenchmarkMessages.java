@@ -0,0 +1,106 @@
+package com.github.darkwrat.dkim;
+
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Test data shared by the benchmarks: generated keys, message bodies of a given size and
+ * messages with a given number of extra headers.
+ */
+
+final class BenchmarkMessages {
+
+    static final Session SESSION = Session.getInstance(new Properties());
+
+    private BenchmarkMessages() {
+    }
+
+    /*
+     * The key size only applies to RSA, Ed25519 keys have a fixed size.
+     */
+    static PrivateKey generateKey(SigningAlgorithm algorithm, int keySize) throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm.getKeyAlgorithm());
+        if ("RSA".equals(algorithm.getKeyAlgorithm())) {
+            generator.initialize(keySize);
+        }
+        return generator.generateKeyPair().getPrivate();
+    }
+
+    static SigningAlgorithm signingAlgorithm(String rfc4871Notation) {
+        for (SigningAlgorithm algorithm : new SigningAlgorithm[]{SigningAlgorithm.SHA256withRSA, SigningAlgorithm.SHA1withRSA, SigningAlgorithm.ED25519SHA256}) {
+            if (algorithm.getRfc4871Notation().equals(rfc4871Notation)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unknown signing algorithm " + rfc4871Notation);
+    }
+
+    static DkimSigner newSigner(PrivateKey key, SigningAlgorithm algorithm, Canonicalization canonicalization) throws DkimSignerException {
+        return new DkimSigner(DkimSignerConfig.builder("example.com", "bench", key)
+                .signingAlgorithm(algorithm)
+                .headerCanonicalization(canonicalization)
+                .bodyCanonicalization(canonicalization)
+                .build());
+    }
+
+    /*
+     * Plain text lines of varying length with some trailing whitespace and empty lines,
+     * so both canonicalizations have work to do.
+     */
+    static String body(int size) {
+
+        final StringBuilder body = new StringBuilder(size + 80);
+        int line = 0;
+        while (body.length() < size) {
+            body.append("Line ").append(line).append(" of the benchmark body,");
+            for (int i = 0; i < line % 7; i++) {
+                body.append(" some  more\twords");
+            }
+            body.append(line % 5 == 0 ? " \t\r\n\r\n" : "\r\n");
+            line++;
+        }
+        return body.toString();
+    }
+
+    static SmtpDkimMessage message(DkimSigner signer, String body, int headerCount) throws MessagingException {
+
+        final SmtpDkimMessage message = new SmtpDkimMessage(SESSION, signer);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipients(Message.RecipientType.TO, "recipient@example.org");
+        message.setSubject("Benchmark message with a   folded\t subject");
+        for (int i = 0; i < headerCount; i++) {
+            message.addHeader("X-Bench-" + i, "value " + i + " with  some\t whitespace");
+        }
+        message.setText(body, "utf-8");
+        message.saveChanges();
+        return message;
+    }
+
+    /*
+     * Discards everything written but keeps the JIT from eliminating the writes.
+     */
+    static OutputStream nullStream(final Blackhole blackhole) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+                blackhole.consume(len);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Header and body canonicalization, through the String API as well as the byte paths
+ * used by the signer.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CanonicalizationBenchmark {
+
+    private static final String HEADER_NAME = "Subject";
+    private static final String HEADER_VALUE = " A   subject\r\n\twith folding   and\t trailing whitespace \t";
+
+    @Param({"relaxed", "simple"})
+    public String canonicalization;
+
+    @Param({"1024", "102400", "1048576"})
+    public int bodySize;
+
+    private Canonicalization canon;
+    private String body;
+    private byte[] bodyBytes;
+    private byte[] headerField;
+    private ByteBuilder headerOut;
+
+    @Setup
+    public void setUp() {
+        canon = "simple".equals(canonicalization) ? Canonicalization.SIMPLE : Canonicalization.RELAXED;
+        body = BenchmarkMessages.body(bodySize);
+        bodyBytes = body.getBytes(StandardCharsets.US_ASCII);
+        headerField = (HEADER_NAME + ':' + HEADER_VALUE).getBytes(StandardCharsets.US_ASCII);
+        headerOut = new ByteBuilder(256);
+    }
+
+    @Benchmark
+    public String headerString() {
+        return canon.canonicalizeHeader(HEADER_NAME, HEADER_VALUE);
+    }
+
+    @Benchmark
+    public int headerBytes() throws IOException {
+        headerOut.reset();
+        canon.canonicalizeHeader(headerField, 0, headerField.length, headerOut);
+        return headerOut.length();
+    }
+
+    @Benchmark
+    public String bodyString() throws IOException {
+        return canon.canonicalizeBody(body);
+    }
+
+    @Benchmark
+    public void bodyStream(Blackhole blackhole) throws IOException {
+        final OutputStream out = BenchmarkMessages.nullStream(blackhole);
+        final BodyCanonicalizer canonicalizer = canon.newBodyCanonicalizer(out);
+        canonicalizer.write(bodyBytes, 0, bodyBytes.length);
+        canonicalizer.finish();
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.github.darkwrat.dkim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * DkimSigner.sign() on an already encoded message. signWithBodyHash includes hashing the
+ * body, signHeaders reuses a prepared body and measures the header part and the key operation.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DkimSignerBenchmark {
+
+    @Param({"1024", "2048"})
+    public int keySize;
+
+    @Param({"rsa-sha256", "rsa-sha1", "ed25519-sha256"})
+    public String algorithm;
+
+    @Param({"relaxed", "simple"})
+    public String canonicalization;
+
+    @Param({"1024", "102400"})
+    public int bodySize;
+
+    @Param({"0", "20"})
+    public int headerCount;
+
+    private DkimSigner signer;
+    private SmtpDkimMessage message;
+    private SmtpDkimMessage preparedMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        final SigningAlgorithm signingAlgorithm = BenchmarkMessages.signingAlgorithm(algorithm);
+        signer = BenchmarkMessages.newSigner(BenchmarkMessages.generateKey(signingAlgorithm, keySize),
+                signingAlgorithm,
+                "simple".equals(canonicalization) ? Canonicalization.SIMPLE : Canonicalization.RELAXED);
+
+        final String body = BenchmarkMessages.body(bodySize);
+        message = BenchmarkMessages.message(signer, body, headerCount);
+        preparedMessage = BenchmarkMessages.message(signer, body, headerCount);
+        preparedMessage.setPreparedBody(preparedMessage.prepareBody());
+        signer.sign(preparedMessage);
+    }
+
+    @Benchmark
+    public String signWithBodyHash() throws Exception {
+        // a fresh prepared body has no cached hash yet
+        message.setPreparedBody(PreparedBody.of(preparedMessage.prepareBody().toByteArray()));
+        return signer.sign(message);
+    }
+
+    @Benchmark
+    public String signHeaders() throws Exception {
+        return signer.sign(preparedMessage);
+    }
+
+}
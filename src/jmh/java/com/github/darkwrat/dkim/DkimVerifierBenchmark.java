@@ -0,0 +1,114 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * DkimVerifier.verify() on a message with several signatures of different keys, with the
+ * keys cached. threads 0 verifies on the calling thread, otherwise on a pool of that size.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DkimVerifierBenchmark {
+
+    @Param({"1", "3", "5"})
+    public int signatureCount;
+
+    @Param({"rsa-sha256", "ed25519-sha256"})
+    public String algorithm;
+
+    @Param({"0", "4"})
+    public int threads;
+
+    @Param({"1024", "102400"})
+    public int bodySize;
+
+    private byte[] message;
+    private DkimVerifier verifier;
+    private ExecutorService pool;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        final SigningAlgorithm signingAlgorithm = BenchmarkMessages.signingAlgorithm(algorithm);
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance(signingAlgorithm.getKeyAlgorithm());
+        if ("RSA".equals(signingAlgorithm.getKeyAlgorithm())) {
+            generator.initialize(2048);
+        }
+
+        final Map<String, List<String>> records = new HashMap<String, List<String>>();
+        SmtpDkimMessage signed = null;
+        for (int i = 0; i < signatureCount; i++) {
+            final KeyPair keyPair = generator.generateKeyPair();
+            final byte[] publicKey = keyPair.getPublic().getEncoded();
+            final boolean rsa = "RSA".equals(signingAlgorithm.getKeyAlgorithm());
+            records.put("bench" + i + "._domainkey.example.com", Collections.singletonList("v=DKIM1; k=" + (rsa ? "rsa" : "ed25519") + "; p="
+                    + Base64.getEncoder().encodeToString(rsa ? publicKey : Arrays.copyOfRange(publicKey, publicKey.length - 32, publicKey.length))));
+
+            final DkimSigner signer = new DkimSigner(DkimSignerConfig.builder("example.com", "bench" + i, keyPair.getPrivate())
+                    .signingAlgorithm(signingAlgorithm)
+                    .bodyCanonicalization(i % 2 == 0 ? Canonicalization.RELAXED : Canonicalization.SIMPLE)
+                    .build());
+            if (signed == null) {
+                signed = BenchmarkMessages.message(signer, BenchmarkMessages.body(bodySize), 0);
+            } else {
+                signed.addSigner(signer);
+            }
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        signed.writeTo(out);
+        message = out.toByteArray();
+
+        final DkimVerifier.Builder builder = DkimVerifier.builder(TxtRecordLookup.of(records));
+        if (threads > 0) {
+            pool = Executors.newFixedThreadPool(threads);
+            builder.executor(pool);
+        }
+        verifier = builder.build();
+        if (verifier.verify(message).stream().anyMatch(result -> !result.isPass())) {
+            throw new IllegalStateException("The benchmark message doesn't verify: " + verifier.verify(message));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public List<DkimVerificationResult> verify() {
+        return verifier.verify(message);
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.github.darkwrat.dkim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The tag value encodings: quoted-printable for i= and z=, base64 for bh= and b=.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+    // 32 bytes is a SHA-256 body hash, 256 an RSA-2048 signature
+    @Param({"32", "256"})
+    public int length;
+
+    private String text;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append("Subject:a; b=c ");
+        }
+        text = sb.substring(0, length);
+        bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+    }
+
+    @Benchmark
+    public String quotedPrintable() {
+        return DkimUtil.QuotedPrintable(text);
+    }
+
+    @Benchmark
+    public String base64() {
+        return DkimUtil.base64Encode(bytes);
+    }
+
+}
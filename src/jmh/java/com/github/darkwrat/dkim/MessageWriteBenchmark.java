@@ -0,0 +1,112 @@
+package com.github.darkwrat.dkim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * SmtpDkimMessage.writeTo() into a discarding stream:
+ * - cached: nothing changed since the last write, only the bytes are copied
+ * - resigned: a header changed, the body hash is reused but the signature is redone
+ * - full: the content changed, the body is encoded and hashed again as well
+ * - fullMultipart: like full, with a quoted-printable text part and a base64 attachment
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageWriteBenchmark {
+
+    @Param({"2048"})
+    public int keySize;
+
+    @Param({"rsa-sha256", "ed25519-sha256"})
+    public String algorithm;
+
+    @Param({"relaxed"})
+    public String canonicalization;
+
+    @Param({"1024", "102400", "1048576"})
+    public int bodySize;
+
+    @Param({"0", "20"})
+    public int headerCount;
+
+    private String body;
+    private String text;
+    private DataHandler attachment;
+    private SmtpDkimMessage message;
+    private int counter = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        final SigningAlgorithm signingAlgorithm = BenchmarkMessages.signingAlgorithm(algorithm);
+        final DkimSigner signer = BenchmarkMessages.newSigner(BenchmarkMessages.generateKey(signingAlgorithm, keySize),
+                signingAlgorithm,
+                "simple".equals(canonicalization) ? Canonicalization.SIMPLE : Canonicalization.RELAXED);
+
+        body = BenchmarkMessages.body(bodySize);
+        // non-ASCII text goes out quoted-printable
+        text = body.replace("words", "w\u00f6rds");
+        final byte[] attachmentBytes = new byte[bodySize];
+        new Random(bodySize).nextBytes(attachmentBytes);
+        attachment = new DataHandler(new ByteArrayDataSource(attachmentBytes, "application/octet-stream"));
+        message = BenchmarkMessages.message(signer, body, headerCount);
+    }
+
+    @Benchmark
+    public void cached(Blackhole blackhole) throws Exception {
+        message.writeTo(BenchmarkMessages.nullStream(blackhole));
+    }
+
+    @Benchmark
+    public void resigned(Blackhole blackhole) throws Exception {
+        message.setHeader("X-Bench-Counter", Integer.toString(counter++));
+        message.writeTo(BenchmarkMessages.nullStream(blackhole));
+    }
+
+    @Benchmark
+    public void full(Blackhole blackhole) throws Exception {
+        message.setText(body, "utf-8");
+        message.writeTo(BenchmarkMessages.nullStream(blackhole));
+    }
+
+    @Benchmark
+    public void fullMultipart(Blackhole blackhole) throws Exception {
+
+        final MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(text, "utf-8");
+        final MimeBodyPart attachmentPart = new MimeBodyPart();
+        attachmentPart.setDataHandler(attachment);
+        attachmentPart.setFileName("attachment.bin");
+
+        final MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(textPart);
+        multipart.addBodyPart(attachmentPart);
+        message.setContent(multipart);
+        message.saveChanges();
+        message.writeTo(BenchmarkMessages.nullStream(blackhole));
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Signing a serialized message as relayed from a queue: parsed into a MimeMessage first,
+ * or from its bytes, a stream and a mapped spool file with DkimSigner.sign().
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RawMessageSignBenchmark {
+
+    @Param({"2048"})
+    public int keySize;
+
+    @Param({"rsa-sha256", "ed25519-sha256"})
+    public String algorithm;
+
+    @Param({"1024", "102400", "1048576"})
+    public int bodySize;
+
+    private DkimSigner signer;
+    private byte[] message;
+    private Path spoolFile;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        final SigningAlgorithm signingAlgorithm = BenchmarkMessages.signingAlgorithm(algorithm);
+        signer = BenchmarkMessages.newSigner(BenchmarkMessages.generateKey(signingAlgorithm, keySize), signingAlgorithm, Canonicalization.RELAXED);
+
+        // as it arrives from the queue, without a signature yet
+        final ByteArrayOutputStream signed = new ByteArrayOutputStream();
+        BenchmarkMessages.message(signer, BenchmarkMessages.body(bodySize), 10).writeTo(signed);
+        final MimeMessage unsigned = new MimeMessage(BenchmarkMessages.SESSION, new ByteArrayInputStream(signed.toByteArray()));
+        unsigned.removeHeader("DKIM-Signature");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        unsigned.writeTo(out);
+        message = out.toByteArray();
+
+        spoolFile = Files.createTempFile("dkim-bench", ".eml");
+        Files.write(spoolFile, message);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(spoolFile);
+    }
+
+    @Benchmark
+    public String signMimeMessage() throws Exception {
+        return new SmtpDkimMessage(new MimeMessage(BenchmarkMessages.SESSION, new ByteArrayInputStream(message)), signer).sign();
+    }
+
+    @Benchmark
+    public String signBytes() throws Exception {
+        return signer.sign(message);
+    }
+
+    @Benchmark
+    public String signStream() throws Exception {
+        return signer.sign(new ByteArrayInputStream(message));
+    }
+
+    @Benchmark
+    public String signMappedFile() throws Exception {
+        return signer.sign(spoolFile);
+    }
+
+}
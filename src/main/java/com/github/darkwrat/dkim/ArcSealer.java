@@ -0,0 +1,275 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+
+/*
+ * Adds an ARC set (RFC 8617) to a message passing through, as a forwarder or mailing list
+ * does: the ARC-Authentication-Results with what was found on arrival, an
+ * ARC-Message-Signature and an ARC-Seal over all ARC sets so far.
+ *
+ * The ARC-Message-Signature is a DKIM signature without v= and is made the same way, with
+ * the header fields to sign, canonicalization and key of a DkimSignerConfig. Used with the
+ * config of one of the message's DKIM signers, it shares the canonicalized header and the
+ * body hash with that signature. The ARC sets of earlier hops are read from the message.
+ *
+ * A sealer is immutable and can be shared by any number of threads.
+ */
+
+public final class ArcSealer {
+
+    static final String ARC_SEAL = "ARC-Seal";
+    static final String ARC_MESSAGE_SIGNATURE = "ARC-Message-Signature";
+    static final String ARC_AUTHENTICATION_RESULTS = "ARC-Authentication-Results";
+
+    // RFC 8617 4.2.1
+    private static final int MAX_INSTANCE = 50;
+
+    /*
+     * The cv= tag of the seal: how the chain of earlier ARC sets validated on arrival. The
+     * first set of a message always has none.
+     */
+    public enum ChainValidation {
+        NONE, PASS, FAIL;
+
+        String getValue() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final DkimSignerConfig config;
+    private final String authServId;
+    private final SignatureTemplate messageSignatureTemplate;
+    private final SignatureTemplate sealTemplate;
+
+    /*
+     * authServId names this host in the ARC-Authentication-Results, e.g. its host name.
+     */
+    public ArcSealer(DkimSignerConfig config, String authServId) throws DkimSignerException {
+
+        for (String header : config.getHeadersToSign()) {
+            if (ARC_SEAL.equalsIgnoreCase(header)) {
+                throw new DkimSignerException("The ARC-Message-Signature must not sign " + ARC_SEAL);
+            }
+        }
+        if (authServId.trim().isEmpty() || authServId.indexOf(';') != -1) {
+            throw new DkimSignerException(authServId + " is an invalid authserv-id");
+        }
+
+        this.config = config;
+        this.authServId = authServId.trim();
+
+        final String algorithm = config.getSigningAlgorithm().getRfc4871Notation();
+        this.messageSignatureTemplate = new SignatureTemplate(ARC_MESSAGE_SIGNATURE, config.getSigningContext(), config.getHeaderCanonicalization(),
+                "a", algorithm,
+                "c", config.getHeaderCanonicalization().getType() + '/' + config.getBodyCanonicalization().getType(),
+                "s", config.getSelector(),
+                "d", config.getSigningDomain());
+        // the seal is always relaxed (RFC 8617 5.1.1)
+        this.sealTemplate = new SignatureTemplate(ARC_SEAL, config.getSigningContext(), Canonicalization.RELAXED,
+                "a", algorithm,
+                "s", config.getSelector(),
+                "d", config.getSigningDomain());
+    }
+
+    public DkimSignerConfig getConfig() {
+        return config;
+    }
+
+    public String getAuthServId() {
+        return authServId;
+    }
+
+    /*
+     * The results of verifying the message's DKIM signatures in the form of the
+     * ARC-Authentication-Results, "dkim=none" without any.
+     */
+    public static String authenticationResults(List<DkimVerificationResult> results) {
+
+        if (results.isEmpty()) {
+            return "dkim=none";
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (DkimVerificationResult result : results) {
+            sb.append(sb.length() == 0 ? "" : "; ").append(result);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * The new ARC set for the message as header lines from the top down: ARC-Seal,
+     * ARC-Message-Signature and ARC-Authentication-Results. Usually called through
+     * SmtpDkimMessage.setArcSeal(), which writes the set out with the message.
+     */
+    public List<String> seal(SmtpDkimMessage message, String authenticationResults, ChainValidation chainValidation) throws DkimSignerException, MessagingException {
+        return seal(message, authenticationResults, chainValidation, new HeaderBlock(message));
+    }
+
+    List<String> seal(SmtpDkimMessage message, String authenticationResults, ChainValidation chainValidation, HeaderBlock headers) throws DkimSignerException, MessagingException {
+
+        final List<int[]> sets = existingSets(headers);
+        final int instance = sets.size() + 1;
+        if (instance > MAX_INSTANCE) {
+            throw new DkimSignerException("The message has " + sets.size() + " ARC sets already, no more are allowed");
+        }
+        if (sets.isEmpty()) {
+            chainValidation = ChainValidation.NONE;
+        } else if (chainValidation == ChainValidation.NONE) {
+            throw new DkimSignerException("cv=none is only valid for the first ARC set, the message has " + sets.size());
+        }
+        final String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+
+        final String resultsLine = authenticationResultsLine(instance, authenticationResults);
+
+        final SignatureTemplate.Field messageSignature = messageSignatureTemplate.newField();
+        messageSignature.tag("i", Integer.toString(instance)).tag("t", timestamp);
+        final HeaderBlock.Canonical canonicalHeaders = headers.canonicalize(config.getHeaderCanonicalization(), config.headerPlan(), false);
+        messageSignature.tag("h", canonicalHeaders.getHeaderList());
+        // computed once per body and shared with a DKIM signature of the same canonicalization and hash
+        final BodyHash bodyHash = message.getBody().getBodyHash(config.getBodyCanonicalization(), config.getSigningContext(), config.getMetrics());
+        messageSignature.tag("bh", bodyHash.getEncoded());
+        final String messageSignatureLine = messageSignature.sign(canonicalHeaders.getContent());
+
+        // the seal covers the sets in the order of their instances, each as results, message signature, seal
+        final ByteBuilder chain = new ByteBuilder(1024 * instance);
+        try {
+            for (int[] set : sets) {
+                for (int line : set) {
+                    headers.canonicalizeLine(line, Canonicalization.RELAXED, chain);
+                    chain.append("\r\n");
+                }
+            }
+            appendCanonical(resultsLine, chain);
+            appendCanonical(messageSignatureLine, chain);
+        } catch (IOException ioe) {
+            throw new DkimSignerException("The header canonicalization failed", ioe);
+        }
+
+        final SignatureTemplate.Field seal = sealTemplate.newField();
+        seal.tag("i", Integer.toString(instance)).tag("t", timestamp).tag("cv", chainValidation.getValue());
+        final String sealLine = seal.sign(chain);
+
+        return Arrays.asList(sealLine, messageSignatureLine, resultsLine);
+    }
+
+    // the line indexes of the results, message signature and seal of each earlier set, by instance
+    private static List<int[]> existingSets(HeaderBlock headers) throws DkimSignerException, MessagingException {
+
+        final String[] names = {ARC_AUTHENTICATION_RESULTS, ARC_MESSAGE_SIGNATURE, ARC_SEAL};
+        final List<int[]> sets = new ArrayList<int[]>();
+        for (int line = 0; line < headers.lineCount(); line++) {
+            int kind = names.length - 1;
+            while (kind >= 0 && !headers.hasName(line, names[kind])) {
+                kind--;
+            }
+            if (kind == -1) {
+                continue;
+            }
+
+            final int instance = kind == 0 ? resultsInstance(headers.value(line)) : instance(headers.value(line));
+            if (instance < 1 || instance > MAX_INSTANCE) {
+                throw new DkimSignerException("The ARC chain is broken, an " + names[kind] + " has the instance " + instance);
+            }
+            while (sets.size() < instance) {
+                sets.add(new int[]{-1, -1, -1});
+            }
+            final int[] set = sets.get(instance - 1);
+            if (set[kind] != -1) {
+                throw new DkimSignerException("The ARC chain is broken, there is more than one " + names[kind] + " with i=" + instance);
+            }
+            set[kind] = line;
+        }
+
+        for (int i = 0; i < sets.size(); i++) {
+            for (int kind = 0; kind < names.length; kind++) {
+                if (sets.get(i)[kind] == -1) {
+                    throw new DkimSignerException("The ARC chain is broken, the " + names[kind] + " with i=" + (i + 1) + " is missing");
+                }
+            }
+        }
+
+        // a failed chain stays failed, no sets are added to it (RFC 8617 5.1.2)
+        if (!sets.isEmpty()) {
+            final String cv = TagList.parse(headers.value(sets.get(sets.size() - 1)[2])).get("cv");
+            if (ChainValidation.FAIL.getValue().equalsIgnoreCase(cv)) {
+                throw new DkimSignerException("The ARC chain has failed before, it is not sealed again");
+            }
+        }
+        return sets;
+    }
+
+    // the i= tag of a message signature or seal, -1 if there is none
+    private static int instance(String value) throws DkimSignerException {
+        return parseInstance(TagList.parse(value).get("i"));
+    }
+
+    // the results aren't a tag list, they start with i= (RFC 8617 4.1.1)
+    private static int resultsInstance(String value) {
+
+        final String trimmed = value.trim();
+        final int semicolon = trimmed.indexOf(';');
+        final String first = (semicolon == -1 ? trimmed : trimmed.substring(0, semicolon)).trim();
+        final int equals = first.indexOf('=');
+        if (equals == -1 || !"i".equals(first.substring(0, equals).trim())) {
+            return -1;
+        }
+        return parseInstance(first.substring(equals + 1));
+    }
+
+    private static int parseInstance(@Nullable String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(TagList.removeWhitespace(value));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    // folded between the resinfo parts where the line would get too long
+    private String authenticationResultsLine(int instance, String authenticationResults) {
+
+        final List<String> parts = new ArrayList<String>();
+        parts.add("i=" + instance + ';');
+        parts.add(authServId + ';');
+        final String[] results = authenticationResults.trim().isEmpty() ? new String[]{"none"} : authenticationResults.split(";");
+        for (int i = 0; i < results.length; i++) {
+            final String result = results[i].trim();
+            if (!result.isEmpty()) {
+                parts.add(i < results.length - 1 ? result + ';' : result);
+            }
+        }
+
+        final StringBuilder line = new StringBuilder(ARC_AUTHENTICATION_RESULTS).append(':');
+        int column = line.length();
+        for (String part : parts) {
+            if (column + 1 + part.length() > HeaderFolder.MAX_LINE_LENGTH && column > ARC_AUTHENTICATION_RESULTS.length() + 1) {
+                line.append("\r\n\t");
+                column = 1;
+            } else {
+                line.append(' ');
+                column++;
+            }
+            line.append(part);
+            column += part.length();
+        }
+        return line.toString();
+    }
+
+    private static void appendCanonical(String headerLine, ByteBuilder out) throws IOException {
+        final byte[] bytes = headerLine.getBytes(StandardCharsets.ISO_8859_1);
+        Canonicalization.RELAXED.canonicalizeHeader(bytes, 0, bytes.length, out);
+        out.append("\r\n");
+    }
+
+}
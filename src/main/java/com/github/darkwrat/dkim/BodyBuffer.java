@@ -0,0 +1,196 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Holds an encoded body in memory until it grows beyond the spool threshold, then moves it
+ * to a temporary file, so the heap use of a message does not depend on its attachments.
+ * The buffer is written once, closed and then only read, possibly by several threads.
+ *
+ * The spool file is removed by delete(), otherwise once the buffer has been garbage
+ * collected or at the latest when the JVM exits, so files don't outlive the library even if
+ * the message is never closed.
+ */
+
+final class BodyBuffer extends OutputStream {
+
+    //noinspection MagicNumber
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final long spoolThreshold;
+    private final @Nullable File spoolDirectory;
+    private @Nullable ByteBuilder memory;
+    private @Nullable File file = null;
+    private @Nullable SpoolFile spoolFile = null;
+    private @Nullable OutputStream fileOut = null;
+    private long length = 0;
+
+    /*
+     * A threshold of zero or less keeps the body in memory whatever its size.
+     */
+    BodyBuffer(long spoolThreshold, @Nullable File spoolDirectory) {
+        this.spoolThreshold = spoolThreshold;
+        this.spoolDirectory = spoolDirectory;
+        //noinspection MagicNumber
+        this.memory = new ByteBuilder(8 * 1024);
+    }
+
+    private BodyBuffer(ByteBuilder memory) {
+        this.spoolThreshold = 0;
+        this.spoolDirectory = null;
+        this.memory = memory;
+        this.length = memory.length();
+    }
+
+    static BodyBuffer of(ByteBuilder memory) {
+        return new BodyBuffer(memory);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (memory != null && (spoolThreshold <= 0 || length < spoolThreshold)) {
+            memory.write(b);
+        } else {
+            spooled().write(b);
+        }
+        length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (memory != null && (spoolThreshold <= 0 || length + len <= spoolThreshold)) {
+            memory.write(b, off, len);
+        } else {
+            spooled().write(b, off, len);
+        }
+        length += len;
+    }
+
+    /*
+     * Completes writing; the spool file, if any, stays until delete().
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    boolean isSpooled() {
+        return file != null;
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+
+        if (file == null) {
+            memory.writeTo(os);
+            return;
+        }
+
+        // let the file system push the data, the channel only wraps the target stream
+        final WritableByteChannel target = Channels.newChannel(os);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long position = 0;
+            while (position < length) {
+                position += channel.transferTo(position, length - position, target);
+            }
+        }
+    }
+
+    InputStream newInputStream() throws IOException {
+        return file == null ? memory.newInputStream() : new FileInputStream(file);
+    }
+
+    byte[] toByteArray() throws IOException {
+        return file == null ? memory.toByteArray() : Files.readAllBytes(file.toPath());
+    }
+
+    void delete() {
+        if (spoolFile != null) {
+            spoolFile.delete();
+        }
+    }
+
+    private OutputStream spooled() throws IOException {
+
+        if (fileOut == null) {
+            if (file != null) {
+                throw new IOException("The spooled body has already been completed");
+            }
+            file = File.createTempFile("dkim-body-", ".tmp", spoolDirectory);
+            spoolFile = SpoolFile.track(this, file);
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        return fileOut;
+    }
+
+    // the spool file of a buffer, deleted when the buffer is no longer reachable
+    private static final class SpoolFile extends PhantomReference<BodyBuffer> {
+
+        private static final ReferenceQueue<BodyBuffer> COLLECTED = new ReferenceQueue<BodyBuffer>();
+        // keeps the references themselves reachable until their files are gone
+        private static final Set<SpoolFile> LIVE = Collections.newSetFromMap(new ConcurrentHashMap<SpoolFile, Boolean>());
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (SpoolFile spoolFile : LIVE) {
+                    spoolFile.delete();
+                }
+            }, "dkim-spool-cleanup"));
+        }
+
+        private final File file;
+
+        private SpoolFile(BodyBuffer buffer, File file) {
+            super(buffer, COLLECTED);
+            this.file = file;
+        }
+
+        // no thread of its own, the files of collected buffers are removed whenever another one is spooled
+        static SpoolFile track(BodyBuffer buffer, File file) {
+
+            Reference<? extends BodyBuffer> collected;
+            while ((collected = COLLECTED.poll()) != null) {
+                ((SpoolFile) collected).delete();
+            }
+
+            final SpoolFile spoolFile = new SpoolFile(buffer, file);
+            LIVE.add(spoolFile);
+            return spoolFile;
+        }
+
+        void delete() {
+            if (LIVE.remove(this)) {
+                clear();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+}
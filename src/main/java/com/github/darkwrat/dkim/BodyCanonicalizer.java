@@ -0,0 +1,138 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Streaming body canonicalization: every byte written to this stream is canonicalized on the
+ * fly and passed on to the underlying stream, so the body never has to be held in memory.
+ * The body is expected to use CRLF line terminators; finish() completes the canonical form
+ * after the last byte has been written, the underlying stream is neither flushed nor closed.
+ */
+
+public abstract class BodyCanonicalizer extends OutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    protected final OutputStream out;
+    private final byte[] single = new byte[1];
+
+    protected BodyCanonicalizer(OutputStream out) {
+        this.out = out;
+    }
+
+    static BodyCanonicalizer simple(OutputStream out) {
+        return new StateMachine(out, false);
+    }
+
+    static BodyCanonicalizer relaxed(OutputStream out) {
+        return new StateMachine(out, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public abstract void write(byte[] b, int off, int len) throws IOException;
+
+    public abstract void finish() throws IOException;
+
+    /*
+     * Simple and relaxed body canonicalization as a single pass state machine. Line breaks and,
+     * for relaxed, whitespace are held back until the next content byte shows whether they are
+     * trailing; runs of ordinary bytes are passed on unchanged with a single write.
+     */
+    private static final class StateMachine extends BodyCanonicalizer {
+
+        private final boolean relaxed;
+        private boolean pendingCr = false;
+        private boolean pendingSpace = false;
+        private int pendingCrlfs = 0;
+
+        StateMachine(OutputStream out, boolean relaxed) {
+            super(out);
+            this.relaxed = relaxed;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            final int end = off + len;
+            int start = -1;
+
+            for (int i = off; i < end; i++) {
+                final int c = b[i] & 0xff;
+
+                if (pendingCr) {
+                    pendingCr = false;
+                    if (c == '\n') {
+                        // whitespace at the end of a line is dropped by relaxed
+                        pendingCrlfs++;
+                        pendingSpace = false;
+                        continue;
+                    }
+                    // a CR without LF is ordinary content
+                    flushPending();
+                    out.write('\r');
+                }
+
+                if (c == '\r' || relaxed && isWsp(c)) {
+                    if (start >= 0) {
+                        out.write(b, start, i - start);
+                        start = -1;
+                    }
+                    if (c == '\r') {
+                        pendingCr = true;
+                    } else {
+                        pendingSpace = true;
+                    }
+                } else if (start < 0) {
+                    flushPending();
+                    start = i;
+                }
+            }
+
+            if (start >= 0) {
+                out.write(b, start, end - start);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+
+            if (pendingCr) {
+                pendingCr = false;
+                flushPending();
+                out.write('\r');
+            }
+
+            // empty lines at the end of the body are ignored, the body ends with exactly one CRLF
+            if (pendingSpace) {
+                flushPending();
+            } else {
+                pendingCrlfs = 0;
+            }
+            out.write(CRLF);
+        }
+
+        private void flushPending() throws IOException {
+
+            for (; pendingCrlfs > 0; pendingCrlfs--) {
+                out.write(CRLF);
+            }
+
+            if (pendingSpace) {
+                out.write(' ');
+                pendingSpace = false;
+            }
+        }
+
+        private static boolean isWsp(int c) {
+            return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+        }
+    }
+
+}
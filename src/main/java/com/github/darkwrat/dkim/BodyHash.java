@@ -0,0 +1,26 @@
+package com.github.darkwrat.dkim;
+
+/*
+ * Result of hashing a canonicalized body: the digest, its base64 form for the bh= tag and
+ * the canonicalized length for the l= tag.
+ */
+
+final class BodyHash {
+
+    private final String encoded;
+    private final long length;
+
+    BodyHash(byte[] hash, long length) {
+        this.encoded = DkimUtil.base64Encode(hash);
+        this.length = length;
+    }
+
+    String getEncoded() {
+        return encoded;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+}
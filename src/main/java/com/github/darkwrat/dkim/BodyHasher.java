@@ -0,0 +1,117 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/*
+ * Computes a DKIM body hash in a single streaming pass: the encoded body written to this
+ * stream is converted to CRLF line terminators, canonicalized and digested chunk by chunk,
+ * so memory use does not depend on the size of the body.
+ *
+ * With metrics other than NOOP the time spent in the hasher is measured per write, which the
+ * callers keep to chunks of several KB, and reported by finish().
+ */
+
+final class BodyHasher extends OutputStream {
+
+    private final MessageDigest messageDigest;
+    private final BodyCanonicalizer canonicalizer;
+    private final OutputStream crlfos;
+    private final long limit;
+    private final Canonicalization bodyCanonicalization;
+    private final DkimMetrics metrics;
+    private final boolean timed;
+    private long length = 0;
+    private long bodyBytes = 0;
+    private long nanos = 0;
+
+    BodyHasher(Canonicalization bodyCanonicalization, MessageDigest messageDigest) {
+        this(bodyCanonicalization, messageDigest, Long.MAX_VALUE, DkimMetrics.NOOP);
+    }
+
+    BodyHasher(Canonicalization bodyCanonicalization, MessageDigest messageDigest, DkimMetrics metrics) {
+        this(bodyCanonicalization, messageDigest, Long.MAX_VALUE, metrics);
+    }
+
+    /*
+     * Hashes the first limit bytes of the canonicalized body only, as asked for by an l= tag;
+     * getLength() still counts all of them.
+     */
+    BodyHasher(Canonicalization bodyCanonicalization, MessageDigest messageDigest, long limit) {
+        this(bodyCanonicalization, messageDigest, limit, DkimMetrics.NOOP);
+    }
+
+    private BodyHasher(Canonicalization bodyCanonicalization, MessageDigest messageDigest, long limit, DkimMetrics metrics) {
+
+        this.messageDigest = messageDigest;
+        this.limit = limit;
+        this.bodyCanonicalization = bodyCanonicalization;
+        this.metrics = metrics;
+        this.timed = metrics != DkimMetrics.NOOP;
+        this.canonicalizer = bodyCanonicalization.newBodyCanonicalizer(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                if (length < BodyHasher.this.limit) {
+                    BodyHasher.this.messageDigest.update((byte) b);
+                }
+                length++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (length < BodyHasher.this.limit) {
+                    BodyHasher.this.messageDigest.update(b, off, (int) Math.min(len, BodyHasher.this.limit - length));
+                }
+                length += len;
+            }
+        });
+        this.crlfos = new CRLFOutputStream(canonicalizer);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        bodyBytes++;
+        crlfos.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        bodyBytes += len;
+        if (!timed) {
+            crlfos.write(b, off, len);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        crlfos.write(b, off, len);
+        nanos += System.nanoTime() - start;
+    }
+
+    /*
+     * Completes the canonicalization and returns the body hash; the hasher must not be used
+     * afterwards.
+     */
+    byte[] finish() throws IOException {
+
+        final long start = timed ? System.nanoTime() : 0;
+        canonicalizer.finish();
+        final byte[] hash = messageDigest.digest();
+        if (timed) {
+            metrics.bodyHashed(bodyCanonicalization, bodyBytes, length, nanos + System.nanoTime() - start);
+        }
+        return hash;
+    }
+
+    /*
+     * Number of canonicalized body bytes hashed so far, the value of the l= tag after finish().
+     */
+    long getLength() {
+        return length;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * Unsynchronized, reusable byte buffer. Characters are appended the way JavaMail writes
+ * header lines to the wire, i.e. each char is truncated to its low byte.
+ */
+
+final class ByteBuilder extends OutputStream {
+
+    private byte[] buf;
+    private int count = 0;
+
+    ByteBuilder(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    private ByteBuilder(byte[] buf) {
+        this.buf = buf;
+        this.count = buf.length;
+    }
+
+    /*
+     * Uses b as content without copying. Appending moves to a new array, so b is left untouched
+     * as long as the builder isn't reset.
+     */
+    static ByteBuilder wrap(byte[] b) {
+        return new ByteBuilder(b);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    ByteBuilder append(CharSequence s) {
+        return append(s, 0, s.length());
+    }
+
+    ByteBuilder append(CharSequence s, int start, int end) {
+        ensureCapacity(count + end - start);
+        for (int i = start; i < end; i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    ByteBuilder append(char c) {
+        write(c);
+        return this;
+    }
+
+    ByteBuilder append(byte[] b) {
+        write(b, 0, b.length);
+        return this;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int length() {
+        return count;
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    InputStream newInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    @Override
+    public String toString() {
+        final char[] chars = new char[count];
+        for (int i = 0; i < count; i++) {
+            chars[i] = (char) (buf[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+        }
+    }
+
+}
@@ -2,11 +2,17 @@ package com.github.darkwrat.dkim;
 
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 /*
  * Provides Simple and Relaxed Canonicalization according to DKIM RFC 4871.
- * 
+ *
+ * SIMPLE and RELAXED are implemented as single pass state machines on byte ranges; the
+ * String based methods are kept for compatibility and produce the same output.
+ *
  * @author Florian Sager, http://www.agitos.de, 22.11.2008
  */
 
@@ -28,23 +34,28 @@ public class Canonicalization {
         }
 
         @Override
-        public String canonicalizeBody(String body) {
+        public void canonicalizeHeader(byte[] field, int off, int len, OutputStream out) throws IOException {
 
-            if (body == null || body.isEmpty()) {
-                return "\r\n";
-            }
+            out.write(field, off, len);
+        }
 
-            // The body must end with \r\n
-            if (!"\r\n".equals(body.substring(body.length() - 2, body.length()))) {
-                return body + "\r\n";
-            }
+        @Override
+        boolean canonicalizeHeaderContinuation(byte[] value, int off, int len, OutputStream out) throws IOException {
 
-            // Remove trailing empty lines ...
-            while ("\r\n\r\n".equals(body.substring(body.length() - 4, body.length()))) {
-                body = body.substring(0, body.length() - 2);
-            }
+            out.write(value, off, len);
+            return true;
+        }
+
+        @Override
+        public String canonicalizeBody(String body) {
+
+            return canonicalizeBodyString(this, body);
+        }
 
-            return body;
+        @Override
+        public BodyCanonicalizer newBodyCanonicalizer(OutputStream out) {
+
+            return BodyCanonicalizer.simple(out);
         }
 
     };
@@ -61,32 +72,100 @@ public class Canonicalization {
         @Override
         public String canonicalizeHeader(String name, String value) {
 
-            name = name.trim().toLowerCase();
-            value = value.replaceAll("\\s+", " ").trim();
-            return name + ':' + value;
+            final byte[] field = (name + ':' + value).getBytes(StandardCharsets.UTF_8);
+            final ByteBuilder out = new ByteBuilder(field.length);
+            try {
+                canonicalizeHeader(field, 0, field.length, out);
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Canonicalizing into memory failed", ioe);
+            }
+            return new String(out.array(), 0, out.length(), StandardCharsets.UTF_8);
         }
 
         @Override
-        public String canonicalizeBody(String body) {
+        public void canonicalizeHeader(byte[] field, int off, int len, OutputStream out) throws IOException {
+
+            final int end = off + len;
 
-            if (body == null || body.isEmpty()) {
-                return "\r\n";
+            int colon = off;
+            while (colon < end && field[colon] != ':') {
+                colon++;
             }
 
-            body = body.replaceAll("[ \\t\\x0B\\f]+", " ");
-            body = body.replaceAll(" \r\n", "\r\n");
+            // the name is trimmed and converted to lower case
+            final int nameEnd = trimEnd(field, off, colon);
+            for (int i = trimStart(field, off, nameEnd); i < nameEnd; i++) {
+                final int c = field[i];
+                out.write(c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+            }
+            out.write(':');
 
-            // The body must end with \r\n
-            if (!"\r\n".equals(body.substring(body.length() - 2, body.length()))) {
-                return body + "\r\n";
+            if (colon == end) {
+                return;
             }
 
-            // Remove trailing empty lines ...
-            while ("\r\n\r\n".equals(body.substring(body.length() - 4, body.length()))) {
-                body = body.substring(0, body.length() - 2);
+            // the value is trimmed, inner whitespace runs including folding become a single space
+            final int valueEnd = trimEnd(field, colon + 1, end);
+            boolean space = false;
+            int run = -1;
+            for (int i = trimStart(field, colon + 1, valueEnd); i < valueEnd; i++) {
+                if (isHeaderWhitespace(field[i])) {
+                    if (run >= 0) {
+                        out.write(field, run, i - run);
+                        run = -1;
+                    }
+                    space = true;
+                } else if (run < 0) {
+                    if (space) {
+                        out.write(' ');
+                        space = false;
+                    }
+                    run = i;
+                }
+            }
+            if (run >= 0) {
+                out.write(field, run, valueEnd - run);
             }
+        }
+
+        @Override
+        boolean canonicalizeHeaderContinuation(byte[] value, int off, int len, OutputStream out) throws IOException {
 
-            return body;
+            // like the value part above, but leading whitespace is kept as a single space
+            final int end = trimEnd(value, off, off + len);
+            boolean space = false;
+            int run = -1;
+            for (int i = off; i < end; i++) {
+                if (isHeaderWhitespace(value[i])) {
+                    if (run >= 0) {
+                        out.write(value, run, i - run);
+                        run = -1;
+                    }
+                    space = true;
+                } else if (run < 0) {
+                    if (space) {
+                        out.write(' ');
+                        space = false;
+                    }
+                    run = i;
+                }
+            }
+            if (run >= 0) {
+                out.write(value, run, end - run);
+            }
+            return true;
+        }
+
+        @Override
+        public String canonicalizeBody(String body) {
+
+            return canonicalizeBodyString(this, body);
+        }
+
+        @Override
+        public BodyCanonicalizer newBodyCanonicalizer(OutputStream out) {
+
+            return BodyCanonicalizer.relaxed(out);
         }
 
     };
@@ -95,12 +174,98 @@ public class Canonicalization {
         return "unknown";
     }
 
+    /*
+     * Canonicalizes the rest of a header field whose beginning, ending in a non-whitespace
+     * character, has been canonicalized separately. Returns false if this canonicalization
+     * can only handle whole fields.
+     */
+    boolean canonicalizeHeaderContinuation(byte[] value, int off, int len, OutputStream out) throws IOException {
+        return false;
+    }
+
     public @Nullable String canonicalizeHeader(String name, String value) {
         return null;
     }
 
+    /*
+     * Writes the canonicalized form of the header field in field[off, off + len) to out; the
+     * field is given as "name:value" including any folding but without the terminating CRLF.
+     * Implementations that only provide the String based method are served by converting.
+     */
+    public void canonicalizeHeader(byte[] field, int off, int len, OutputStream out) throws IOException {
+
+        final String header = new String(field, off, len, StandardCharsets.ISO_8859_1);
+        final int colonPos = header.indexOf(':');
+        final String canonicalized = colonPos == -1
+                ? canonicalizeHeader(header, "")
+                : canonicalizeHeader(header.substring(0, colonPos), header.substring(colonPos + 1));
+
+        if (canonicalized != null) {
+            out.write(canonicalized.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
     public @Nullable String canonicalizeBody(String body) throws IOException {
         return null;
     }
 
+    /*
+     * Streaming variant of canonicalizeBody(). Implementations that only provide the String
+     * based method are served by buffering the whole body.
+     */
+    public BodyCanonicalizer newBodyCanonicalizer(OutputStream out) {
+
+        final Canonicalization canonicalization = this;
+        return new BodyCanonicalizer(out) {
+
+            private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                final String canonicalized = canonicalization.canonicalizeBody(body.toString());
+                if (canonicalized != null) {
+                    out.write(canonicalized.getBytes());
+                }
+            }
+        };
+    }
+
+    // UTF-8 leaves CR, LF and whitespace as single bytes, so the byte based result is the same
+    private static String canonicalizeBodyString(Canonicalization canonicalization, @Nullable String body) {
+
+        final byte[] in = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        final ByteBuilder out = new ByteBuilder(in.length + 2);
+        final BodyCanonicalizer canonicalizer = canonicalization.newBodyCanonicalizer(out);
+        try {
+            canonicalizer.write(in, 0, in.length);
+            canonicalizer.finish();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Canonicalizing into memory failed", ioe);
+        }
+        return new String(out.array(), 0, out.length(), StandardCharsets.UTF_8);
+    }
+
+    private static int trimStart(byte[] b, int start, int end) {
+        while (start < end && (b[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] b, int start, int end) {
+        while (end > start && (b[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isHeaderWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0x0B || c == '\f';
+    }
+
 }
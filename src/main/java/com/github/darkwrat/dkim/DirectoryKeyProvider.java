@@ -0,0 +1,208 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * The keys in a directory of files named selector._domainkey.domain with the extension .pem,
+ * .der or .key, in any format PrivateKeyReader understands. All keys are parsed when the
+ * provider is created, in parallel, and again by refresh() when a file changes; watch()
+ * calls refresh() whenever the directory changes.
+ *
+ * A file that can't be parsed doesn't stop the others from loading: refresh() reports it
+ * after the rest are in place, and getLastFailure() keeps the report for the initial load
+ * and the watcher. The previous key of such a file, if any, stays in use.
+ */
+
+public class DirectoryKeyProvider implements KeyProvider, Closeable {
+
+    private static final Pattern KEY_FILE_NAME = Pattern.compile("(.+)\\.(?:pem|der|key)", Pattern.CASE_INSENSITIVE);
+
+    private final Path directory;
+    private final ConcurrentMap<String, LoadedKey> keys = new ConcurrentHashMap<String, LoadedKey>();
+    private @Nullable WatchService watchService = null;
+    private volatile @Nullable DkimSignerException lastFailure = null;
+
+    public DirectoryKeyProvider(Path directory) throws IOException {
+        this.directory = directory;
+        try {
+            refresh();
+        } catch (DkimSignerException ignored) {
+            // available from getLastFailure(), the other keys are usable
+        }
+    }
+
+    @Override
+    public @Nullable PrivateKey getKey(String domain, String selector) {
+        final LoadedKey key = keys.get(KeyProvider.keyName(domain, selector));
+        return key == null ? null : key.privateKey;
+    }
+
+    @Override
+    public long version(String domain, String selector) {
+        final LoadedKey key = keys.get(KeyProvider.keyName(domain, selector));
+        return key == null ? 0 : key.version;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /*
+     * The files that failed to load on the last refresh, null if all of them loaded.
+     */
+    public @Nullable DkimSignerException getLastFailure() {
+        return lastFailure;
+    }
+
+    /*
+     * Parses new and changed key files and forgets the keys of removed ones.
+     */
+    public synchronized void refresh() throws IOException, DkimSignerException {
+
+        final List<KeyFile> changed = new ArrayList<KeyFile>();
+        final Set<String> present = new HashSet<String>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final Matcher matcher = KEY_FILE_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches() || !matcher.group(1).contains("._domainkey.")) {
+                    continue;
+                }
+
+                final String name = matcher.group(1).toLowerCase(Locale.ROOT);
+                final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+                present.add(name);
+
+                final long version = attributes.lastModifiedTime().toMillis() * 31 + attributes.size();
+                final LoadedKey loaded = keys.get(name);
+                if (loaded == null || loaded.version != version) {
+                    changed.add(new KeyFile(name, file, version));
+                }
+            }
+        }
+
+        keys.keySet().retainAll(present);
+
+        // RSA key parsing is CPU bound, which adds up for thousands of tenants
+        changed.parallelStream().forEach(KeyFile::parse);
+
+        DkimSignerException failure = null;
+        for (KeyFile keyFile : changed) {
+            if (keyFile.privateKey != null) {
+                keys.put(keyFile.name, new LoadedKey(keyFile.privateKey, keyFile.version));
+            } else if (failure == null) {
+                failure = new DkimSignerException("The key file " + keyFile.file + " could not be loaded", keyFile.failure);
+            } else {
+                failure.addSuppressed(keyFile.failure);
+            }
+        }
+
+        lastFailure = failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Starts a daemon thread that refreshes the keys when files in the directory change.
+     */
+    public synchronized void watch() throws IOException {
+
+        if (watchService != null) {
+            return;
+        }
+
+        final WatchService service = directory.getFileSystem().newWatchService();
+        directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchService = service;
+
+        final Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    final WatchKey key = service.take();
+                    // one refresh covers all events seen so far, e.g. a copy in several writes
+                    key.pollEvents();
+                    key.reset();
+                    try {
+                        refresh();
+                    } catch (IOException | DkimSignerException ignored) {
+                        // the failed files are tried again on the next change
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
+                // close() was called
+            }
+        }, "dkim-key-watcher-" + directory.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /*
+     * Stops watching the directory; the loaded keys remain available.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private static final class LoadedKey {
+
+        private final PrivateKey privateKey;
+        private final long version;
+
+        private LoadedKey(PrivateKey privateKey, long version) {
+            this.privateKey = privateKey;
+            this.version = version;
+        }
+    }
+
+    private static final class KeyFile {
+
+        private final String name;
+        private final Path file;
+        private final long version;
+        private @Nullable PrivateKey privateKey;
+        private @Nullable Exception failure;
+
+        private KeyFile(String name, Path file, long version) {
+            this.name = name;
+            this.file = file;
+            this.version = version;
+        }
+
+        private void parse() {
+            try {
+                privateKey = PrivateKeyReader.read(file);
+            } catch (IOException | DkimSignerException e) {
+                failure = e;
+            }
+        }
+    }
+
+}
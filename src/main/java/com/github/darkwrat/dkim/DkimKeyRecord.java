@@ -0,0 +1,173 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * A DKIM public key record as published in DNS at selector._domainkey.domain (RFC 6376
+ * 3.6.1), e.g. "v=DKIM1; k=rsa; p=MIGfMA0G...".
+ *
+ * RSA keys are expected as SubjectPublicKeyInfo, some publish a bare PKCS#1 RSAPublicKey,
+ * which is accepted as well. Ed25519 keys are the raw 32 bytes (RFC 8463).
+ */
+
+public final class DkimKeyRecord {
+
+    // SubjectPublicKeyInfo of an Ed25519 key up to the key bytes, RFC 8410
+    private static final byte[] ED25519_KEY_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00
+    };
+
+    private final String keyType;
+    private final PublicKey publicKey;
+    private final @Nullable List<String> hashAlgorithms;
+    private final List<String> flags;
+    private final List<String> serviceTypes;
+
+    private DkimKeyRecord(String keyType, PublicKey publicKey, @Nullable List<String> hashAlgorithms, List<String> flags, List<String> serviceTypes) {
+        this.keyType = keyType;
+        this.publicKey = publicKey;
+        this.hashAlgorithms = hashAlgorithms;
+        this.flags = flags;
+        this.serviceTypes = serviceTypes;
+    }
+
+    /*
+     * Parses the text of a TXT record, the strings of a record split into several being
+     * concatenated. A revoked key, i.e. an empty p=, is reported as an exception as well.
+     */
+    public static DkimKeyRecord parse(String record) throws DkimSignerException {
+
+        final Map<String, String> tags = TagList.parse(record);
+
+        final String version = tags.get("v");
+        if (version != null) {
+            if (!"DKIM1".equals(version)) {
+                throw new DkimSignerException("The key record has version " + version + ", DKIM1 is supported");
+            }
+            if (!"v".equals(tags.keySet().iterator().next())) {
+                throw new DkimSignerException("The v= tag has to come first in the key record");
+            }
+        }
+
+        final String keyType = tags.containsKey("k") ? tags.get("k").toLowerCase(Locale.ROOT) : "rsa";
+        final String encodedKey = tags.get("p");
+        if (encodedKey == null) {
+            throw new DkimSignerException("The key record has no public key");
+        }
+        final String base64Key = TagList.removeWhitespace(encodedKey);
+        if (base64Key.isEmpty()) {
+            throw new DkimSignerException("The key has been revoked");
+        }
+
+        final byte[] der;
+        try {
+            der = Base64.getDecoder().decode(base64Key);
+        } catch (IllegalArgumentException iae) {
+            throw new DkimSignerException("The public key of the key record is not valid base64", iae);
+        }
+
+        return new DkimKeyRecord(keyType, decodeKey(keyType, der), split(tags.get("h")), nonNull(split(tags.get("t"))),
+                tags.containsKey("s") ? split(tags.get("s")) : Collections.singletonList("*"));
+    }
+
+    // the k= tag, rsa by default
+    public String getKeyType() {
+        return keyType;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    // the h= tag, null if all hash algorithms are acceptable
+    public @Nullable List<String> getHashAlgorithms() {
+        return hashAlgorithms;
+    }
+
+    // t=y, the domain is testing DKIM; verifiers must not treat such messages differently
+    public boolean isTesting() {
+        return flags.contains("y");
+    }
+
+    // t=s, the i= of a signature must have the same domain as its d=, not a subdomain
+    public boolean isStrict() {
+        return flags.contains("s");
+    }
+
+    // whether the s= tag allows the key to be used for email
+    public boolean isEmailKey() {
+        return serviceTypes.contains("*") || serviceTypes.contains("email");
+    }
+
+    boolean allowsHash(String hashAlgorithm) {
+        return hashAlgorithms == null || hashAlgorithms.contains(hashAlgorithm);
+    }
+
+    private static PublicKey decodeKey(String keyType, byte[] der) throws DkimSignerException {
+
+        try {
+            if ("ed25519".equals(keyType)) {
+                if (der.length != 32) {
+                    throw new DkimSignerException("An Ed25519 public key has 32 bytes, the key record has " + der.length);
+                }
+                final byte[] spki = Arrays.copyOf(ED25519_KEY_PREFIX, ED25519_KEY_PREFIX.length + 32);
+                System.arraycopy(der, 0, spki, ED25519_KEY_PREFIX.length, 32);
+                return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(spki));
+            }
+            if (!"rsa".equals(keyType)) {
+                throw new DkimSignerException("The key type " + keyType + " is not supported");
+            }
+
+            final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            try {
+                return keyFactory.generatePublic(new X509EncodedKeySpec(der));
+            } catch (InvalidKeySpecException ikse) {
+                return keyFactory.generatePublic(new X509EncodedKeySpec(RsaKeyEncoding.subjectPublicKeyInfo(der)));
+            }
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new DkimSignerException("The key type " + keyType + " is not known by the JVM", nsae);
+        } catch (InvalidKeySpecException ikse) {
+            throw new DkimSignerException("The public key of the key record could not be decoded", ikse);
+        }
+    }
+
+    // a colon separated list such as h=sha1:sha256, lower case
+    private static @Nullable List<String> split(@Nullable String value) {
+
+        if (value == null) {
+            return null;
+        }
+
+        final List<String> items = new ArrayList<String>();
+        for (String item : value.split(":")) {
+            final String trimmed = item.trim().toLowerCase(Locale.ROOT);
+            if (!trimmed.isEmpty()) {
+                items.add(trimmed);
+            }
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    private static List<String> nonNull(@Nullable List<String> list) {
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+
+    @Override
+    public String toString() {
+        return "DkimKeyRecord{k=" + keyType + ", h=" + hashAlgorithms + ", t=" + flags + ", s=" + serviceTypes + '}';
+    }
+
+}
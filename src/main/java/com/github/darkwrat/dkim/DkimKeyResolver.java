@@ -0,0 +1,272 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+ * Fetches and parses the DKIM key records of signing domains and keeps them for the TTL of
+ * their records, so verifying many messages of one sender costs one DNS query and one key
+ * parse. Lookups run on an executor and concurrent requests for the same selector share a
+ * single lookup.
+ *
+ * Names without a usable key record are remembered for the negative TTL; temporary failures
+ * are not cached, the next request tries again. The cache holds at most maximumSize names,
+ * beyond that the least recently used ones are dropped.
+ */
+
+public class DkimKeyResolver {
+
+    private static final long DEFAULT_TTL_SECONDS = 3600;
+    private static final long MAXIMUM_TTL_SECONDS = 86400;
+    private static final long NEGATIVE_TTL_SECONDS = 300;
+
+    private final TxtRecordLookup lookup;
+    private final Executor executor;
+    private final int maximumSize;
+    private final long defaultTtlNanos;
+    private final long maximumTtlNanos;
+    private final long negativeTtlNanos;
+    private final DkimMetrics metrics;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong clock = new AtomicLong();
+
+    public DkimKeyResolver(TxtRecordLookup lookup) {
+        this(builder(lookup));
+    }
+
+    private DkimKeyResolver(Builder builder) {
+        this.lookup = builder.lookup;
+        this.executor = builder.executor != null ? builder.executor : LookupPool.EXECUTOR;
+        this.maximumSize = builder.maximumSize;
+        this.defaultTtlNanos = builder.defaultTtlNanos;
+        this.maximumTtlNanos = builder.maximumTtlNanos;
+        this.negativeTtlNanos = builder.negativeTtlNanos;
+        this.metrics = builder.metrics;
+    }
+
+    public static Builder builder(TxtRecordLookup lookup) {
+        return new Builder(lookup);
+    }
+
+    /*
+     * The key record of selector._domainkey.domain. The future fails with a DkimSignerException
+     * if there is no usable key record (a PERMERROR of the signature) and with an IOException if
+     * the lookup failed temporarily (a TEMPERROR).
+     */
+    public CompletableFuture<DkimKeyRecord> resolve(String domain, String selector) {
+        // callers get a stage of their own, completing or cancelling it leaves the cached one alone
+        return entry(domain, selector).future.thenApply(Function.identity());
+    }
+
+    /*
+     * Like resolve(), waiting for the result on the calling thread.
+     */
+    DkimKeyRecord get(String domain, String selector) throws IOException, DkimSignerException {
+
+        try {
+            return entry(domain, selector).future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the key of " + selector + "._domainkey." + domain);
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof DkimSignerException) {
+                throw (DkimSignerException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("The key lookup failed", cause);
+        }
+    }
+
+    /*
+     * Drops the cached key record, e.g. after a key rotation; the next request looks it up again.
+     */
+    public void invalidate(String domain, String selector) {
+        entries.remove(recordName(domain, selector));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private Entry entry(String domain, String selector) {
+
+        final String name = recordName(domain, selector);
+        final long now = System.nanoTime();
+        final Entry entry = entries.compute(name, (key, current) -> current == null || current.isExpired(now) ? new Entry() : current);
+        entry.lastAccess = clock.incrementAndGet();
+
+        // a request that joins a lookup in flight counts as a hit
+        final boolean miss = entry.started.compareAndSet(false, true);
+        metrics.keyCacheAccess(DkimMetrics.KeyCache.KEY_RECORDS, !miss);
+        if (miss) {
+            if (entries.size() > maximumSize) {
+                LeastRecentlyUsed.evict(entries, maximumSize, e -> e.lastAccess);
+            }
+            try {
+                executor.execute(() -> load(name, entry));
+            } catch (RejectedExecutionException ree) {
+                entries.remove(name, entry);
+                entry.future.completeExceptionally(new IOException("The key lookup of " + name + " was rejected", ree));
+            }
+        }
+        return entry;
+    }
+
+    private void load(String name, Entry entry) {
+
+        try {
+            final TxtRecordLookup.Answer answer = lookup.query(name);
+            final DkimKeyRecord key = parse(answer.getRecords());
+            final long ttl = answer.getTtlSeconds() < 0 ? defaultTtlNanos : Math.min(TimeUnit.SECONDS.toNanos(answer.getTtlSeconds()), maximumTtlNanos);
+            // the expiry has to be in place before waiting callers see the entry as done
+            entry.expires = System.nanoTime() + ttl;
+            entry.future.complete(key);
+        } catch (DkimSignerException e) {
+            entry.expires = System.nanoTime() + negativeTtlNanos;
+            entry.future.completeExceptionally(e);
+        } catch (IOException | RuntimeException e) {
+            entries.remove(name, entry);
+            entry.future.completeExceptionally(e);
+        }
+    }
+
+    // several records are not meant to be, the first usable one is taken
+    private static DkimKeyRecord parse(List<String> records) throws DkimSignerException {
+
+        if (records.isEmpty()) {
+            throw new DkimSignerException("no key for signature");
+        }
+
+        DkimSignerException failure = null;
+        for (String record : records) {
+            try {
+                return DkimKeyRecord.parse(record);
+            } catch (DkimSignerException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        throw failure;
+    }
+
+    private static String recordName(String domain, String selector) {
+        return selector.trim().toLowerCase(Locale.ROOT) + "._domainkey." + StaticTxtRecordLookup.normalizeName(domain);
+    }
+
+    public static final class Builder {
+
+        private final TxtRecordLookup lookup;
+        private @Nullable Executor executor = null;
+        private int maximumSize = 10000;
+        private long defaultTtlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+        private long maximumTtlNanos = TimeUnit.SECONDS.toNanos(MAXIMUM_TTL_SECONDS);
+        private long negativeTtlNanos = TimeUnit.SECONDS.toNanos(NEGATIVE_TTL_SECONDS);
+        private DkimMetrics metrics = DkimMetrics.NOOP;
+
+        private Builder(TxtRecordLookup lookup) {
+            this.lookup = lookup;
+        }
+
+        /*
+         * Where the lookups run, a small shared pool of daemon threads by default. Runnable::run
+         * looks up on the requesting thread, concurrent requests still wait for that one lookup.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder maximumSize(int maximumSize) {
+            if (maximumSize < 1) {
+                throw new IllegalArgumentException("maximumSize has to be positive, got " + maximumSize);
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        // for records whose TTL the lookup doesn't know, JNDI doesn't tell
+        public Builder defaultTtl(long ttl, TimeUnit unit) {
+            this.defaultTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        // caps the TTLs of the records
+        public Builder maximumTtl(long ttl, TimeUnit unit) {
+            this.maximumTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        // for names without a usable key record
+        public Builder negativeTtl(long ttl, TimeUnit unit) {
+            this.negativeTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        // reports every request as a hit or miss of the KEY_RECORDS key cache
+        public Builder metrics(DkimMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public DkimKeyResolver build() {
+            return new DkimKeyResolver(this);
+        }
+    }
+
+    private static final class Entry {
+
+        private final CompletableFuture<DkimKeyRecord> future = new CompletableFuture<DkimKeyRecord>();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile long expires;
+        private volatile long lastAccess;
+
+        // an entry is current until it has been loaded and its TTL has passed
+        boolean isExpired(long now) {
+            return future.isDone() && now - expires >= 0;
+        }
+    }
+
+    // created on first use, a resolver with an executor of its own doesn't start these threads
+    private static final class LookupPool {
+
+        private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(8, 8, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LookupThreadFactory());
+
+        static {
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static final class LookupThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "dkim-key-resolver-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
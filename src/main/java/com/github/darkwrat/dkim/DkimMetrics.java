@@ -0,0 +1,69 @@
+package com.github.darkwrat.dkim;
+
+/*
+ * Listener for the timings and counts of the signing path, e.g. to feed Micrometer timers
+ * and counters without this library depending on them. All methods do nothing by default,
+ * implement the ones of interest. They are called on the signing threads, so they should be
+ * quick and thread-safe.
+ *
+ * Set it with DkimSignerConfig.Builder.metrics() and for the key caches on DkimSignerRegistry
+ * and DkimKeyResolver. With NOOP, the default, the clock isn't even read.
+ */
+
+public interface DkimMetrics {
+
+    DkimMetrics NOOP = new DkimMetrics() {
+    };
+
+    /*
+     * A body canonicalized and hashed: bodyBytes were read, hashedBytes of canonical body went
+     * into the digest. Both steps run interleaved in one streaming pass, so nanos is the time
+     * spent in the two of them together; it doesn't include encoding or reading the body.
+     */
+    default void bodyHashed(Canonicalization canonicalization, long bodyBytes, long hashedBytes, long nanos) {
+    }
+
+    /*
+     * The body of an SmtpDkimMessage encoded for sending. The body hashes are computed along
+     * the way, so nanos includes the time also reported by bodyHashed().
+     */
+    default void bodyEncoded(long bytes, long nanos) {
+    }
+
+    // the header fields to sign selected and canonicalized, next to nothing if another signature of the message did it
+    default void headerCanonicalized(Canonicalization canonicalization, long nanos) {
+    }
+
+    /*
+     * The private key operation of one signature, prehashing for Ed25519 included. Filling in
+     * the tags of the signature field, canonicalizing it and encoding the result are too
+     * quick to be worth a timer and not part of any.
+     */
+    default void signed(SigningAlgorithm algorithm, long nanos) {
+    }
+
+    default void signingFailed(Failure failure) {
+    }
+
+    default void keyCacheAccess(KeyCache cache, boolean hit) {
+    }
+
+    enum Failure {
+        // the identity of the sign options is not in the signing domain
+        IDENTITY,
+        // header fields to sign are missing or could not be canonicalized
+        HEADER,
+        // the body could not be encoded or canonicalized
+        BODY,
+        // the private key operation failed
+        SIGNATURE
+    }
+
+    enum KeyCache {
+        // the signers of a DkimSignerRegistry with their private keys
+        SIGNERS,
+        // the public key records of a DkimKeyResolver
+        KEY_RECORDS
+    }
+
+}
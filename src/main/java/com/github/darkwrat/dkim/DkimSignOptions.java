@@ -0,0 +1,93 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+/*
+ * Immutable per-message signing options. Everything left unset falls back to the
+ * DkimSignerConfig of the signer, so DEFAULT signs exactly as configured.
+ */
+
+public final class DkimSignOptions {
+
+    public static final DkimSignOptions DEFAULT = builder().build();
+
+    private final @Nullable String identity;
+    private final String[] additionalHeadersToSign;
+    private final @Nullable Boolean lengthParam;
+    private final @Nullable Boolean zParam;
+
+    private DkimSignOptions(Builder builder) {
+        this.identity = builder.identity;
+        this.additionalHeadersToSign = builder.additionalHeadersToSign;
+        this.lengthParam = builder.lengthParam;
+        this.zParam = builder.zParam;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static DkimSignOptions withIdentity(@Nullable String identity) {
+        return builder().identity(identity).build();
+    }
+
+    public @Nullable String getIdentity() {
+        return identity;
+    }
+
+    public String[] getAdditionalHeadersToSign() {
+        return additionalHeadersToSign.clone();
+    }
+
+    public @Nullable Boolean getLengthParam() {
+        return lengthParam;
+    }
+
+    public @Nullable Boolean getZParam() {
+        return zParam;
+    }
+
+    String[] additionalHeadersToSign() {
+        return additionalHeadersToSign;
+    }
+
+    public static final class Builder {
+
+        private @Nullable String identity = null;
+        private String[] additionalHeadersToSign = new String[0];
+        private @Nullable Boolean lengthParam = null;
+        private @Nullable Boolean zParam = null;
+
+        private Builder() {
+        }
+
+        /*
+         * The address or user-id on behalf of which the message is signed (i= tag); the domain
+         * part has to be the signing domain or one of its subdomains.
+         */
+        public Builder identity(@Nullable String identity) {
+            this.identity = identity;
+            return this;
+        }
+
+        public Builder additionalHeadersToSign(String... headers) {
+            this.additionalHeadersToSign = headers.clone();
+            return this;
+        }
+
+        public Builder lengthParam(boolean lengthParam) {
+            this.lengthParam = lengthParam;
+            return this;
+        }
+
+        public Builder zParam(boolean zParam) {
+            this.zParam = zParam;
+            return this;
+        }
+
+        public DkimSignOptions build() {
+            return new DkimSignOptions(this);
+        }
+    }
+
+}
@@ -1,378 +1,373 @@
 package com.github.darkwrat.dkim;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.mail.MessagingException;
 
-import com.sun.mail.util.CRLFOutputStream;
-
 
 /*
  * Main class providing a signature according to DKIM RFC 4871.
+ *
+ * A signer may be shared by many threads: the JCA objects are kept per thread by its
+ * SigningContext and sign() works on the immutable DkimSignerConfig current at the time
+ * of the call, per-message settings come in as DkimSignOptions.
  * 
  * @author Florian Sager, http://www.agitos.de, 15.10.2008
  */
 
 public class DkimSigner {
 
-    private static final String DKIM_SIGNATURE_HEADER = "DKIM-Signature";
-    private static final int MAX_HEADER_LENGTH = 67;
-
-    private static ArrayList<String> minimumHeadersToSign = new ArrayList<String>();
+    private volatile DkimSignerConfig config;
 
-    static {
-        minimumHeadersToSign.add("From");
-        minimumHeadersToSign.add("Subject");
+    public DkimSigner(DkimSignerConfig config) {
+        this.config = config;
     }
 
-    private String[] defaultHeadersToSign = new String[]{
-            "Content-Description", "Content-ID", "Content-Type", "Content-Transfer-Encoding", "Cc",
-            "Date", "From", "In-Reply-To", "List-Subscribe", "List-Post", "List-Owner", "List-Id",
-            "List-Archive", "List-Help", "List-Unsubscribe", "MIME-Version", "Message-ID", "Resent-Sender",
-            "Resent-Cc", "Resent-Date", "Resent-To", "Reply-To", "References", "Resent-Message-ID",
-            "Resent-From", "Sender", "Subject", "To"};
-
-    private SigningAlgorithm signingAlgorithm = SigningAlgorithm.SHA256withRSA; // use rsa-sha256 by default, see RFC 4871
-    private Signature signatureService;
-    private MessageDigest messageDigest;
-    private String signingDomain;
-    private String selector;
-    private String identity = null;
-    private boolean lengthParam = false;
-    private boolean zParam = false;
-    private Canonicalization headerCanonicalization = Canonicalization.RELAXED;
-    private Canonicalization bodyCanonicalization = Canonicalization.SIMPLE;
-    private PrivateKey privkey;
-
     public DkimSigner(String signingDomain, String selector, PrivateKey privkey) throws Exception {
-        initDKIMSigner(signingDomain, selector, privkey);
+        this.config = DkimSignerConfig.builder(signingDomain, selector, privkey).build();
     }
 
+    /*
+     * Reads the private key from a PEM or DER file, PKCS#8 or PKCS#1 (RSA only).
+     */
     public DkimSigner(String signingDomain, String selector, String privkeyFilename) throws Exception {
-
-        final File privKeyFile = new File(privkeyFilename);
-
-        // read private key DER file
-        final DataInputStream dis = new DataInputStream(new FileInputStream(privKeyFile));
-        final byte[] privKeyBytes = new byte[(int) privKeyFile.length()];
-        dis.read(privKeyBytes);
-        dis.close();
-
-        final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-
-        // decode private key
-        final PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(privKeyBytes);
-        final RSAPrivateKey privKey = (RSAPrivateKey) keyFactory.generatePrivate(privSpec);
-
-        initDKIMSigner(signingDomain, selector, privKey);
+        this.config = DkimSignerConfig.builder(signingDomain, selector, PrivateKeyReader.read(Paths.get(privkeyFilename))).build();
     }
 
-    private void initDKIMSigner(String signingDomain, String selector, PrivateKey privkey) throws DkimSignerException {
+    public DkimSigner(String signingDomain, String selector, KeyProvider keyProvider) throws DkimSignerException {
 
-        if (!DkimUtil.isValidDomain(signingDomain)) {
-            throw new DkimSignerException(signingDomain + " is an invalid signing domain");
+        final PrivateKey privkey = keyProvider.getKey(signingDomain, selector);
+        if (privkey == null) {
+            throw new DkimSignerException("There is no private key for selector " + selector + " of " + signingDomain);
         }
+        this.config = DkimSignerConfig.builder(signingDomain, selector, privkey).build();
+    }
 
-        this.signingDomain = signingDomain;
-        this.selector = selector.trim();
-        this.privkey = privkey;
-        this.setSigningAlgorithm(this.signingAlgorithm);
+    public DkimSignerConfig getConfig() {
+        return config;
+    }
+
+    /*
+     * The setters below are kept for existing callers; each one replaces the immutable
+     * configuration as a whole. Prefer building a DkimSignerConfig up front and passing
+     * per-message settings as DkimSignOptions when a signer is shared between threads.
+     */
+    public synchronized void setConfig(DkimSignerConfig config) {
+        this.config = config;
     }
 
     public String getSigningDomain() {
-        return signingDomain;
+        return config.getSigningDomain();
     }
 
     public String getSelector() {
-        return selector;
+        return config.getSelector();
     }
 
     public String getIdentity() {
-        return identity;
+        return config.getIdentity();
     }
 
-    public void setIdentity(String identity) throws DkimSignerException {
-
-        if (identity != null) {
-            identity = identity.trim();
-            if (!identity.endsWith('@' + signingDomain) && !identity.endsWith('.' + signingDomain)) {
-                throw new DkimSignerException("The domain part of " + identity + " has to be " + signingDomain + " or its subdomain");
-            }
-        }
-
-        this.identity = identity;
+    public synchronized void setIdentity(String identity) throws DkimSignerException {
+        this.config = config.toBuilder().identity(identity).build();
     }
 
     public Canonicalization getBodyCanonicalization() {
-        return bodyCanonicalization;
+        return config.getBodyCanonicalization();
     }
 
-    public void setBodyCanonicalization(Canonicalization bodyCanonicalization) throws DkimSignerException {
-        this.bodyCanonicalization = bodyCanonicalization;
+    public synchronized void setBodyCanonicalization(Canonicalization bodyCanonicalization) throws DkimSignerException {
+        this.config = config.toBuilder().bodyCanonicalization(bodyCanonicalization).build();
     }
 
     public Canonicalization getHeaderCanonicalization() {
-        return headerCanonicalization;
+        return config.getHeaderCanonicalization();
     }
 
-    public void setHeaderCanonicalization(Canonicalization headerCanonicalization) throws DkimSignerException {
-        this.headerCanonicalization = headerCanonicalization;
+    public synchronized void setHeaderCanonicalization(Canonicalization headerCanonicalization) throws DkimSignerException {
+        this.config = config.toBuilder().headerCanonicalization(headerCanonicalization).build();
     }
 
     public String[] getDefaultHeadersToSign() {
-        return defaultHeadersToSign;
+        return config.getHeadersToSign();
     }
 
-    public void addHeaderToSign(String header) {
-
-        if (header == null || header.isEmpty()) return;
-
-        final int len = this.defaultHeadersToSign.length;
-        final String[] headersToSign = new String[len + 1];
-        for (int i = 0; i < len; i++) {
-            if (header.equals(this.defaultHeadersToSign[i])) {
-                return;
-            }
-            headersToSign[i] = this.defaultHeadersToSign[i];
-        }
-
-        headersToSign[len] = header;
-
-        this.defaultHeadersToSign = headersToSign;
+    public synchronized void addHeaderToSign(String header) {
+        this.config = rebuild(config.toBuilder().addHeaderToSign(header));
     }
 
-    public void removeHeaderToSign(String header) {
-
-        if (header == null || header.isEmpty()) return;
-
-        final int len = this.defaultHeadersToSign.length;
-        if (len == 0) return;
-
-        final String[] headersToSign = new String[len - 1];
-
-        int found = 0;
-        for (int i = 0; i < len - 1; i++) {
-
-            if (header.equals(this.defaultHeadersToSign[i + found])) {
-                found = 1;
-            }
-            headersToSign[i] = this.defaultHeadersToSign[i + found];
-        }
-
-        this.defaultHeadersToSign = headersToSign;
+    public synchronized void removeHeaderToSign(String header) {
+        this.config = rebuild(config.toBuilder().removeHeaderToSign(header));
     }
 
-    public void setLengthParam(boolean lengthParam) {
-        this.lengthParam = lengthParam;
+    public synchronized void setLengthParam(boolean lengthParam) {
+        this.config = rebuild(config.toBuilder().lengthParam(lengthParam));
     }
 
     public boolean getLengthParam() {
-        return lengthParam;
+        return config.getLengthParam();
     }
 
     public boolean isZParam() {
-        return zParam;
+        return config.isZParam();
     }
 
-    public void setZParam(boolean param) {
-        zParam = param;
+    public synchronized void setZParam(boolean param) {
+        this.config = rebuild(config.toBuilder().zParam(param));
+    }
+
+    private static DkimSignerConfig rebuild(DkimSignerConfig.Builder builder) {
+        try {
+            return builder.build();
+        } catch (DkimSignerException e) {
+            // domain and identity have been validated when the current config was built
+            throw new IllegalStateException(e.getMessage(), e);
+        }
     }
 
     public SigningAlgorithm getSigningAlgorithm() {
-        return signingAlgorithm;
+        return config.getSigningAlgorithm();
     }
 
-    public void setSigningAlgorithm(SigningAlgorithm signingAlgorithm) throws DkimSignerException {
+    public synchronized void setSigningAlgorithm(SigningAlgorithm signingAlgorithm) throws DkimSignerException {
+        this.config = config.toBuilder().signingAlgorithm(signingAlgorithm).build();
+    }
 
-        try {
-            this.messageDigest = MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation());
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new DkimSignerException("The hashing algorithm " + signingAlgorithm.getJavaHashNotation() + " is not known by the JVM", nsae);
+    /*
+     * Signs messages that share one prepared body, e.g. the copies of a newsletter for each
+     * recipient. The body hash is computed once up front and the per-message header signatures
+     * are created on the given executor. Every message keeps its signature, also through the
+     * saveChanges() of Transport.send(), so sending it afterwards only writes it out as long
+     * as it isn't modified. All messages have to be created with this signer.
+     */
+    public List<String> signBatch(List<? extends SmtpDkimMessage> messages, PreparedBody body, Executor executor) throws DkimSignerException, MessagingException {
+
+        // checked up front, so a rejected batch leaves all messages as they were
+        for (SmtpDkimMessage message : messages) {
+            if (message.getSigner() != this) {
+                throw new IllegalArgumentException("The message " + message + " is not signed by this signer");
+            }
         }
 
-        try {
-            this.signatureService = Signature.getInstance(signingAlgorithm.getJavaSecNotation());
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new DkimSignerException("The signing algorithm " + signingAlgorithm.getJavaSecNotation() + " is not known by the JVM", nsae);
+        final DkimSignerConfig config = this.config;
+        body.getBodyHash(config.getBodyCanonicalization(), config.getSigningContext(), config.getMetrics());
+
+        final List<CompletableFuture<String>> signatures = new ArrayList<CompletableFuture<String>>(messages.size());
+        for (final SmtpDkimMessage message : messages) {
+            message.setPreparedBody(body);
+
+            signatures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return message.sign();
+                } catch (MessagingException me) {
+                    throw new CompletionException(me);
+                }
+            }, executor));
         }
 
-        try {
-            this.signatureService.initSign(privkey);
-        } catch (InvalidKeyException ike) {
-            throw new DkimSignerException("The provided private key is invalid", ike);
+        final List<String> signatureHeaderLines = new ArrayList<String>(signatures.size());
+        for (CompletableFuture<String> signature : signatures) {
+            try {
+                signatureHeaderLines.add(signature.join());
+            } catch (CompletionException ce) {
+                if (ce.getCause() instanceof MessagingException) {
+                    throw (MessagingException) ce.getCause();
+                }
+                throw new DkimSignerException("Signing the batch failed", ce);
+            }
         }
 
-        this.signingAlgorithm = signingAlgorithm;
+        return signatureHeaderLines;
     }
 
-    private String serializeDKIMSignature(Map<String, String> dkimSignature) {
-
-        final Set<Entry<String, String>> entries = dkimSignature.entrySet();
-        final StringBuilder buf = new StringBuilder();
-        int pos = 0;
+    public String sign(SmtpDkimMessage message) throws DkimSignerException, MessagingException {
+        return sign(message, message.getSignOptions());
+    }
 
-        for (Entry<String, String> entry : entries) {
-            // buf.append(entry.getKey()).append("=").append(entry.getValue()).append(";\t");
+    public String sign(SmtpDkimMessage message, DkimSignOptions options) throws DkimSignerException, MessagingException {
+        return sign(message, options, this.config, new HeaderBlock(message));
+    }
 
-            final StringBuilder fbuf = new StringBuilder();
-            fbuf.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+    /*
+     * Signs a message in RFC 5322 format as it is, e.g. taken from a mail queue, without a
+     * MimeMessage: the header fields are canonicalized and the body hashed straight from the
+     * bytes. Returns the DKIM-Signature header line to put on top of the message.
+     */
+    public String sign(byte[] message) throws DkimSignerException {
+        return sign(ByteBuffer.wrap(message), DkimSignOptions.DEFAULT);
+    }
 
-            if (pos + fbuf.length() + 1 > MAX_HEADER_LENGTH) {
+    public String sign(ByteBuffer message) throws DkimSignerException {
+        return sign(message, DkimSignOptions.DEFAULT);
+    }
 
-                pos = fbuf.length();
+    /*
+     * Signs the message from the position to the limit of the buffer, a direct or mapped one
+     * is read in place.
+     */
+    public String sign(ByteBuffer message, DkimSignOptions options) throws DkimSignerException {
 
-                // line folding : this doesn't work "sometimes" --> maybe someone likes to debug this
-//                int i = 0;
-//                while (i < pos) {
-//                    if (fbuf.substring(i).length() > MAX_HEADER_LENGTH) {
-//                        buf.append("\r\n\t").append(fbuf.substring(i, i + MAX_HEADER_LENGTH));
-//                        i += MAX_HEADER_LENGTH;
-//                    } else {
-//                        buf.append("\r\n\t").append(fbuf.substring(i));
-//                        pos -= i;
-//                        break;
-//                    }
-//                }
+        final DkimSignerConfig config = this.config;
+        final RawMessage rawMessage = RawMessage.parse(message);
+        final BodyHasher bodyHasher = new BodyHasher(config.getBodyCanonicalization(), config.getSigningContext().getMessageDigest(), config.getMetrics());
+        final BodyHash bodyHash;
+        try {
+            rawMessage.writeBody(bodyHasher);
+            bodyHash = new BodyHash(bodyHasher.finish(), bodyHasher.getLength());
+        } catch (IOException ioe) {
+            config.getMetrics().signingFailed(DkimMetrics.Failure.BODY);
+            throw new DkimSignerException("The body canonicalization failed", ioe);
+        }
+        return sign(rawMessage, options, config, bodyHash);
+    }
 
-                buf.append("\r\n\t").append(fbuf);
+    public String sign(InputStream message) throws IOException, DkimSignerException {
+        return sign(message, DkimSignOptions.DEFAULT);
+    }
 
-            } else {
-                buf.append(' ').append(fbuf);
-                pos += fbuf.length() + 1;
-            }
+    /*
+     * Reads the message to its end, only the header is kept in memory. The stream is not closed.
+     */
+    public String sign(InputStream message, DkimSignOptions options) throws IOException, DkimSignerException {
+
+        final DkimSignerConfig config = this.config;
+        final byte[] chunk = new byte[64 * 1024];
+        final ByteBuilder header = new ByteBuilder(8 * 1024);
+        int headerEnd = -1;
+        int read;
+        while (headerEnd == -1 && (read = message.read(chunk)) != -1) {
+            // the empty line may have been cut between two reads
+            final int from = Math.max(0, header.length() - 1);
+            header.write(chunk, 0, read);
+            headerEnd = RawMessage.headerEnd(header.array(), 0, from, header.length());
         }
 
-        buf.append("\r\n\tb=");
+        // whatever was read beyond the header is the start of the body
+        final BodyHasher bodyHasher = new BodyHasher(config.getBodyCanonicalization(), config.getSigningContext().getMessageDigest(), config.getMetrics());
+        final int bodyStart = headerEnd == -1 ? header.length() : RawMessage.bodyStart(header.array(), headerEnd);
+        bodyHasher.write(header.array(), bodyStart, header.length() - bodyStart);
+        while ((read = message.read(chunk)) != -1) {
+            bodyHasher.write(chunk, 0, read);
+        }
+        final BodyHash bodyHash = new BodyHash(bodyHasher.finish(), bodyHasher.getLength());
 
-        return buf.toString().trim();
+        final RawMessage rawMessage = RawMessage.parseHeader(header.array(), 0, headerEnd == -1 ? header.length() : headerEnd);
+        return sign(rawMessage, options, config, bodyHash);
     }
 
-    private String foldSignedSignature(String s, int offset) {
+    public String sign(Path message) throws IOException, DkimSignerException {
+        return sign(message, DkimSignOptions.DEFAULT);
+    }
 
-        int i = 0;
-        final StringBuilder buf = new StringBuilder();
+    /*
+     * Signs a message file, e.g. in a spool directory, by mapping it into memory.
+     */
+    public String sign(Path message, DkimSignOptions options) throws IOException, DkimSignerException {
 
-        while (true) {
-            if (offset > 0 && s.substring(i).length() > MAX_HEADER_LENGTH - offset) {
-                buf.append(s.substring(i, i + MAX_HEADER_LENGTH - offset));
-                i += MAX_HEADER_LENGTH - offset;
-                offset = 0;
-            } else if (s.substring(i).length() > MAX_HEADER_LENGTH) {
-                buf.append("\r\n\t").append(s.substring(i, i + MAX_HEADER_LENGTH));
-                i += MAX_HEADER_LENGTH;
-            } else {
-                buf.append("\r\n\t").append(s.substring(i));
-                break;
+        try (FileChannel channel = FileChannel.open(message, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                // more than a single mapping can hold
+                return sign(Channels.newInputStream(channel), options);
             }
+            return sign(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), options);
         }
-
-        return buf.toString();
     }
 
-    public String sign(SmtpDkimMessage message) throws DkimSignerException, MessagingException {
-
-        final Map<String, String> dkimSignature = new LinkedHashMap<String, String>();
-        dkimSignature.put("v", "1");
-        dkimSignature.put("a", this.signingAlgorithm.getRfc4871Notation());
-        dkimSignature.put("q", "dns/txt");
-        dkimSignature.put("c", headerCanonicalization.getType() + '/' + bodyCanonicalization.getType());
-        dkimSignature.put("t", ((long) new Date().getTime() / 1000) + "");
-        dkimSignature.put("s", this.selector);
-        dkimSignature.put("d", this.signingDomain);
-
-        // set identity inside signature
-        if (identity != null) {
-            dkimSignature.put("i", DkimUtil.QuotedPrintable(identity));
+    private static String sign(RawMessage message, DkimSignOptions options, DkimSignerConfig config, BodyHash bodyHash) throws DkimSignerException {
+        try {
+            return sign(options, config, new HeaderBlock(message), bodyHash);
+        } catch (MessagingException me) {
+            // only reading the header of a MimeMessage throws this
+            throw new DkimSignerException(me.getMessage(), me);
         }
+    }
 
-        // process header
-        final ArrayList assureHeaders = (ArrayList) minimumHeadersToSign.clone();
-
-        // intersect defaultHeadersToSign with available headers
-        final StringBuilder headerList = new StringBuilder();
-        final StringBuilder headerContent = new StringBuilder();
-        final StringBuilder zParamString = new StringBuilder();
-
-        final Enumeration headerLines = message.getMatchingHeaderLines(defaultHeadersToSign);
-        while (headerLines.hasMoreElements()) {
-            final String header = (String) headerLines.nextElement();
-            final String[] headerParts = DkimUtil.splitHeader(header);
-            headerList.append(headerParts[0]).append(':');
-            headerContent.append(this.headerCanonicalization.canonicalizeHeader(headerParts[0], headerParts[1])).append("\r\n");
-            assureHeaders.remove(headerParts[0]);
-
-            // add optional z= header list, DKIM-Quoted-Printable
-            if (this.zParam) {
-                zParamString.append(headerParts[0]).append(':').append(DkimUtil.QuotedPrintable(headerParts[1].trim()).replace("|", "=7C")).append('|');
-            }
+    /*
+     * Signs with the given config, taking the canonicalized header fields from headers so
+     * several signers of one message can share them.
+     */
+    static String sign(SmtpDkimMessage message, DkimSignOptions options, DkimSignerConfig config, HeaderBlock headers) throws DkimSignerException, MessagingException {
+        // the body hash is computed once per prepared body and canonicalization
+        final BodyHash bodyHash;
+        try {
+            bodyHash = message.getBody().getBodyHash(config.getBodyCanonicalization(), config.getSigningContext(), config.getMetrics());
+        } catch (DkimSignerException | MessagingException e) {
+            config.getMetrics().signingFailed(DkimMetrics.Failure.BODY);
+            throw e;
         }
+        return sign(options, config, headers, bodyHash);
+    }
 
-        if (!assureHeaders.isEmpty()) {
-            throw new DkimSignerException("Could not find the header fields " + DkimUtil.concatArray(assureHeaders, ", ") + " for signing");
+    private static String sign(DkimSignOptions options, DkimSignerConfig config, HeaderBlock headers, BodyHash bodyHash) throws DkimSignerException, MessagingException {
+
+        final DkimMetrics metrics = config.getMetrics();
+        final boolean timed = metrics != DkimMetrics.NOOP;
+        final Canonicalization headerCanonicalization = config.getHeaderCanonicalization();
+        final String identity;
+        try {
+            identity = options.getIdentity() != null
+                    ? DkimSignerConfig.checkIdentity(options.getIdentity(), config.getSigningDomain())
+                    : config.getIdentity();
+        } catch (DkimSignerException e) {
+            metrics.signingFailed(DkimMetrics.Failure.IDENTITY);
+            throw e;
         }
+        final boolean lengthParam = options.getLengthParam() != null ? options.getLengthParam() : config.getLengthParam();
+        final boolean zParam = options.getZParam() != null ? options.getZParam() : config.isZParam();
 
-        dkimSignature.put("h", headerList.substring(0, headerList.length() - 1));
+        final SignatureTemplate.Field field = config.signatureTemplate().newField();
+        field.tag("t", Long.toString(System.currentTimeMillis() / 1000));
 
-        if (this.zParam) {
-            final String zParamTemp = zParamString.toString();
-            dkimSignature.put("z", zParamTemp.substring(0, zParamTemp.length() - 1));
+        // set identity inside signature
+        if (identity != null) {
+            field.tag("i", DkimUtil.QuotedPrintable(identity));
         }
 
-        // process body
-        String body = message.getEncodedBody();
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        final CRLFOutputStream crlfos = new CRLFOutputStream(baos);
+        // process header
+        final long headerStart = timed ? System.nanoTime() : 0;
+        final HeaderBlock.Canonical canonicalHeaders;
         try {
-            crlfos.write(body.getBytes());
-        } catch (IOException e) {
-            throw new DkimSignerException("The body conversion to MIME canonical CRLF line terminator failed", e);
+            canonicalHeaders = headers.canonicalize(headerCanonicalization, config.headerPlan().extend(options.additionalHeadersToSign()), zParam);
+        } catch (DkimSignerException | MessagingException e) {
+            metrics.signingFailed(DkimMetrics.Failure.HEADER);
+            throw e;
+        }
+        if (timed) {
+            metrics.headerCanonicalized(headerCanonicalization, System.nanoTime() - headerStart);
         }
-        body = baos.toString();
 
-        try {
-            body = this.bodyCanonicalization.canonicalizeBody(body);
-        } catch (IOException ioe) {
-            throw new DkimSignerException("The body canonicalization failed", ioe);
+        field.tag("h", canonicalHeaders.getHeaderList());
+
+        if (zParam) {
+            field.tag("z", canonicalHeaders.getZParam());
         }
 
-        if (this.lengthParam) {
-            dkimSignature.put("l", body.length() + "");
+        if (lengthParam) {
+            field.tag("l", Long.toString(bodyHash.getLength()));
         }
 
-        // calculate and encode body hash
-        dkimSignature.put("bh", DkimUtil.base64Encode(this.messageDigest.digest(body.getBytes())));
+        field.tag("bh", bodyHash.getEncoded());
 
         // create signature
-        final String serializedSignature = serializeDKIMSignature(dkimSignature);
-
-        final byte[] signedSignature;
         try {
-            signatureService.update(headerContent.append(this.headerCanonicalization.canonicalizeHeader(DKIM_SIGNATURE_HEADER, ' ' + serializedSignature)).toString().getBytes());
-            signedSignature = signatureService.sign();
-        } catch (SignatureException se) {
-            throw new DkimSignerException("The signing operation by Java security failed", se);
+            return field.sign(canonicalHeaders.getContent(), metrics);
+        } catch (DkimSignerException e) {
+            metrics.signingFailed(DkimMetrics.Failure.SIGNATURE);
+            throw e;
         }
-
-        return DKIM_SIGNATURE_HEADER + ": " + serializedSignature + foldSignedSignature(DkimUtil.base64Encode(signedSignature), 3);
     }
 }
@@ -0,0 +1,275 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.security.PrivateKey;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Immutable signing configuration of a DkimSigner. Instances are created by a Builder,
+ * validated once and can be used by any number of threads at the same time; per-message
+ * settings such as the identity are passed to DkimSigner.sign() as DkimSignOptions.
+ */
+
+public final class DkimSignerConfig {
+
+    private static final String[] DEFAULT_HEADERS_TO_SIGN = new String[]{
+            "Content-Description", "Content-ID", "Content-Type", "Content-Transfer-Encoding", "Cc",
+            "Date", "From", "In-Reply-To", "List-Subscribe", "List-Post", "List-Owner", "List-Id",
+            "List-Archive", "List-Help", "List-Unsubscribe", "MIME-Version", "Message-ID", "Resent-Sender",
+            "Resent-Cc", "Resent-Date", "Resent-To", "Reply-To", "References", "Resent-Message-ID",
+            "Resent-From", "Sender", "Subject", "To"};
+
+    private final String signingDomain;
+    private final String selector;
+    private final SigningContext signingContext;
+    private final Canonicalization headerCanonicalization;
+    private final Canonicalization bodyCanonicalization;
+    private final String[] headersToSign;
+    private final String[] oversignedHeaders;
+    private final HeaderSigningPlan headerPlan;
+    private final SignatureTemplate signatureTemplate;
+    private final @Nullable String identity;
+    private final boolean lengthParam;
+    private final boolean zParam;
+    private final DkimMetrics metrics;
+
+    private DkimSignerConfig(Builder builder, SigningContext signingContext) throws DkimSignerException {
+        this.signingDomain = builder.signingDomain;
+        this.selector = builder.selector;
+        this.signingContext = signingContext;
+        this.headerCanonicalization = builder.headerCanonicalization;
+        this.bodyCanonicalization = builder.bodyCanonicalization;
+        this.headersToSign = toArray(builder.headersToSign.values());
+        this.oversignedHeaders = toArray(builder.oversignedHeaders.values());
+        this.headerPlan = HeaderSigningPlan.compile(headersToSign, oversignedHeaders);
+        this.identity = builder.identity;
+        this.lengthParam = builder.lengthParam;
+        this.zParam = builder.zParam;
+        this.metrics = builder.metrics;
+        this.signatureTemplate = SignatureTemplate.dkimSignature(signingContext, headerCanonicalization, bodyCanonicalization, selector, signingDomain);
+    }
+
+    public static Builder builder(String signingDomain, String selector, PrivateKey privkey) {
+        return new Builder(signingDomain, selector, privkey);
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public String getSigningDomain() {
+        return signingDomain;
+    }
+
+    public String getSelector() {
+        return selector;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return signingContext.getPrivateKey();
+    }
+
+    public SigningAlgorithm getSigningAlgorithm() {
+        return signingContext.getSigningAlgorithm();
+    }
+
+    public Canonicalization getHeaderCanonicalization() {
+        return headerCanonicalization;
+    }
+
+    public Canonicalization getBodyCanonicalization() {
+        return bodyCanonicalization;
+    }
+
+    public String[] getHeadersToSign() {
+        return headersToSign.clone();
+    }
+
+    public String[] getOversignedHeaders() {
+        return oversignedHeaders.clone();
+    }
+
+    public @Nullable String getIdentity() {
+        return identity;
+    }
+
+    public boolean getLengthParam() {
+        return lengthParam;
+    }
+
+    public boolean isZParam() {
+        return zParam;
+    }
+
+    public DkimMetrics getMetrics() {
+        return metrics;
+    }
+
+    SigningContext getSigningContext() {
+        return signingContext;
+    }
+
+    HeaderSigningPlan headerPlan() {
+        return headerPlan;
+    }
+
+    SignatureTemplate signatureTemplate() {
+        return signatureTemplate;
+    }
+
+    private static String[] toArray(Collection<String> headers) {
+        return headers.toArray(new String[headers.size()]);
+    }
+
+    // header field names are case-insensitive, the maps of the builder are keyed by the lower case name
+    private static void putHeader(Map<String, String> headers, String header) {
+        headers.putIfAbsent(header.trim().toLowerCase(Locale.ROOT), header.trim());
+    }
+
+    static @Nullable String checkIdentity(@Nullable String identity, String signingDomain) throws DkimSignerException {
+
+        if (identity != null) {
+            identity = identity.trim();
+            if (!identity.endsWith('@' + signingDomain) && !identity.endsWith('.' + signingDomain)) {
+                throw new DkimSignerException("The domain part of " + identity + " has to be " + signingDomain + " or its subdomain");
+            }
+        }
+
+        return identity;
+    }
+
+    public static final class Builder {
+
+        private final String signingDomain;
+        private final String selector;
+        private final PrivateKey privkey;
+        private @Nullable SigningContext signingContext;
+        private SigningAlgorithm signingAlgorithm; // rsa-sha256 by default (see RFC 4871), ed25519-sha256 for Ed25519 keys
+        private Canonicalization headerCanonicalization = Canonicalization.RELAXED;
+        private Canonicalization bodyCanonicalization = Canonicalization.SIMPLE;
+        private final Map<String, String> headersToSign = new LinkedHashMap<String, String>();
+        private final Map<String, String> oversignedHeaders = new LinkedHashMap<String, String>();
+        private @Nullable String identity = null;
+        private boolean lengthParam = false;
+        private boolean zParam = false;
+        private DkimMetrics metrics = DkimMetrics.NOOP;
+
+        private Builder(String signingDomain, String selector, PrivateKey privkey) {
+            this.signingDomain = signingDomain;
+            this.selector = selector.trim();
+            this.privkey = privkey;
+            this.signingAlgorithm = SigningAlgorithm.forKey(privkey);
+            headersToSign(DEFAULT_HEADERS_TO_SIGN);
+        }
+
+        private Builder(DkimSignerConfig config) {
+            this.signingDomain = config.signingDomain;
+            this.selector = config.selector;
+            this.privkey = config.getPrivateKey();
+            // keep the warmed up per-thread JCA instances as long as key and algorithm stay the same
+            this.signingContext = config.signingContext;
+            this.signingAlgorithm = config.getSigningAlgorithm();
+            this.headerCanonicalization = config.headerCanonicalization;
+            this.bodyCanonicalization = config.bodyCanonicalization;
+            headersToSign(config.headersToSign);
+            oversignHeaders(config.oversignedHeaders);
+            this.identity = config.identity;
+            this.lengthParam = config.lengthParam;
+            this.zParam = config.zParam;
+            this.metrics = config.metrics;
+        }
+
+        public Builder signingAlgorithm(SigningAlgorithm signingAlgorithm) {
+            this.signingAlgorithm = signingAlgorithm;
+            return this;
+        }
+
+        public Builder headerCanonicalization(Canonicalization headerCanonicalization) {
+            this.headerCanonicalization = headerCanonicalization;
+            return this;
+        }
+
+        public Builder bodyCanonicalization(Canonicalization bodyCanonicalization) {
+            this.bodyCanonicalization = bodyCanonicalization;
+            return this;
+        }
+
+        public Builder headersToSign(String... headersToSign) {
+            this.headersToSign.clear();
+            for (String header : headersToSign) {
+                addHeaderToSign(header);
+            }
+            return this;
+        }
+
+        public Builder addHeaderToSign(String header) {
+            if (header != null && !header.trim().isEmpty()) {
+                putHeader(headersToSign, header);
+            }
+            return this;
+        }
+
+        public Builder removeHeaderToSign(String header) {
+            if (header != null) {
+                headersToSign.remove(header.trim().toLowerCase(Locale.ROOT));
+            }
+            return this;
+        }
+
+        /*
+         * Fields listed in h= once more than they occur, so none can be added after signing
+         * (RFC 6376 8.15); they are signed even if missing from headersToSign. Candidates are
+         * From, Subject, To, Cc, Reply-To and Date.
+         */
+        public Builder oversignHeaders(String... oversignedHeaders) {
+            this.oversignedHeaders.clear();
+            for (String header : oversignedHeaders) {
+                if (header != null && !header.trim().isEmpty()) {
+                    putHeader(this.oversignedHeaders, header);
+                }
+            }
+            return this;
+        }
+
+        public Builder identity(@Nullable String identity) {
+            this.identity = identity;
+            return this;
+        }
+
+        public Builder lengthParam(boolean lengthParam) {
+            this.lengthParam = lengthParam;
+            return this;
+        }
+
+        public Builder zParam(boolean zParam) {
+            this.zParam = zParam;
+            return this;
+        }
+
+        public Builder metrics(DkimMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public DkimSignerConfig build() throws DkimSignerException {
+
+            if (!DkimUtil.isValidDomain(signingDomain)) {
+                throw new DkimSignerException(signingDomain + " is an invalid signing domain");
+            }
+
+            identity = checkIdentity(identity, signingDomain);
+
+            SigningContext context = this.signingContext;
+            if (context == null || context.getPrivateKey() != privkey || context.getSigningAlgorithm() != signingAlgorithm) {
+                context = new SigningContext(signingAlgorithm, privkey);
+            }
+
+            return new DkimSignerConfig(this, context);
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.security.PrivateKey;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Signers for many signing domains, e.g. the customer domains of a mail service. Signers
+ * are created on first use from a Loader and kept until the registry holds more than
+ * maximumSize of them, then the least recently used ones are dropped.
+ *
+ * Lookups of loaded signers don't lock. refresh() reloads the keys whose source has changed
+ * and swaps the new config into the existing signer, so messages being signed at that time
+ * finish with the old key and later ones use the new key.
+ */
+
+public class DkimSignerRegistry {
+
+    private final Loader loader;
+    private final String defaultSelector;
+    private final int maximumSize;
+    private final DkimMetrics metrics;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong clock = new AtomicLong();
+
+    /*
+     * defaultSelector is used for the lookups by domain only, e.g. signerFor(message).
+     */
+    public DkimSignerRegistry(Loader loader, String defaultSelector, int maximumSize) {
+        this(loader, defaultSelector, maximumSize, DkimMetrics.NOOP);
+    }
+
+    /*
+     * Reports every lookup as a hit or miss of the SIGNERS key cache to metrics.
+     */
+    public DkimSignerRegistry(Loader loader, String defaultSelector, int maximumSize, DkimMetrics metrics) {
+
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize has to be positive, got " + maximumSize);
+        }
+
+        this.loader = loader;
+        this.defaultSelector = defaultSelector;
+        this.maximumSize = maximumSize;
+        this.metrics = metrics;
+    }
+
+    /*
+     * Creates signers with the default settings for the keys of a KeyProvider, e.g. a
+     * DirectoryKeyProvider; refresh() picks up the keys whose version has changed.
+     */
+    public static Loader keys(KeyProvider keyProvider) {
+        return keys(keyProvider, UnaryOperator.identity());
+    }
+
+    /*
+     * Like keys(keyProvider), the customizer sets everything but domain, selector and key,
+     * e.g. the canonicalization.
+     */
+    public static Loader keys(final KeyProvider keyProvider, final UnaryOperator<DkimSignerConfig.Builder> customizer) {
+
+        return new Loader() {
+
+            @Override
+            public @Nullable DkimSignerConfig load(String domain, String selector) throws DkimSignerException {
+                final PrivateKey privkey = keyProvider.getKey(domain, selector);
+                return privkey == null ? null : customizer.apply(DkimSignerConfig.builder(domain, selector, privkey)).build();
+            }
+
+            @Override
+            public long version(String domain, String selector) {
+                return keyProvider.version(domain, selector);
+            }
+        };
+    }
+
+    /*
+     * The signer for domain and selector, or null if the loader has no key for them. Both are
+     * compared ignoring case, the loader gets them in lower case.
+     */
+    public @Nullable DkimSigner getSigner(String domain, String selector) throws DkimSignerException {
+
+        final String normalizedDomain = normalize(domain);
+        final String normalizedSelector = normalize(selector);
+        final String key = normalizedSelector + '/' + normalizedDomain;
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            final Entry created = new Entry(normalizedDomain, normalizedSelector);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                if (entries.size() > maximumSize) {
+                    LeastRecentlyUsed.evict(entries, maximumSize, e -> e.lastAccess);
+                }
+            }
+        }
+
+        entry.lastAccess = clock.incrementAndGet();
+        metrics.keyCacheAccess(DkimMetrics.KeyCache.SIGNERS, entry.loaded);
+        return entry.getSigner();
+    }
+
+    public @Nullable DkimSigner getSigner(String domain) throws DkimSignerException {
+        return getSigner(domain, defaultSelector);
+    }
+
+    /*
+     * The signer for the domain of the message's first From address with the default selector,
+     * or null if there is none.
+     */
+    public @Nullable DkimSigner signerFor(MimeMessage message) throws DkimSignerException, MessagingException {
+
+        final Address[] from = message.getFrom();
+        if (from == null || from.length == 0 || !(from[0] instanceof InternetAddress)) {
+            return null;
+        }
+
+        final String address = ((InternetAddress) from[0]).getAddress();
+        final int at = address == null ? -1 : address.lastIndexOf('@');
+        return at == -1 ? null : getSigner(address.substring(at + 1));
+    }
+
+    /*
+     * Drops the signer, it is loaded again on the next lookup.
+     */
+    public void invalidate(String domain, String selector) {
+        entries.remove(normalize(selector) + '/' + normalize(domain));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /*
+     * Reloads the signers whose key source reports a new version. A key that is gone takes
+     * its signer out of the registry, a key that fails to load leaves the old one in use.
+     */
+    public void refresh() {
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            try {
+                if (!entry.reload()) {
+                    it.remove();
+                }
+            } catch (DkimSignerException ignored) {
+                // e.g. a key file in the middle of being replaced, try again on the next refresh
+            }
+        }
+    }
+
+    /*
+     * Runs refresh() periodically on the given executor until the returned future is cancelled.
+     */
+    public ScheduledFuture<?> scheduleRefresh(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(this::refresh, period, period, unit);
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /*
+     * Source of the signer configs, e.g. a key directory or a database of tenants.
+     */
+    public interface Loader {
+
+        // the config for domain and selector, null if there is no key for them
+        @Nullable DkimSignerConfig load(String domain, String selector) throws DkimSignerException;
+
+        // changes whenever the key for domain and selector changes; keys are never reloaded by default
+        default long version(String domain, String selector) {
+            return 0;
+        }
+    }
+
+    private final class Entry {
+
+        private final String domain;
+        private final String selector;
+        private volatile boolean loaded = false;
+        private volatile @Nullable DkimSigner signer;
+        private long version;
+        private volatile long lastAccess;
+
+        private Entry(String domain, String selector) {
+            this.domain = domain;
+            this.selector = selector;
+        }
+
+        @Nullable DkimSigner getSigner() throws DkimSignerException {
+
+            if (!loaded) {
+                // concurrent first lookups of one domain wait for a single load
+                synchronized (this) {
+                    if (!loaded) {
+                        version = loader.version(domain, selector);
+                        final DkimSignerConfig config = loader.load(domain, selector);
+                        signer = config == null ? null : new DkimSigner(config);
+                        loaded = true;
+                    }
+                }
+            }
+            return signer;
+        }
+
+        // returns false if the key is gone
+        synchronized boolean reload() throws DkimSignerException {
+
+            if (!loaded) {
+                return true;
+            }
+
+            final long currentVersion = loader.version(domain, selector);
+            if (currentVersion == version) {
+                return true;
+            }
+
+            final DkimSignerConfig config = loader.load(domain, selector);
+            version = currentVersion;
+            if (config == null) {
+                return false;
+            }
+
+            final DkimSigner current = signer;
+            if (current == null) {
+                signer = new DkimSigner(config);
+            } else {
+                current.setConfig(config);
+            }
+            return true;
+        }
+    }
+
+}
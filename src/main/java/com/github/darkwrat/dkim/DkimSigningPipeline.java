@@ -0,0 +1,149 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Signs messages asynchronously on a dedicated pool, so the sending threads only hand over
+ * messages and later write the already signed result to their SMTP connections.
+ *
+ * At most maxPending messages are accepted at a time; submit() blocks the caller until a
+ * signature in flight has completed, which keeps memory bounded when producers are faster
+ * than the signing pool.
+ */
+
+public class DkimSigningPipeline implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final Semaphore pending;
+
+    public DkimSigningPipeline(int threads, int maxPending) {
+        this(Executors.newFixedThreadPool(threads, new SignerThreadFactory()), maxPending, true);
+    }
+
+    /*
+     * Runs on an executor managed by the caller, e.g. a ForkJoinPool; it is not shut down by close().
+     */
+    public DkimSigningPipeline(ExecutorService executor, int maxPending) {
+        this(executor, maxPending, false);
+    }
+
+    private DkimSigningPipeline(ExecutorService executor, int maxPending, boolean ownExecutor) {
+
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending has to be positive, got " + maxPending);
+        }
+
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.pending = new Semaphore(maxPending);
+    }
+
+    /*
+     * Queues the message for signing, waiting for a free slot if maxPending messages are in flight.
+     */
+    public CompletableFuture<SignedMessage> submit(SmtpDkimMessage message) throws InterruptedException {
+        pending.acquire();
+        return dispatch(message);
+    }
+
+    /*
+     * Like submit(), but gives up after the timeout and returns null then.
+     */
+    public @Nullable CompletableFuture<SignedMessage> trySubmit(SmtpDkimMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!pending.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return dispatch(message);
+    }
+
+    /*
+     * Signs a plain MimeMessage; the conversion to an SmtpDkimMessage happens on the pool too.
+     * An SmtpDkimMessage is not changed here, it has to carry this signer and these options
+     * already; a copy of it would be written out with its own signature.
+     */
+    public CompletableFuture<SignedMessage> submit(MimeMessage message, DkimSigner signer, DkimSignOptions signOptions) throws InterruptedException {
+
+        if (message instanceof SmtpDkimMessage) {
+            final SmtpDkimMessage dkimMessage = (SmtpDkimMessage) message;
+            if (dkimMessage.getSigner() != signer || dkimMessage.getSignOptions() != signOptions) {
+                throw new IllegalArgumentException("The message " + message + " is set up for another signer or other sign options");
+            }
+            return submit(dkimMessage);
+        }
+
+        pending.acquire();
+        return run(() -> sign(new SmtpDkimMessage(message, signer, signOptions)));
+    }
+
+    private CompletableFuture<SignedMessage> dispatch(SmtpDkimMessage message) {
+        return run(() -> sign(message));
+    }
+
+    private CompletableFuture<SignedMessage> run(SigningTask task) {
+
+        final CompletableFuture<SignedMessage> result = new CompletableFuture<SignedMessage>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    pending.release();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            pending.release();
+            result.completeExceptionally(ree);
+        }
+        return result;
+    }
+
+    private static SignedMessage sign(SmtpDkimMessage message) throws MessagingException {
+        return new SignedMessage(message, message.signAll());
+    }
+
+    /*
+     * Stops accepting messages; signatures in flight are completed. An executor passed in by
+     * the caller is left running.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private interface SigningTask {
+        SignedMessage call() throws MessagingException;
+    }
+
+    private static final class SignerThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+        private final int poolNumber = POOL_NUMBER.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "dkim-signer-" + poolNumber + '-' + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -3,21 +3,11 @@ package com.github.darkwrat.dkim;
 import com.sun.mail.util.QPEncoderStream;
 import org.jetbrains.annotations.Nullable;
 
-import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.interfaces.RSAPrivateKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Base64;
-import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +17,13 @@ import java.util.regex.Pattern;
 
 public class DkimUtil {
 
+    // shared by all checks, so repeated checks of a domain don't query DNS each time; a missing
+    // key isn't remembered, it may be published right after the check failed
+    private static final DkimKeyResolver KEY_RESOLVER = DkimKeyResolver.builder(TxtRecordLookup.dns())
+            .executor(Runnable::run)
+            .negativeTtl(0, TimeUnit.SECONDS)
+            .build();
+
     protected static String[] splitHeader(String header) throws DkimSignerException {
         final int colonPos = header.indexOf(':');
         if (colonPos == -1) {
@@ -55,12 +52,15 @@ public class DkimUtil {
 
         try {
             final ByteArrayOutputStream boas = new ByteArrayOutputStream();
-            final QPEncoderStream encodeStream = new QPEncoderStream(boas);
+            // no soft line breaks, values are folded by HeaderFolder
+            final QPEncoderStream encodeStream = new QPEncoderStream(boas, Integer.MAX_VALUE);
             encodeStream.write(s.getBytes());
 
             String encoded = boas.toString();
             encoded = encoded.replaceAll(";", "=3B");
             encoded = encoded.replaceAll(" ", "=20");
+            // the line breaks of folded fields and tabs aren't dkim-safe-chars either
+            encoded = encoded.replace("\t", "=09").replace("\r", "=0D").replace("\n", "=0A");
 
             return encoded;
 
@@ -78,59 +78,23 @@ public class DkimUtil {
         return encoded.replace("\r", ""); // Win --> FSTODO: select Encoder without line termination
     }
 
+    /*
+     * Checks that a usable public key is published for the selector of the signing domain.
+     */
     public boolean checkDNSForPublickey(String signingDomain, String selector) throws DkimSignerException {
 
-        final Hashtable<String, String> env = new Hashtable<>();
-        env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-        final String recordname = selector + "._domainkey." + signingDomain;
-        String value = null;
-
+        // "v=DKIM1; g=*; k=rsa; p=MIGfMA0G ..."
         try {
-            final DirContext dnsContext = new InitialDirContext(env);
-
-            final Attributes attribs = dnsContext.getAttributes(recordname, new String[]{"TXT"});
-            final Attribute txtrecord = attribs.get("txt");
-
-            if (txtrecord == null) {
-                throw new DkimSignerException("There is no TXT record available for " + recordname);
-            }
-
-            // "v=DKIM1; g=*; k=rsa; p=MIGfMA0G ..."
-            value = (String) txtrecord.get();
-
-        } catch (NamingException ne) {
-            throw new DkimSignerException("Selector lookup failed", ne);
+            KEY_RESOLVER.get(signingDomain, selector);
+        } catch (IOException ioe) {
+            throw new DkimSignerException("Selector lookup failed", ioe);
+        } catch (DkimSignerException e) {
+            throw new DkimSignerException("No public key available in " + selector + "._domainkey." + signingDomain, e);
         }
 
-        if (value == null) {
-            throw new DkimSignerException("Value of RR " + recordname + " couldn't be retrieved");
-        }
-
-        // try to read public key from RR
-        final String[] tags = value.split(";");
-        for (String tag : tags) {
-            tag = tag.trim();
-            if (tag.startsWith("p=")) {
-
-                try {
-                    final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-
-                    // decode public key, FSTODO: convert to DER format
-                    final PKCS8EncodedKeySpec pubSpec = new PKCS8EncodedKeySpec(tag.substring(2).getBytes());
-                    final RSAPrivateKey pubKey = (RSAPrivateKey) keyFactory.generatePublic(pubSpec);
-                } catch (NoSuchAlgorithmException nsae) {
-                    throw new DkimSignerException("RSA algorithm not found by JVM", nsae);
-                } catch (InvalidKeySpecException ikse) {
-                    throw new DkimSignerException("The public key " + tag + " in RR " + recordname + " couldn't be decoded.", ikse);
-                }
-
-                // FSTODO: create test signature with privKey and test validation with pubKey to check on a valid key pair
-
-                return true;
-            }
-        }
+        // FSTODO: create test signature with privKey and test validation with pubKey to check on a valid key pair
 
-        throw new DkimSignerException("No public key available in " + recordname);
+        return true;
     }
 
 }
@@ -0,0 +1,110 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * The outcome of verifying one DKIM-Signature field, with the result values of RFC 8601
+ * 2.7.1. Failures carry a reason; the tags of the signature are available as far as they
+ * could be parsed.
+ */
+
+public final class DkimVerificationResult {
+
+    public enum Status {
+        // the signature verified
+        PASS,
+        // the signature or the body hash didn't verify, the message was modified in transit
+        FAIL,
+        // the signature or its key record is malformed, unsupported or not acceptable
+        PERMERROR,
+        // the key record couldn't be fetched for now, verifying again later may succeed
+        TEMPERROR
+    }
+
+    private final Status status;
+    private final @Nullable String reason;
+    private final Map<String, String> tags;
+    private final boolean testing;
+
+    DkimVerificationResult(Status status, @Nullable String reason, Map<String, String> tags, boolean testing) {
+        this.status = status;
+        this.reason = reason;
+        this.tags = tags;
+        this.testing = testing;
+    }
+
+    static DkimVerificationResult pass(Map<String, String> tags, boolean testing) {
+        return new DkimVerificationResult(Status.PASS, null, tags, testing);
+    }
+
+    static DkimVerificationResult failure(Status status, String reason, @Nullable Map<String, String> tags) {
+        return new DkimVerificationResult(status, reason, tags == null ? Collections.<String, String>emptyMap() : tags, false);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isPass() {
+        return status == Status.PASS;
+    }
+
+    // why the signature didn't pass, null if it did
+    public @Nullable String getReason() {
+        return reason;
+    }
+
+    // the value of a tag of the signature, e.g. "d", unfolded; null if it's missing
+    public @Nullable String getTag(String name) {
+        return tags.get(name);
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public @Nullable String getDomain() {
+        return tags.get("d");
+    }
+
+    public @Nullable String getSelector() {
+        return tags.get("s");
+    }
+
+    // the i= tag, or @ and the domain if it's missing
+    public @Nullable String getIdentity() {
+        final String identity = tags.get("i");
+        return identity != null || getDomain() == null ? identity : '@' + getDomain();
+    }
+
+    public @Nullable String getAlgorithm() {
+        return tags.get("a");
+    }
+
+    // the key record is marked as testing (t=y)
+    public boolean isTesting() {
+        return testing;
+    }
+
+    // in the form of an Authentication-Results method, e.g. dkim=pass header.d=example.com header.s=mail
+    @Override
+    public String toString() {
+
+        final StringBuilder sb = new StringBuilder("dkim=").append(status.name().toLowerCase(Locale.ROOT));
+        if (reason != null) {
+            sb.append(" (").append(reason).append(')');
+        }
+        if (getDomain() != null) {
+            sb.append(" header.d=").append(getDomain());
+        }
+        if (getSelector() != null) {
+            sb.append(" header.s=").append(getSelector());
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,490 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Verifies the DKIM signatures of received messages (RFC 6376 6). Messages are taken as
+ * the bytes they were received as; header fields are canonicalized straight from them with
+ * the same Canonicalization as signing uses, and the body is hashed once for all signatures
+ * sharing body canonicalization, hash algorithm and l= tag.
+ *
+ * The policy may stop verifying early; an executor verifies the signatures of a message in
+ * parallel. A verifier holds no per-message state and can be shared by any number of
+ * threads, the JCA objects are kept per thread.
+ */
+
+public class DkimVerifier {
+
+    private static final String DKIM_SIGNATURE_HEADER = "DKIM-Signature";
+
+    private final DkimKeyResolver keyResolver;
+    private final int maximumSignatures;
+    private final int minimumKeyBits;
+    private final boolean sha1Accepted;
+    private final Policy policy;
+    private final Executor executor;
+
+    /*
+     * Keys are looked up on the verifying thread and cached by the verifier.
+     */
+    public DkimVerifier(TxtRecordLookup keyLookup) {
+        this(builder(keyLookup));
+    }
+
+    public DkimVerifier(DkimKeyResolver keyResolver) {
+        this(builder(keyResolver));
+    }
+
+    private DkimVerifier(Builder builder) {
+        this.keyResolver = builder.keyResolver;
+        this.maximumSignatures = builder.maximumSignatures;
+        this.minimumKeyBits = builder.minimumKeyBits;
+        this.sha1Accepted = builder.sha1Accepted;
+        this.policy = builder.policy;
+        this.executor = builder.executor;
+    }
+
+    public static Builder builder(TxtRecordLookup keyLookup) {
+        return new Builder(DkimKeyResolver.builder(keyLookup).executor(Runnable::run).build());
+    }
+
+    // a resolver can be shared by several verifiers, e.g. with different policies
+    public static Builder builder(DkimKeyResolver keyResolver) {
+        return new Builder(keyResolver);
+    }
+
+    /*
+     * One result for each DKIM-Signature field from the top down, none if the message isn't
+     * signed. Fields beyond the maximum number of signatures are not looked at, nor are the
+     * fields left when the policy stops verifying early.
+     */
+    public List<DkimVerificationResult> verify(byte[] message) {
+        return verify(RawMessage.parse(message));
+    }
+
+    public List<DkimVerificationResult> verify(byte[] message, int offset, int length) {
+        return verify(RawMessage.parse(message, offset, length));
+    }
+
+    public List<DkimVerificationResult> verify(InputStream message) throws IOException {
+
+        final ByteBuilder buffer = new ByteBuilder(16 * 1024);
+        final byte[] chunk = new byte[8 * 1024];
+        int len;
+        while ((len = message.read(chunk)) > 0) {
+            buffer.write(chunk, 0, len);
+        }
+        return verify(RawMessage.parse(buffer.array(), 0, buffer.length()));
+    }
+
+    /*
+     * Verifies a message as writeTo() puts it out, for a message parsed from a stream that is
+     * the message as it was received. writeTo() has its usual side effects: a message with
+     * unsaved changes gets saveChanges() first, and an SmtpDkimMessage is signed, so what is
+     * verified is the message as it would be sent.
+     */
+    public List<DkimVerificationResult> verify(MimeMessage message) throws IOException, MessagingException {
+
+        final ByteBuilder buffer = new ByteBuilder(16 * 1024);
+        message.writeTo(buffer);
+        return verify(RawMessage.parse(buffer.array(), 0, buffer.length()));
+    }
+
+    /*
+     * Like verify(), without waiting for the key lookups and signature checks.
+     */
+    public CompletableFuture<List<DkimVerificationResult>> verifyAsync(byte[] message) {
+        return verifyAsync(RawMessage.parse(message));
+    }
+
+    public CompletableFuture<List<DkimVerificationResult>> verifyAsync(byte[] message, int offset, int length) {
+        return verifyAsync(RawMessage.parse(message, offset, length));
+    }
+
+    List<DkimVerificationResult> verify(RawMessage message) {
+        return verifyAsync(message).join();
+    }
+
+    /*
+     * The header is parsed once. Each signature goes from its body hash to its key to the
+     * public key operation on the executor, the signatures independently of each other; body
+     * hashes are shared. Once the policy has its answer, the remaining steps are skipped.
+     */
+    CompletableFuture<List<DkimVerificationResult>> verifyAsync(RawMessage message) {
+
+        final List<Integer> fields = new ArrayList<Integer>();
+        for (int field = 0; field < message.size() && fields.size() < maximumSignatures; field++) {
+            if (message.hasName(field, DKIM_SIGNATURE_HEADER)) {
+                fields.add(field);
+            }
+        }
+
+        final CompletableFuture<List<DkimVerificationResult>> done = new CompletableFuture<List<DkimVerificationResult>>();
+        if (fields.isEmpty()) {
+            done.complete(Collections.<DkimVerificationResult>emptyList());
+            return done;
+        }
+
+        final long now = System.currentTimeMillis() / 1000;
+        final Map<List<Object>, CompletableFuture<BodyDigest>> bodyHashes = new HashMap<List<Object>, CompletableFuture<BodyDigest>>();
+        final DkimVerificationResult[] results = new DkimVerificationResult[fields.size()];
+        final AtomicInteger pending = new AtomicInteger(fields.size());
+        for (int i = 0; i < fields.size() && !done.isDone(); i++) {
+            final int index = i;
+            verify(message, fields.get(i), now, bodyHashes, done).whenComplete((result, failure) -> {
+                synchronized (results) {
+                    if (done.isDone()) {
+                        return;
+                    }
+                    results[index] = result != null ? result
+                            : DkimVerificationResult.failure(DkimVerificationResult.Status.PERMERROR, String.valueOf(failure), null);
+                    if (policy.decides(results[index]) || pending.decrementAndGet() == 0) {
+                        done.complete(completed(results));
+                    }
+                }
+            });
+        }
+        return done;
+    }
+
+    private CompletableFuture<DkimVerificationResult> verify(RawMessage message, int field, long now,
+                                                             Map<List<Object>, CompletableFuture<BodyDigest>> bodyHashes, Future<?> done) {
+
+        final Map<String, String> tags;
+        final ParsedSignature signature;
+        try {
+            tags = TagList.parse(message.value(field));
+        } catch (DkimSignerException e) {
+            return CompletableFuture.completedFuture(DkimVerificationResult.failure(DkimVerificationResult.Status.PERMERROR, e.getMessage(), null));
+        }
+        try {
+            signature = ParsedSignature.parse(tags, sha1Accepted, now);
+        } catch (DkimSignerException e) {
+            return CompletableFuture.completedFuture(DkimVerificationResult.failure(DkimVerificationResult.Status.PERMERROR, e.getMessage(), tags));
+        }
+
+        // the body first, a mismatch spares the key lookup; signatures sharing a body hash go on separately
+        return bodyHash(message, signature, bodyHashes, done).thenComposeAsync(bodyHash -> {
+            if (bodyHash == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (bodyHash.failure != null) {
+                return CompletableFuture.completedFuture(DkimVerificationResult.failure(DkimVerificationResult.Status.PERMERROR, bodyHash.failure, tags));
+            }
+            if (signature.getLength() > bodyHash.length) {
+                return CompletableFuture.completedFuture(DkimVerificationResult.failure(DkimVerificationResult.Status.FAIL, "the body is shorter than l=", tags));
+            }
+            if (!MessageDigest.isEqual(bodyHash.hash, signature.getBodyHash())) {
+                return CompletableFuture.completedFuture(DkimVerificationResult.failure(DkimVerificationResult.Status.FAIL, "body hash did not verify", tags));
+            }
+            if (done.isDone()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return keyResolver.resolve(signature.getDomain(), signature.getSelector()).handleAsync((key, failure) -> {
+                if (failure != null) {
+                    final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                    return cause instanceof DkimSignerException
+                            ? DkimVerificationResult.failure(DkimVerificationResult.Status.PERMERROR, cause.getMessage(), tags)
+                            : DkimVerificationResult.failure(DkimVerificationResult.Status.TEMPERROR, "key lookup failed: " + cause.getMessage(), tags);
+                }
+                return done.isDone() ? null : verify(message, field, signature, tags, key);
+            }, executor);
+        }, executor);
+    }
+
+    private DkimVerificationResult verify(RawMessage message, int field, ParsedSignature signature, Map<String, String> tags, DkimKeyRecord key) {
+
+        try {
+            checkKey(signature, key);
+            final ByteBuilder data = headerData(message, field, signature);
+            return verifySignature(signature, key, data)
+                    ? DkimVerificationResult.pass(tags, key.isTesting())
+                    : DkimVerificationResult.failure(DkimVerificationResult.Status.FAIL, "signature did not verify", tags);
+        } catch (DkimSignerException e) {
+            return DkimVerificationResult.failure(DkimVerificationResult.Status.PERMERROR, e.getMessage(), tags);
+        }
+    }
+
+    // completes with null if the policy has its answer before the body is hashed
+    private CompletableFuture<BodyDigest> bodyHash(RawMessage message, ParsedSignature signature,
+                                                   Map<List<Object>, CompletableFuture<BodyDigest>> bodyHashes, Future<?> done) {
+
+        final List<Object> key = Arrays.<Object>asList(signature.getBodyCanonicalization(), signature.getAlgorithm().getJavaHashNotation(), signature.getLength());
+        CompletableFuture<BodyDigest> bodyHash = bodyHashes.get(key);
+        if (bodyHash == null) {
+            bodyHash = CompletableFuture.supplyAsync(() -> done.isDone() ? null : hashBody(message, signature), executor);
+            bodyHashes.put(key, bodyHash);
+        }
+        return bodyHash;
+    }
+
+    private static BodyDigest hashBody(RawMessage message, ParsedSignature signature) {
+
+        try {
+            final BodyHasher hasher = new BodyHasher(signature.getBodyCanonicalization(), SigningContext.messageDigest(signature.getAlgorithm()),
+                    signature.getLength() == -1 ? Long.MAX_VALUE : signature.getLength());
+            message.writeBody(hasher);
+            return new BodyDigest(hasher.finish(), hasher.getLength(), null);
+        } catch (IOException ioe) {
+            return new BodyDigest(null, 0, "The body canonicalization failed: " + ioe.getMessage());
+        } catch (DkimSignerException e) {
+            return new BodyDigest(null, 0, e.getMessage());
+        }
+    }
+
+    private void checkKey(ParsedSignature signature, DkimKeyRecord key) throws DkimSignerException {
+
+        if (!signature.getAlgorithm().getKeyAlgorithm().equalsIgnoreCase(key.getKeyType())) {
+            throw new DkimSignerException("The key type " + key.getKeyType() + " does not match " + signature.getAlgorithm().getRfc4871Notation());
+        }
+        if (!key.allowsHash(signature.getHashName())) {
+            throw new DkimSignerException("The key is not to be used with " + signature.getHashName());
+        }
+        if (!key.isEmailKey()) {
+            throw new DkimSignerException("The key is not to be used for email");
+        }
+        if (key.isStrict() && !signature.getIdentityDomain().equals(signature.getDomain())) {
+            throw new DkimSignerException("The key does not allow the subdomain " + signature.getIdentityDomain() + " in i=");
+        }
+        if (key.getPublicKey() instanceof RSAPublicKey && ((RSAPublicKey) key.getPublicKey()).getModulus().bitLength() < minimumKeyBits) {
+            throw new DkimSignerException("The key has less than " + minimumKeyBits + " bits");
+        }
+    }
+
+    /*
+     * The signed header fields, picked from the bottom up as in h=, followed by the signature
+     * field with an empty b= value (RFC 6376 3.7).
+     */
+    private static ByteBuilder headerData(RawMessage message, int signatureField, ParsedSignature signature) throws DkimSignerException {
+
+        final byte[] header = message.headerArray();
+        final Canonicalization canonicalization = signature.getHeaderCanonicalization();
+        final ByteBuilder data = new ByteBuilder(2048);
+        // instances of each name taken so far, keyed by the lower case name
+        final Map<String, Integer> taken = new HashMap<String, Integer>();
+
+        try {
+            for (String name : signature.getSignedHeaders()) {
+                final String key = name.toLowerCase(Locale.ROOT);
+                final Integer previous = taken.get(key);
+                final int skip = previous == null ? 0 : previous;
+                taken.put(key, skip + 1);
+
+                // a name listed more often than it occurs stands for a missing field, nothing is hashed
+                int seen = 0;
+                for (int field = message.size() - 1; field >= 0; field--) {
+                    if (message.hasName(field, name) && seen++ == skip) {
+                        canonicalization.canonicalizeHeader(header, message.start(field), message.end(field) - message.start(field), data);
+                        data.append("\r\n");
+                        break;
+                    }
+                }
+            }
+
+            final ByteBuilder field = new ByteBuilder(message.end(signatureField) - message.start(signatureField));
+            withoutSignatureValue(header, message.start(signatureField), message.end(signatureField), field);
+            canonicalization.canonicalizeHeader(field.array(), 0, field.length(), data);
+        } catch (IOException ioe) {
+            throw new DkimSignerException("The header canonicalization failed", ioe);
+        }
+        return data;
+    }
+
+    // copies the field from start to end, leaving out the value of its b= tag
+    private static void withoutSignatureValue(byte[] header, int start, int end, ByteBuilder out) {
+
+        int colon = start;
+        while (colon < end && header[colon] != ':') {
+            colon++;
+        }
+
+        int tagStart = colon + 1;
+        while (tagStart < end) {
+            int tagEnd = tagStart;
+            while (tagEnd < end && header[tagEnd] != ';') {
+                tagEnd++;
+            }
+
+            int equals = tagStart;
+            while (equals < tagEnd && header[equals] != '=') {
+                equals++;
+            }
+            int nameStart = tagStart;
+            while (nameStart < equals && isWhitespace(header[nameStart])) {
+                nameStart++;
+            }
+            int nameEnd = equals;
+            while (nameEnd > nameStart && isWhitespace(header[nameEnd - 1])) {
+                nameEnd--;
+            }
+
+            if (equals < tagEnd && nameEnd - nameStart == 1 && header[nameStart] == 'b') {
+                out.write(header, start, equals + 1 - start);
+                out.write(header, tagEnd, end - tagEnd);
+                return;
+            }
+            tagStart = tagEnd + 1;
+        }
+        out.write(header, start, end - start);
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private static boolean verifySignature(ParsedSignature signature, DkimKeyRecord key, ByteBuilder data) throws DkimSignerException {
+
+        final SigningAlgorithm algorithm = signature.getAlgorithm();
+        final Signature verifier = SigningContext.signature(algorithm);
+        try {
+            verifier.initVerify(key.getPublicKey());
+            if (algorithm.isPrehashed()) {
+                // RFC 8463: Ed25519 is applied to the SHA-256 hash of the data, not the data itself
+                final MessageDigest md = SigningContext.messageDigest(algorithm);
+                md.update(data.array(), 0, data.length());
+                verifier.update(md.digest());
+            } else {
+                verifier.update(data.array(), 0, data.length());
+            }
+            return verifier.verify(signature.getSignature());
+        } catch (InvalidKeyException ike) {
+            throw new DkimSignerException("The key can not be used for " + algorithm.getRfc4871Notation(), ike);
+        } catch (SignatureException se) {
+            // e.g. a signature of the wrong length, the instance may be left in an undefined state
+            SigningContext.discardSignature(algorithm);
+            return false;
+        }
+    }
+
+    public static final class Builder {
+
+        private final DkimKeyResolver keyResolver;
+        private int maximumSignatures = 10;
+        private int minimumKeyBits = 1024;
+        private boolean sha1Accepted = false;
+        private Policy policy = Policy.ALL;
+        private Executor executor = Runnable::run;
+
+        private Builder(DkimKeyResolver keyResolver) {
+            this.keyResolver = keyResolver;
+        }
+
+        // signatures beyond this number are ignored, each costs a key lookup and a public key operation
+        public Builder maximumSignatures(int maximumSignatures) {
+            this.maximumSignatures = maximumSignatures;
+            return this;
+        }
+
+        // shorter RSA keys make a PERMERROR, RFC 8301 requires at least 1024 bits
+        public Builder minimumKeyBits(int minimumKeyBits) {
+            this.minimumKeyBits = minimumKeyBits;
+            return this;
+        }
+
+        // rsa-sha1 signatures are a PERMERROR unless accepted here (RFC 8301)
+        public Builder acceptSha1(boolean sha1Accepted) {
+            this.sha1Accepted = sha1Accepted;
+            return this;
+        }
+
+        public Builder policy(Policy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /*
+         * Where body hashes and public key operations run; by default the calling thread, or the
+         * resolver's thread for a key that wasn't cached. With a pool the signatures of a message
+         * are verified in parallel.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public DkimVerifier build() {
+            return new DkimVerifier(this);
+        }
+    }
+
+    /*
+     * Which results a verification has to come up with.
+     */
+    public enum Policy {
+
+        // every signature is verified
+        ALL {
+            @Override
+            boolean decides(DkimVerificationResult result) {
+                return false;
+            }
+        },
+        // verifying stops with the first signature that passes, e.g. for a message that is good with any valid signature
+        FIRST_PASS {
+            @Override
+            boolean decides(DkimVerificationResult result) {
+                return result.isPass();
+            }
+        },
+        // verifying stops with the first signature that doesn't pass, for a message that is only good if all of them do
+        ALL_REQUIRED {
+            @Override
+            boolean decides(DkimVerificationResult result) {
+                return !result.isPass();
+            }
+        };
+
+        // whether the result settles the verification, the remaining signatures are skipped then
+        abstract boolean decides(DkimVerificationResult result);
+    }
+
+    private static final class BodyDigest {
+
+        private final byte @Nullable [] hash;
+        private final long length;
+        private final @Nullable String failure;
+
+        private BodyDigest(byte @Nullable [] hash, long length, @Nullable String failure) {
+            this.hash = hash;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+
+    // the results that are in, in the order of the signature fields
+    private static List<DkimVerificationResult> completed(DkimVerificationResult[] results) {
+
+        final List<DkimVerificationResult> completed = new ArrayList<DkimVerificationResult>(results.length);
+        for (DkimVerificationResult result : results) {
+            if (result != null) {
+                completed.add(result);
+            }
+        }
+        return completed;
+    }
+
+}
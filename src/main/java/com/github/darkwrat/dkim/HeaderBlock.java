@@ -0,0 +1,278 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * The header fields of one message state, canonicalized on demand. Signers that agree on
+ * header canonicalization and the fields to sign get the same result, so a message with
+ * several DKIM signatures canonicalizes its header only once per distinct combination.
+ *
+ * The header lines are read once and kept as the bytes that go on the wire, which serve
+ * both as input of the canonicalization and as the header written by writeTo(). They are
+ * taken from a MimeMessage or, for messages signed as they are, from a RawMessage.
+ *
+ * Not thread-safe, it is meant to live for a single signing pass and the writes of its
+ * message that follow.
+ */
+
+final class HeaderBlock {
+
+    private final @Nullable MimeMessage message;
+    private final @Nullable RawMessage rawMessage;
+    // the results so far, one per combination of canonicalization, plan and z=, usually a single one
+    private @Nullable Canonical canonicalHeaders = null;
+    private String @Nullable [] lines = null;
+    private int @Nullable [] nameLengths;
+    private int lineCount;
+    // lines[i] with its CRLF is raw[starts[i], starts[i + 1])
+    private int @Nullable [] starts;
+    private @Nullable ByteBuilder raw;
+    // the next instance higher up of the field in line i, shared by all builds
+    private int @Nullable [] above;
+
+    HeaderBlock(MimeMessage message) {
+        this.message = message;
+        this.rawMessage = null;
+    }
+
+    HeaderBlock(RawMessage rawMessage) {
+        this.message = null;
+        this.rawMessage = rawMessage;
+    }
+
+    Canonical canonicalize(Canonicalization canonicalization, HeaderSigningPlan plan, boolean zParam) throws DkimSignerException, MessagingException {
+
+        for (Canonical canonical = canonicalHeaders; canonical != null; canonical = canonical.next) {
+            // signers with equal header lists share the result, whatever config they come from
+            if (canonical.canonicalization == canonicalization && canonical.plan.equals(plan) && canonical.zParam == zParam) {
+                return canonical;
+            }
+        }
+
+        final Canonical canonical = build(canonicalization, plan, zParam);
+        canonical.next = canonicalHeaders;
+        canonicalHeaders = canonical;
+        return canonical;
+    }
+
+    private Canonical build(Canonicalization canonicalization, HeaderSigningPlan plan, boolean zParam) throws DkimSignerException, MessagingException {
+
+        readLines();
+
+        // chain the instances of each field from the bottom up: last[slot] is the lowest one,
+        // above[line] the next one higher up
+        final int slots = plan.size();
+        final int[] last = new int[slots];
+        Arrays.fill(last, -1);
+        if (above == null) {
+            above = new int[lineCount];
+        }
+        final int[] above = this.above;
+        for (int i = 0; i < lineCount; i++) {
+            final int slot = nameLengths[i] == -1 ? -1 : plan.slotOf(lines[i], nameLengths[i]);
+            if (slot != -1) {
+                above[i] = last[slot];
+                last[slot] = i;
+            }
+        }
+
+        final StringBuilder headerList = new StringBuilder(slots * 16);
+        final ByteBuilder headerContent = new ByteBuilder(raw.length() + 64);
+        final StringBuilder zParamString = zParam ? new StringBuilder() : null;
+        StringBuilder missing = null;
+
+        for (int slot = 0; slot < slots; slot++) {
+
+            if (last[slot] == -1 && plan.isRequired(slot)) {
+                missing = (missing == null ? new StringBuilder() : missing.append(", ")).append(plan.getName(slot));
+            }
+
+            for (int i = last[slot]; i != -1; i = above[i]) {
+                final String line = lines[i];
+                headerList.append(line, 0, nameLengths[i]).append(':');
+                try {
+                    canonicalization.canonicalizeHeader(raw.array(), starts[i], starts[i + 1] - starts[i] - 2, headerContent);
+                } catch (IOException ioe) {
+                    throw new DkimSignerException("The header canonicalization failed", ioe);
+                }
+                headerContent.append("\r\n");
+
+                // add optional z= header list, DKIM-Quoted-Printable
+                if (zParamString != null) {
+                    final String value = line.substring(line.indexOf(':') + 1).trim();
+                    zParamString.append(line, 0, nameLengths[i]).append(':').append(DkimUtil.QuotedPrintable(value).replace("|", "=7C")).append('|');
+                }
+            }
+
+            // a field listed once more than it occurs can't be added without breaking the signature
+            if (plan.isOversigned(slot)) {
+                headerList.append(plan.getName(slot)).append(':');
+            }
+        }
+
+        if (missing != null) {
+            throw new DkimSignerException("Could not find the header fields " + missing + " for signing");
+        }
+        if (headerList.length() == 0) {
+            throw new DkimSignerException("The message has none of the header fields to sign");
+        }
+
+        return new Canonical(canonicalization, plan, zParam, headerList.substring(0, headerList.length() - 1), headerContent,
+                zParamString == null ? null : zParamString.substring(0, zParamString.length() - 1));
+    }
+
+    /*
+     * Writes the header lines, each terminated by CRLF, leaving out the fields named in
+     * ignoreList like MimeMessage.getNonMatchingHeaderLines(). Consecutive lines go out with
+     * a single write.
+     */
+    void writeTo(OutputStream out, String @Nullable [] ignoreList) throws IOException, MessagingException {
+
+        readLines();
+
+        if (ignoreList == null || ignoreList.length == 0) {
+            raw.writeTo(out);
+            return;
+        }
+
+        int runStart = 0;
+        for (int i = 0; i < lineCount; i++) {
+            if (isIgnored(i, ignoreList)) {
+                out.write(raw.array(), runStart, starts[i] - runStart);
+                runStart = starts[i + 1];
+            }
+        }
+        out.write(raw.array(), runStart, raw.length() - runStart);
+    }
+
+    /*
+     * The header lines one by one, for fields that are found by other means than a signing
+     * plan, e.g. the ARC sets of earlier hops.
+     */
+    int lineCount() throws MessagingException {
+        readLines();
+        return lineCount;
+    }
+
+    boolean hasName(int i, String name) {
+        return nameLengths[i] == name.length() && lines[i].regionMatches(true, 0, name, 0, name.length());
+    }
+
+    // everything after the colon, with its folding
+    String value(int i) {
+        return lines[i].substring(lines[i].indexOf(':') + 1);
+    }
+
+    void canonicalizeLine(int i, Canonicalization canonicalization, ByteBuilder out) throws IOException {
+        canonicalization.canonicalizeHeader(raw.array(), starts[i], starts[i + 1] - starts[i] - 2, out);
+    }
+
+    private boolean isIgnored(int i, String[] ignoreList) {
+
+        final String line = lines[i];
+        for (String ignored : ignoreList) {
+            final boolean matches = nameLengths[i] == -1
+                    ? line.trim().equalsIgnoreCase(ignored)
+                    : ignored.length() == nameLengths[i] && line.regionMatches(true, 0, ignored, 0, nameLengths[i]);
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // one walk over the header, shared by all plans and writeTo()
+    private void readLines() throws MessagingException {
+
+        if (lines != null) {
+            return;
+        }
+
+        lines = new String[32];
+        nameLengths = new int[32];
+        starts = new int[33];
+        raw = new ByteBuilder(2048);
+        lineCount = 0;
+
+        if (rawMessage != null) {
+            final byte[] header = rawMessage.headerArray();
+            for (int i = 0; i < rawMessage.size(); i++) {
+                addLine(new String(header, rawMessage.start(i), rawMessage.end(i) - rawMessage.start(i), StandardCharsets.ISO_8859_1));
+            }
+        } else {
+            final Enumeration<?> headerLines = message.getAllHeaderLines();
+            while (headerLines.hasMoreElements()) {
+                addLine((String) headerLines.nextElement());
+            }
+        }
+        starts[lineCount] = raw.length();
+    }
+
+    private void addLine(String line) {
+
+        // a line without a colon is written out but never signed
+        final int colon = line.indexOf(':');
+        int nameLength = colon;
+        // obsolete syntax allows whitespace between name and colon
+        while (nameLength > 0 && (line.charAt(nameLength - 1) == ' ' || line.charAt(nameLength - 1) == '\t')) {
+            nameLength--;
+        }
+
+        if (lineCount == lines.length) {
+            lines = Arrays.copyOf(lines, lineCount * 2);
+            nameLengths = Arrays.copyOf(nameLengths, lineCount * 2);
+            starts = Arrays.copyOf(starts, lineCount * 2 + 1);
+        }
+        lines[lineCount] = line;
+        nameLengths[lineCount] = nameLength;
+        starts[lineCount] = raw.length();
+        raw.append(line).append("\r\n");
+        lineCount++;
+    }
+
+    static final class Canonical {
+
+        private final Canonicalization canonicalization;
+        private final HeaderSigningPlan plan;
+        private final boolean zParam;
+        private final String headerList;
+        private final ByteBuilder content;
+        private final @Nullable String zParamValue;
+        private @Nullable Canonical next = null;
+
+        private Canonical(Canonicalization canonicalization, HeaderSigningPlan plan, boolean zParam,
+                          String headerList, ByteBuilder content, @Nullable String zParamValue) {
+            this.canonicalization = canonicalization;
+            this.plan = plan;
+            this.zParam = zParam;
+            this.headerList = headerList;
+            this.content = content;
+            this.zParamValue = zParamValue;
+        }
+
+        // the value of the h= tag
+        String getHeaderList() {
+            return headerList;
+        }
+
+        // the value of the z= tag, if requested
+        @Nullable String getZParam() {
+            return zParamValue;
+        }
+
+        // the canonicalized fields, each terminated by CRLF, must not be modified
+        ByteBuilder getContent() {
+            return content;
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes a header field of tag=value; pairs to a stream, folding lines before they pass
+ * MAX_LINE_LENGTH (RFC 5322 2.1.1). Whole tags move to the next line if they don't fit,
+ * values are only broken where the DKIM grammar allows whitespace (RFC 6376 3.5), see
+ * Folding. A value that has no such point within a line runs past the limit.
+ *
+ * Characters are written as their low byte, like JavaMail writes header lines.
+ */
+
+final class HeaderFolder {
+
+    static final int MAX_LINE_LENGTH = 78;
+
+    // a breakable tag starts on the current line if at least this much of its value fits
+    private static final int MIN_PIECE_LENGTH = 8;
+
+    private final OutputStream out;
+    private int column = 0;
+    private boolean firstTag = true;
+
+    HeaderFolder(OutputStream out) {
+        this.out = out;
+    }
+
+    // writes "name:", the first tag follows without a space
+    void start(String headerName) throws IOException {
+        firstTag = true;
+        column = 0;
+        write(headerName, 0, headerName.length());
+        write(':');
+    }
+
+    // continues a field whose beginning has been written before, e.g. a precomputed prefix
+    void resume(int column) {
+        this.firstTag = false;
+        this.column = column;
+    }
+
+    int column() {
+        return column;
+    }
+
+    void tag(String name, CharSequence value, Folding folding) throws IOException {
+        final int firstPieceLength = folding.firstPieceLength(value);
+        openTag(name, firstPieceLength == value.length() ? firstPieceLength + 1 : firstPieceLength);
+        value(value, folding, 1);
+        write(';');
+    }
+
+    // for a breakable value written later with value(), e.g. b= once the signature is known
+    void openTag(String name) throws IOException {
+        openTag(name, MIN_PIECE_LENGTH);
+    }
+
+    /*
+     * Writes the separator and "name=", folding first unless minimumLength more characters
+     * fit on the current line.
+     */
+    private void openTag(String name, int minimumLength) throws IOException {
+
+        if (firstTag) {
+            write(' ');
+            firstTag = false;
+        } else if (column + 1 + name.length() + 1 + minimumLength > MAX_LINE_LENGTH) {
+            fold();
+        } else {
+            write(' ');
+        }
+        write(name, 0, name.length());
+        write('=');
+    }
+
+    // writes the value of an open tag, keeping room for reserve more characters behind it
+    void value(CharSequence value, Folding folding, int reserve) throws IOException {
+
+        final int length = value.length();
+        int start = 0;
+        while (start < length) {
+            if (length - start + reserve <= MAX_LINE_LENGTH - column) {
+                write(value, start, length);
+                return;
+            }
+
+            int end = folding.lastBreak(value, start, start + MAX_LINE_LENGTH - column);
+            if (end == -1) {
+                if (column > 1) {
+                    // the next piece fits on a line of its own, or at least gets one
+                    fold();
+                    continue;
+                }
+                end = folding.nextBreak(value, start);
+            }
+
+            write(value, start, end);
+            start = end;
+            if (start < length) {
+                fold();
+            }
+        }
+    }
+
+    private void fold() throws IOException {
+        out.write('\r');
+        out.write('\n');
+        out.write('\t');
+        column = 1;
+    }
+
+    private void write(char c) throws IOException {
+        out.write(c);
+        column++;
+    }
+
+    private void write(CharSequence s, int start, int end) throws IOException {
+        if (out instanceof ByteBuilder) {
+            ((ByteBuilder) out).append(s, start, end);
+        } else {
+            for (int i = start; i < end; i++) {
+                out.write(s.charAt(i));
+            }
+        }
+        column += end - start;
+    }
+
+    /*
+     * Where a tag value may be broken by folding whitespace: isBreak(value, i) tells whether
+     * it may be broken in front of value[i].
+     */
+    enum Folding {
+
+        // e.g. d=, s=, i=
+        NONE {
+            @Override
+            boolean isBreak(CharSequence value, int i) {
+                return false;
+            }
+        },
+
+        // h=, colon separated header field names
+        HEADER_NAMES {
+            @Override
+            boolean isBreak(CharSequence value, int i) {
+                return value.charAt(i - 1) == ':';
+            }
+        },
+
+        // z=, bar separated copies of header fields in DKIM quoted-printable
+        HEADER_COPIES {
+            @Override
+            boolean isBreak(CharSequence value, int i) {
+                return value.charAt(i - 1) == '|' || i >= valueStart(value, i) && !inEscape(value, i);
+            }
+
+            // copies are kept whole where a line has room for them, otherwise broken in their value
+            @Override
+            int lastBreak(CharSequence value, int start, int limit) {
+
+                final int from = Math.min(limit, value.length() - 1);
+                for (int i = from; i > start; i--) {
+                    if (value.charAt(i - 1) == '|') {
+                        return i;
+                    }
+                }
+
+                // no bar in between, so start and from are in the same copy
+                final int valueStart = from > start ? valueStart(value, from) : 0;
+                for (int i = from; i > start; i--) {
+                    if (i >= valueStart && !inEscape(value, i)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            int nextBreak(CharSequence value, int start) {
+
+                // the scan doesn't leave the copy it starts in, so its value start is looked up once
+                final int valueStart = valueStart(value, start + 1);
+                for (int i = start + 1; i < value.length(); i++) {
+                    if (value.charAt(i - 1) == '|' || i >= valueStart && !inEscape(value, i)) {
+                        return i;
+                    }
+                }
+                return value.length();
+            }
+        },
+
+        // bh= and b=
+        BASE64 {
+            @Override
+            boolean isBreak(CharSequence value, int i) {
+                return true;
+            }
+
+            @Override
+            int firstPieceLength(CharSequence value) {
+                return Math.min(value.length(), MIN_PIECE_LENGTH);
+            }
+        };
+
+        // 0 < i < value.length()
+        abstract boolean isBreak(CharSequence value, int i);
+
+        // the last break after start and at most at limit, -1 if there is none
+        int lastBreak(CharSequence value, int start, int limit) {
+            for (int i = Math.min(limit, value.length() - 1); i > start; i--) {
+                if (isBreak(value, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // the first break after start, the length of value if there is none
+        int nextBreak(CharSequence value, int start) {
+            for (int i = start + 1; i < value.length(); i++) {
+                if (isBreak(value, i)) {
+                    return i;
+                }
+            }
+            return value.length();
+        }
+
+        int firstPieceLength(CharSequence value) {
+            return nextBreak(value, 0);
+        }
+
+        // the field name of a copy must not be broken, its value may be anywhere
+        private static int valueStart(CharSequence value, int i) {
+
+            int copyStart = i;
+            while (copyStart > 0 && value.charAt(copyStart - 1) != '|') {
+                copyStart--;
+            }
+            for (int j = copyStart; j < value.length() && value.charAt(j) != '|'; j++) {
+                if (value.charAt(j) == ':') {
+                    return j + 1;
+                }
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        // whether value[i] is within an =XX escape
+        private static boolean inEscape(CharSequence value, int i) {
+            return value.charAt(i - 1) == '=' || i >= 2 && value.charAt(i - 2) == '=';
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.github.darkwrat.dkim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * The header fields to sign, compiled once per configuration. Field names are looked up
+ * case-insensitively in an open addressing table straight from the header line, so matching
+ * a message's header costs one hash over its name and no allocation.
+ *
+ * Fields are signed in the configured order. Several instances of a field are signed from
+ * the bottom up, the order in which verifiers pick them (RFC 6376 5.4.2). An oversigned
+ * field is listed in h= once more than it occurs, so a verifier rejects instances added in
+ * transit (RFC 6376 8.15).
+ */
+
+final class HeaderSigningPlan {
+
+    // signing without these makes little sense, From is mandatory by RFC 6376
+    private static final String[] REQUIRED_HEADERS = {"From", "Subject"};
+    private static final int MAX_EXTENSIONS = 64;
+
+    private final String[] names;
+    private final boolean[] oversigned;
+    private final boolean[] required;
+    private final String[] table;
+    private final int[] tableSlots;
+    private final int mask;
+    private final ConcurrentMap<List<String>, HeaderSigningPlan> extensions = new ConcurrentHashMap<List<String>, HeaderSigningPlan>();
+
+    private HeaderSigningPlan(String[] names, boolean[] oversigned) {
+
+        this.names = names;
+        this.oversigned = oversigned;
+        this.required = new boolean[names.length];
+
+        int capacity = 16;
+        while (capacity < names.length * 2) {
+            capacity <<= 1;
+        }
+        this.table = new String[capacity];
+        this.tableSlots = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int slot = 0; slot < names.length; slot++) {
+            int i = hash(names[slot], names[slot].length()) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = names[slot];
+            tableSlots[i] = slot;
+        }
+
+        for (String requiredHeader : REQUIRED_HEADERS) {
+            final int slot = slotOf(requiredHeader, requiredHeader.length());
+            if (slot != -1) {
+                required[slot] = true;
+            }
+        }
+    }
+
+    /*
+     * Duplicates are dropped case-insensitively; oversigned fields missing from headersToSign
+     * are signed as well.
+     */
+    static HeaderSigningPlan compile(String[] headersToSign, String[] oversignedHeaders) {
+
+        final List<String> names = new ArrayList<String>(headersToSign.length + oversignedHeaders.length);
+        final List<String> lowerCaseNames = new ArrayList<String>(headersToSign.length + oversignedHeaders.length);
+        for (String[] headers : new String[][]{headersToSign, oversignedHeaders}) {
+            for (String header : headers) {
+                final String name = header.trim();
+                final String lowerCaseName = name.toLowerCase(Locale.ROOT);
+                if (!name.isEmpty() && !lowerCaseNames.contains(lowerCaseName)) {
+                    names.add(name);
+                    lowerCaseNames.add(lowerCaseName);
+                }
+            }
+        }
+
+        final boolean[] oversigned = new boolean[names.size()];
+        for (String header : oversignedHeaders) {
+            final int slot = lowerCaseNames.indexOf(header.trim().toLowerCase(Locale.ROOT));
+            if (slot != -1) {
+                oversigned[slot] = true;
+            }
+        }
+
+        return new HeaderSigningPlan(names.toArray(new String[names.size()]), oversigned);
+    }
+
+    /*
+     * This plan with further fields, e.g. from DkimSignOptions; the result is cached, as the
+     * same options tend to be used for many messages.
+     */
+    HeaderSigningPlan extend(String[] additionalHeaders) {
+
+        if (additionalHeaders.length == 0) {
+            return this;
+        }
+
+        final List<String> key = Arrays.asList(additionalHeaders);
+        HeaderSigningPlan extended = extensions.get(key);
+        if (extended == null) {
+            final String[] headersToSign = Arrays.copyOf(names, names.length + additionalHeaders.length);
+            System.arraycopy(additionalHeaders, 0, headersToSign, names.length, additionalHeaders.length);
+            final List<String> oversignedHeaders = new ArrayList<String>();
+            for (int slot = 0; slot < names.length; slot++) {
+                if (oversigned[slot]) {
+                    oversignedHeaders.add(names[slot]);
+                }
+            }
+            extended = compile(headersToSign, oversignedHeaders.toArray(new String[oversignedHeaders.size()]));
+            if (extensions.size() < MAX_EXTENSIONS) {
+                extensions.putIfAbsent(key, extended);
+            }
+        }
+        return extended;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String getName(int slot) {
+        return names[slot];
+    }
+
+    boolean isOversigned(int slot) {
+        return oversigned[slot];
+    }
+
+    boolean isRequired(int slot) {
+        return required[slot];
+    }
+
+    /*
+     * The slot of the field whose name is the first nameLength chars of line, or -1 if the
+     * field isn't signed.
+     */
+    int slotOf(String line, int nameLength) {
+
+        int i = hash(line, nameLength) & mask;
+        String name;
+        while ((name = table[i]) != null) {
+            if (name.length() == nameLength && line.regionMatches(true, 0, name, 0, nameLength)) {
+                return tableSlots[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(String s, int length) {
+
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // equal plans produce the same h= list and header hash input, whichever config they came from
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HeaderSigningPlan)) {
+            return false;
+        }
+
+        final HeaderSigningPlan other = (HeaderSigningPlan) o;
+        return Arrays.equals(names, other.names) && Arrays.equals(oversigned, other.oversigned);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(names) + Arrays.hashCode(oversigned);
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/*
+ * TXT lookups with the JNDI DNS provider of the JDK. The context is created once, JNDI DNS
+ * contexts can be used by several threads at the same time.
+ */
+
+final class JndiTxtRecordLookup implements TxtRecordLookup {
+
+    private final Hashtable<String, String> environment = new Hashtable<String, String>();
+    private volatile DirContext context;
+
+    JndiTxtRecordLookup() {
+        environment.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+    }
+
+    @Override
+    public List<String> lookup(String name) throws IOException {
+
+        try {
+            final Attributes attributes = context().getAttributes(name, new String[]{"TXT"});
+            final Attribute txt = attributes.get("TXT");
+            if (txt == null) {
+                return Collections.emptyList();
+            }
+
+            final List<String> records = new ArrayList<String>(txt.size());
+            final NamingEnumeration<?> values = txt.getAll();
+            while (values.hasMore()) {
+                records.add(joinStrings(String.valueOf(values.next())));
+            }
+            return records;
+        } catch (NameNotFoundException nnfe) {
+            return Collections.emptyList();
+        } catch (NamingException ne) {
+            throw new IOException("The TXT lookup of " + name + " failed", ne);
+        }
+    }
+
+    private DirContext context() throws NamingException {
+
+        DirContext dirContext = context;
+        if (dirContext == null) {
+            synchronized (this) {
+                dirContext = context;
+                if (dirContext == null) {
+                    dirContext = new InitialDirContext(environment);
+                    context = dirContext;
+                }
+            }
+        }
+        return dirContext;
+    }
+
+    // JNDI returns a record of several strings as "part one" "part two"
+    private static String joinStrings(String value) {
+
+        if (value.isEmpty() || value.charAt(0) != '"') {
+            return value;
+        }
+
+        final StringBuilder sb = new StringBuilder(value.length());
+        boolean quoted = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\\' && quoted && i + 1 < value.length()) {
+                sb.append(value.charAt(++i));
+            } else if (quoted) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+}
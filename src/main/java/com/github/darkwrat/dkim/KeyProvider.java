@@ -0,0 +1,90 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Source of the private keys for signing domains and selectors. The backends parse their
+ * keys up front and answer lookups from memory, so fetching a key does no file I/O on the
+ * sending path.
+ */
+
+public interface KeyProvider {
+
+    // the key for domain and selector, null if there is none
+    @Nullable PrivateKey getKey(String domain, String selector) throws DkimSignerException;
+
+    // changes whenever the key for domain and selector changes; keys never change by default
+    default long version(String domain, String selector) {
+        return 0;
+    }
+
+    /*
+     * A single key file in PEM or DER format, PKCS#8 or PKCS#1, for one domain and selector.
+     */
+    static KeyProvider keyFile(String domain, String selector, File keyFile) throws IOException, DkimSignerException {
+        final Map<String, PrivateKey> keys = new HashMap<String, PrivateKey>();
+        keys.put(keyName(domain, selector), PrivateKeyReader.read(keyFile.toPath()));
+        return new StaticKeyProvider(keys);
+    }
+
+    /*
+     * The private key entries of a KeyStore, named selector._domainkey.domain. All of them
+     * must be protected by the given password.
+     */
+    static KeyProvider keyStore(KeyStore keyStore, char[] password) throws DkimSignerException {
+
+        final Map<String, PrivateKey> keys = new HashMap<String, PrivateKey>();
+        try {
+            final Enumeration<String> aliases = keyStore.aliases();
+            while (aliases.hasMoreElements()) {
+                final String alias = aliases.nextElement();
+                if (keyStore.isKeyEntry(alias)) {
+                    final Key key = keyStore.getKey(alias, password);
+                    if (key instanceof PrivateKey) {
+                        keys.put(alias.toLowerCase(Locale.ROOT), (PrivateKey) key);
+                    }
+                }
+            }
+        } catch (GeneralSecurityException gse) {
+            throw new DkimSignerException("The keys could not be read from the key store", gse);
+        }
+        return new StaticKeyProvider(keys);
+    }
+
+    static KeyProvider keyStore(File keyStoreFile, String type, char[] password) throws IOException, DkimSignerException {
+
+        try (InputStream is = new FileInputStream(keyStoreFile)) {
+            final KeyStore keyStore = KeyStore.getInstance(type);
+            keyStore.load(is, password);
+            return keyStore(keyStore, password);
+        } catch (GeneralSecurityException gse) {
+            throw new DkimSignerException("The key store " + keyStoreFile + " could not be loaded", gse);
+        }
+    }
+
+    /*
+     * The key files in a directory, see DirectoryKeyProvider.
+     */
+    static DirectoryKeyProvider directory(File directory) throws IOException {
+        return new DirectoryKeyProvider(directory.toPath());
+    }
+
+    // the DNS name of the key record, which also names keys in files and key stores
+    static String keyName(String domain, String selector) {
+        return (selector + "._domainkey." + domain).toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.github.darkwrat.dkim;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+
+/*
+ * Size bound of the caches of DkimKeyResolver and DkimSignerRegistry. Their entries record
+ * the value of a counter on each access; a cache grown beyond its maximum drops the least
+ * recently used entries down to 90% of it, so the scan isn't repeated on every insert.
+ */
+
+final class LeastRecentlyUsed {
+
+    private LeastRecentlyUsed() {
+    }
+
+    static <K, V> void evict(ConcurrentMap<K, V> entries, int maximumSize, ToLongFunction<? super V> lastAccess) {
+
+        // sort a snapshot, the access times keep changing while lookups go on
+        final List<Map.Entry<K, Long>> candidates = new ArrayList<Map.Entry<K, Long>>(entries.size());
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            candidates.add(new AbstractMap.SimpleImmutableEntry<K, Long>(entry.getKey(), lastAccess.applyAsLong(entry.getValue())));
+        }
+        candidates.sort(Map.Entry.comparingByValue());
+
+        final int excess = Math.min(candidates.size(), candidates.size() - maximumSize + maximumSize / 10);
+        for (int i = 0; i < excess; i++) {
+            entries.remove(candidates.get(i).getKey());
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.github.darkwrat.dkim;
+
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * The tags of a DKIM-Signature field, checked as required by RFC 6376 6.1.1. Anything that
+ * makes the signature unusable is reported as an exception, a PERMERROR for the verifier.
+ */
+
+final class ParsedSignature {
+
+    private final Map<String, String> tags;
+    private final SigningAlgorithm algorithm;
+    private final Canonicalization headerCanonicalization;
+    private final Canonicalization bodyCanonicalization;
+    private final String domain;
+    private final String selector;
+    private final String identityDomain;
+    private final String[] signedHeaders;
+    private final byte[] bodyHash;
+    private final byte[] signature;
+    private final long length;
+
+    private ParsedSignature(Map<String, String> tags, SigningAlgorithm algorithm, Canonicalization headerCanonicalization,
+                            Canonicalization bodyCanonicalization, String domain, String selector, String identityDomain,
+                            String[] signedHeaders, byte[] bodyHash, byte[] signature, long length) {
+        this.tags = tags;
+        this.algorithm = algorithm;
+        this.headerCanonicalization = headerCanonicalization;
+        this.bodyCanonicalization = bodyCanonicalization;
+        this.domain = domain;
+        this.selector = selector;
+        this.identityDomain = identityDomain;
+        this.signedHeaders = signedHeaders;
+        this.bodyHash = bodyHash;
+        this.signature = signature;
+        this.length = length;
+    }
+
+    /*
+     * now is the time of verification in seconds since the epoch, for the x= tag.
+     */
+    static ParsedSignature parse(Map<String, String> tags, boolean sha1Accepted, long now) throws DkimSignerException {
+
+        if (!"1".equals(tags.get("v"))) {
+            throw new DkimSignerException("The signature has version " + tags.get("v") + ", 1 is supported");
+        }
+        for (String required : new String[]{"a", "b", "bh", "d", "h", "s"}) {
+            if (tags.get(required) == null) {
+                throw new DkimSignerException("The signature has no " + required + "= tag");
+            }
+        }
+
+        final SigningAlgorithm algorithm = SigningAlgorithm.forRfc4871Notation(tags.get("a"));
+        if (algorithm == null) {
+            throw new DkimSignerException("The algorithm " + tags.get("a") + " is not supported");
+        }
+        if (algorithm == SigningAlgorithm.SHA1withRSA && !sha1Accepted) {
+            throw new DkimSignerException("rsa-sha1 signatures are not accepted (RFC 8301)");
+        }
+
+        final String canonicalization = tags.containsKey("c") ? tags.get("c") : "simple/simple";
+        final int slash = canonicalization.indexOf('/');
+        final Canonicalization headerCanonicalization = canonicalization(slash == -1 ? canonicalization : canonicalization.substring(0, slash));
+        final Canonicalization bodyCanonicalization = slash == -1 ? Canonicalization.SIMPLE : canonicalization(canonicalization.substring(slash + 1));
+
+        final String query = tags.get("q");
+        if (query != null && !query.toLowerCase(Locale.ROOT).contains("dns/txt")) {
+            throw new DkimSignerException("The query method " + query + " is not supported");
+        }
+
+        final String domain = tags.get("d").toLowerCase(Locale.ROOT);
+        final String identity = tags.get("i");
+        final String identityDomain = identity == null ? domain : identity.substring(identity.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+        if (identity != null && (identity.indexOf('@') == -1 || !identityDomain.equals(domain) && !identityDomain.endsWith('.' + domain))) {
+            throw new DkimSignerException("The identity " + identity + " is not in the signing domain " + domain);
+        }
+
+        final String[] signedHeaders = tags.get("h").split(":");
+        boolean fromSigned = false;
+        for (int i = 0; i < signedHeaders.length; i++) {
+            signedHeaders[i] = signedHeaders[i].trim();
+            fromSigned |= "from".equalsIgnoreCase(signedHeaders[i]);
+        }
+        if (!fromSigned) {
+            throw new DkimSignerException("The From field is not signed");
+        }
+
+        final long timestamp = tags.containsKey("t") ? number(tags, "t") : -1;
+        if (tags.containsKey("x")) {
+            final long expiration = number(tags, "x");
+            if (timestamp != -1 && expiration < timestamp) {
+                throw new DkimSignerException("The signature expires before it was made");
+            }
+            if (expiration < now) {
+                throw new DkimSignerException("The signature has expired");
+            }
+        }
+
+        return new ParsedSignature(tags, algorithm, headerCanonicalization, bodyCanonicalization, domain,
+                tags.get("s"), identityDomain, signedHeaders, base64(tags, "bh"), base64(tags, "b"),
+                tags.containsKey("l") ? number(tags, "l") : -1);
+    }
+
+    Map<String, String> getTags() {
+        return tags;
+    }
+
+    SigningAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    // the hash name of the a= tag, as used in the h= tag of key records
+    String getHashName() {
+        final String notation = algorithm.getRfc4871Notation();
+        return notation.substring(notation.indexOf('-') + 1);
+    }
+
+    Canonicalization getHeaderCanonicalization() {
+        return headerCanonicalization;
+    }
+
+    Canonicalization getBodyCanonicalization() {
+        return bodyCanonicalization;
+    }
+
+    String getDomain() {
+        return domain;
+    }
+
+    String getSelector() {
+        return selector;
+    }
+
+    // the domain of i=, the signing domain if there is no i=
+    String getIdentityDomain() {
+        return identityDomain;
+    }
+
+    String[] getSignedHeaders() {
+        return signedHeaders;
+    }
+
+    byte[] getBodyHash() {
+        return bodyHash;
+    }
+
+    byte[] getSignature() {
+        return signature;
+    }
+
+    // the l= tag, -1 if the whole body is signed
+    long getLength() {
+        return length;
+    }
+
+    private static Canonicalization canonicalization(String type) throws DkimSignerException {
+
+        final String trimmed = type.trim();
+        if (Canonicalization.SIMPLE.getType().equalsIgnoreCase(trimmed)) {
+            return Canonicalization.SIMPLE;
+        }
+        if (Canonicalization.RELAXED.getType().equalsIgnoreCase(trimmed)) {
+            return Canonicalization.RELAXED;
+        }
+        throw new DkimSignerException("The canonicalization " + type + " is not supported");
+    }
+
+    private static long number(Map<String, String> tags, String name) throws DkimSignerException {
+
+        final String value = tags.get(name);
+        try {
+            final long number = Long.parseLong(value);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new DkimSignerException("The " + name + "= tag has the invalid value " + value);
+    }
+
+    private static byte[] base64(Map<String, String> tags, String name) throws DkimSignerException {
+
+        try {
+            return Base64.getDecoder().decode(TagList.removeWhitespace(tags.get(name)));
+        } catch (IllegalArgumentException iae) {
+            throw new DkimSignerException("The " + name + "= tag is not valid base64", iae);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParsedSignature{d=" + domain + ", s=" + selector + ", a=" + algorithm.getRfc4871Notation() + '}';
+    }
+
+}
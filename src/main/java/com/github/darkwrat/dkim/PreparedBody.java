@@ -0,0 +1,110 @@
+package com.github.darkwrat.dkim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * An encoded message body that is shared by many messages, e.g. the recipients of a mailing
+ * list that only differ in To and Message-ID. The body hash is computed once for each
+ * combination of body canonicalization and hash algorithm asked for and then reused, so
+ * signing a message with a prepared body only costs the header part and the signature.
+ *
+ * Instances are immutable and can be used by several threads at once. Large bodies may be
+ * spooled to a temporary file (see SmtpDkimMessage), close() removes it once the body is no
+ * longer needed by any message.
+ */
+
+public final class PreparedBody implements Closeable {
+
+    private final BodyBuffer encodedBody;
+    private final String[][] contentHeaders;
+    private final ConcurrentMap<List<Object>, BodyHash> bodyHashes = new ConcurrentHashMap<List<Object>, BodyHash>();
+
+    PreparedBody(BodyBuffer encodedBody, String[][] contentHeaders) {
+        this.encodedBody = encodedBody;
+        this.contentHeaders = contentHeaders;
+    }
+
+    /*
+     * Wraps an already encoded body, the caller is responsible for matching content headers.
+     */
+    public static PreparedBody of(byte[] encodedBody) {
+        final ByteBuilder body = new ByteBuilder(encodedBody.length);
+        body.append(encodedBody);
+        return new PreparedBody(BodyBuffer.of(body), new String[0][]);
+    }
+
+    public long size() {
+        return encodedBody.length();
+    }
+
+    public boolean isSpooled() {
+        return encodedBody.isSpooled();
+    }
+
+    public byte[] toByteArray() throws IOException {
+        return encodedBody.toByteArray();
+    }
+
+    /*
+     * Reads the encoded body without copying it into memory.
+     */
+    public InputStream newInputStream() throws IOException {
+        return encodedBody.newInputStream();
+    }
+
+    /*
+     * Deletes the spool file of the body, if any.
+     */
+    @Override
+    public void close() {
+        encodedBody.delete();
+    }
+
+    /*
+     * The Content-* headers of the message the body was taken from, as name/value pairs.
+     */
+    String[][] getContentHeaders() {
+        return contentHeaders;
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        encodedBody.writeTo(os);
+    }
+
+    BodyHash getBodyHash(Canonicalization bodyCanonicalization, SigningContext signingContext, DkimMetrics metrics) throws DkimSignerException {
+
+        final List<Object> key = bodyHashKey(bodyCanonicalization, signingContext);
+        BodyHash bodyHash = bodyHashes.get(key);
+        if (bodyHash == null) {
+            // concurrent first calls may hash twice, the results are the same
+            final BodyHasher bodyHasher = new BodyHasher(bodyCanonicalization, signingContext.getMessageDigest(), metrics);
+            try {
+                writeTo(bodyHasher);
+                bodyHash = new BodyHash(bodyHasher.finish(), bodyHasher.getLength());
+            } catch (IOException ioe) {
+                throw new DkimSignerException("The body canonicalization failed", ioe);
+            }
+            bodyHashes.putIfAbsent(key, bodyHash);
+        }
+        return bodyHash;
+    }
+
+    /*
+     * Records a body hash computed while the body was being encoded.
+     */
+    void putBodyHash(Canonicalization bodyCanonicalization, SigningContext signingContext, BodyHash bodyHash) {
+        bodyHashes.putIfAbsent(bodyHashKey(bodyCanonicalization, signingContext), bodyHash);
+    }
+
+    static List<Object> bodyHashKey(Canonicalization bodyCanonicalization, SigningContext signingContext) {
+        return Arrays.<Object>asList(bodyCanonicalization, signingContext.getSigningAlgorithm().getJavaHashNotation());
+    }
+
+}
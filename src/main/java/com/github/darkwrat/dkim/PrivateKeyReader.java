@@ -0,0 +1,83 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+
+/*
+ * Parses unencrypted RSA and Ed25519 private keys as written by openssl: PEM or DER, in
+ * PKCS#8 or, for RSA, the traditional PKCS#1 format (BEGIN RSA PRIVATE KEY).
+ */
+
+final class PrivateKeyReader {
+
+    private static final String PEM_BEGIN = "-----BEGIN ";
+    private static final String PEM_END = "-----END ";
+
+    private PrivateKeyReader() {
+    }
+
+    static PrivateKey read(Path keyFile) throws IOException, DkimSignerException {
+        return read(Files.readAllBytes(keyFile), keyFile.toString());
+    }
+
+    /*
+     * source names the key in error messages.
+     */
+    static PrivateKey read(byte[] encoded, String source) throws DkimSignerException {
+
+        final String text = new String(encoded, StandardCharsets.US_ASCII);
+        final int begin = text.indexOf(PEM_BEGIN);
+        if (begin == -1) {
+            return readDer(encoded, false, source);
+        }
+
+        final int typeEnd = text.indexOf("-----", begin + PEM_BEGIN.length());
+        final int end = text.indexOf(PEM_END, typeEnd);
+        if (typeEnd == -1 || end == -1) {
+            throw new DkimSignerException(source + " is not a complete PEM file");
+        }
+
+        final String type = text.substring(begin + PEM_BEGIN.length(), typeEnd);
+        if (!"PRIVATE KEY".equals(type) && !"RSA PRIVATE KEY".equals(type)) {
+            throw new DkimSignerException(source + " contains a " + type + ", an unencrypted PRIVATE KEY or RSA PRIVATE KEY is needed");
+        }
+
+        final byte[] der;
+        try {
+            der = Base64.getMimeDecoder().decode(text.substring(typeEnd + 5, end).trim());
+        } catch (IllegalArgumentException iae) {
+            throw new DkimSignerException(source + " has an invalid base64 encoding", iae);
+        }
+        return readDer(der, "RSA PRIVATE KEY".equals(type), source);
+    }
+
+    private static PrivateKey readDer(byte[] der, boolean pkcs1, String source) throws DkimSignerException {
+
+        if (!pkcs1) {
+            final PKCS8EncodedKeySpec privSpec = new PKCS8EncodedKeySpec(der);
+            for (String keyAlgorithm : new String[]{"RSA", "Ed25519"}) {
+                try {
+                    return KeyFactory.getInstance(keyAlgorithm).generatePrivate(privSpec);
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException ignored) {
+                    // not a key of this type, or a JVM without Ed25519
+                }
+            }
+        }
+
+        // a DER file from "openssl rsa -outform der" has no PKCS#8 envelope
+        try {
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(RsaKeyEncoding.privateKeyInfo(der)));
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new DkimSignerException(source + " does not contain an RSA or Ed25519 private key", e);
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * The header fields and body of a message in RFC 5322 format, located in its bytes without
+ * copying them. Fields are kept with their folding, so they can be canonicalized exactly as
+ * they were received.
+ *
+ * Lines are expected to end with CRLF. If the header has bare LF line ends, it is copied
+ * with CRLF instead; the body is left as it is, the body canonicalization converts it.
+ *
+ * A message in a direct or memory-mapped ByteBuffer has only its header copied to the heap,
+ * the body is read from the buffer when it is hashed.
+ */
+
+final class RawMessage {
+
+    private final byte[] header;
+    // field i is header[starts[i], ends[i]) without its CRLF, its name header[starts[i], nameEnds[i])
+    private int[] starts = new int[32];
+    private int[] ends = new int[32];
+    private int[] nameEnds = new int[32];
+    private int fieldCount = 0;
+    private final byte[] body;
+    private final int bodyOffset;
+    private final int bodyLength;
+    private final @Nullable ByteBuffer bodyBuffer;
+
+    private RawMessage(byte[] header, int headerOffset, int headerEnd, byte[] body, int bodyOffset, int bodyLength, @Nullable ByteBuffer bodyBuffer) {
+
+        this.header = header;
+        this.body = body;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.bodyBuffer = bodyBuffer;
+
+        int lineStart = headerOffset;
+        while (lineStart < headerEnd) {
+            int lineEnd = lineStart;
+            while (lineEnd < headerEnd && header[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            final int next = lineEnd + 1;
+            if (lineEnd > lineStart && header[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+
+            final boolean continuation = header[lineStart] == ' ' || header[lineStart] == '\t';
+            if (continuation && fieldCount > 0) {
+                ends[fieldCount - 1] = lineEnd;
+            } else {
+                addField(lineStart, lineEnd);
+            }
+            lineStart = next;
+        }
+    }
+
+    static RawMessage parse(byte[] message) {
+        return parse(message, 0, message.length);
+    }
+
+    static RawMessage parse(byte[] message, int offset, int length) {
+
+        final int end = offset + length;
+        final int headerEnd = headerEnd(message, offset, offset, end);
+        if (headerEnd == -1) {
+            return header(message, offset, end, message, end, 0, null);
+        }
+        final int bodyStart = bodyStart(message, headerEnd);
+        return header(message, offset, headerEnd, message, bodyStart, end - bodyStart, null);
+    }
+
+    /*
+     * The message from the position to the limit of the buffer, which is left unchanged. Only
+     * the header is copied unless the buffer is backed by an array.
+     */
+    static RawMessage parse(ByteBuffer message) {
+
+        if (message.hasArray()) {
+            return parse(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+
+        final ByteBuffer buffer = message.slice();
+        final int end = buffer.limit();
+        int headerEnd = -1;
+        for (int i = 0; i < end && headerEnd == -1; i++) {
+            final byte b = buffer.get(i);
+            if ((i == 0 || buffer.get(i - 1) == '\n') && (b == '\n' || b == '\r' && i + 1 < end && buffer.get(i + 1) == '\n')) {
+                headerEnd = i;
+            }
+        }
+
+        final int bodyStart = headerEnd == -1 ? end : headerEnd + (buffer.get(headerEnd) == '\n' ? 1 : 2);
+        final byte[] header = new byte[bodyStart];
+        buffer.get(header);
+        final ByteBuffer body = buffer.slice();
+        return header(header, 0, headerEnd == -1 ? end : headerEnd, header, 0, body.remaining(), body);
+    }
+
+    /*
+     * A message whose body is hashed separately, e.g. read from a stream behind the header.
+     */
+    static RawMessage parseHeader(byte[] header, int offset, int headerEnd) {
+        return header(header, offset, headerEnd, header, headerEnd, 0, null);
+    }
+
+    /*
+     * The offset of the empty line that ends the header, -1 if there is none in the bytes up to
+     * end. Searching starts at from, a message read in parts can continue where it left off.
+     */
+    static int headerEnd(byte[] message, int offset, int from, int end) {
+
+        for (int i = Math.max(from, offset); i < end; i++) {
+            if ((i == offset || message[i - 1] == '\n')
+                    && (message[i] == '\n' || message[i] == '\r' && i + 1 < end && message[i + 1] == '\n')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the offset behind the empty line at headerEnd
+    static int bodyStart(byte[] message, int headerEnd) {
+        return headerEnd + (message[headerEnd] == '\n' ? 1 : 2);
+    }
+
+    private static RawMessage header(byte[] message, int offset, int headerEnd, byte[] body, int bodyOffset, int bodyLength,
+                                     @Nullable ByteBuffer bodyBuffer) {
+
+        boolean bareLf = false;
+        for (int i = offset; i < headerEnd && !bareLf; i++) {
+            bareLf = message[i] == '\n' && (i == offset || message[i - 1] != '\r');
+        }
+        if (!bareLf) {
+            return new RawMessage(message, offset, headerEnd, body, bodyOffset, bodyLength, bodyBuffer);
+        }
+
+        final ByteBuilder normalized = new ByteBuilder(headerEnd - offset + 64);
+        for (int i = offset; i < headerEnd; i++) {
+            if (message[i] == '\n' && (i == offset || message[i - 1] != '\r')) {
+                normalized.write('\r');
+            }
+            normalized.write(message[i]);
+        }
+        return new RawMessage(normalized.array(), 0, normalized.length(), body, bodyOffset, bodyLength, bodyBuffer);
+    }
+
+    int size() {
+        return fieldCount;
+    }
+
+    byte[] headerArray() {
+        return header;
+    }
+
+    int start(int field) {
+        return starts[field];
+    }
+
+    int end(int field) {
+        return ends[field];
+    }
+
+    // whether the field has the given name, compared ignoring case
+    boolean hasName(int field, String name) {
+
+        final int start = starts[field];
+        if (nameEnds[field] - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int c = header[start + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            int n = name.charAt(i);
+            if (n >= 'A' && n <= 'Z') {
+                n += 'a' - 'A';
+            }
+            if (c != n) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String name(int field) {
+        return new String(header, starts[field], nameEnds[field] - starts[field], StandardCharsets.ISO_8859_1);
+    }
+
+    // everything after the colon, with its folding
+    String value(int field) {
+        final int colon = colon(field);
+        return colon == -1 ? "" : new String(header, colon + 1, ends[field] - colon - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    int colon(int field) {
+        for (int i = nameEnds[field]; i < ends[field]; i++) {
+            if (header[i] == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int bodyLength() {
+        return bodyLength;
+    }
+
+    void writeBody(OutputStream out) throws IOException {
+
+        if (bodyBuffer == null) {
+            out.write(body, bodyOffset, bodyLength);
+            return;
+        }
+
+        // a mapped body passes through a small buffer that stays in the CPU cache
+        final ByteBuffer buffer = bodyBuffer.duplicate();
+        final byte[] chunk = new byte[Math.min(buffer.remaining(), 64 * 1024)];
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    private void addField(int start, int end) {
+
+        if (fieldCount == starts.length) {
+            starts = Arrays.copyOf(starts, fieldCount * 2);
+            ends = Arrays.copyOf(ends, fieldCount * 2);
+            nameEnds = Arrays.copyOf(nameEnds, fieldCount * 2);
+        }
+
+        // obsolete syntax allows whitespace between name and colon
+        int nameEnd = start;
+        while (nameEnd < end && header[nameEnd] != ':') {
+            nameEnd++;
+        }
+        while (nameEnd > start && (header[nameEnd - 1] == ' ' || header[nameEnd - 1] == '\t')) {
+            nameEnd--;
+        }
+
+        starts[fieldCount] = start;
+        ends[fieldCount] = end;
+        nameEnds[fieldCount] = nameEnd;
+        fieldCount++;
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.github.darkwrat.dkim;
+
+/*
+ * Wraps bare PKCS#1 RSA keys into the DER structures the JCA KeyFactory takes: openssl
+ * writes private keys without a PKCS#8 envelope in its traditional format, and some key
+ * records publish an RSAPublicKey instead of a SubjectPublicKeyInfo.
+ */
+
+final class RsaKeyEncoding {
+
+    // AlgorithmIdentifier of rsaEncryption (1.2.840.113549.1.1.1) with NULL parameters
+    private static final byte[] RSA_ALGORITHM_IDENTIFIER = {
+            0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01, 0x05, 0x00
+    };
+
+    private RsaKeyEncoding() {
+    }
+
+    // PrivateKeyInfo ::= SEQUENCE { version INTEGER 0, algorithm AlgorithmIdentifier, privateKey OCTET STRING }
+    static byte[] privateKeyInfo(byte[] pkcs1) {
+
+        final ByteBuilder content = new ByteBuilder(pkcs1.length + 32);
+        content.write(0x02);
+        content.write(0x01);
+        content.write(0x00);
+        content.append(RSA_ALGORITHM_IDENTIFIER);
+        content.write(0x04);
+        writeLength(content, pkcs1.length);
+        content.append(pkcs1);
+
+        return sequence(content);
+    }
+
+    // SubjectPublicKeyInfo ::= SEQUENCE { algorithm AlgorithmIdentifier, subjectPublicKey BIT STRING }
+    static byte[] subjectPublicKeyInfo(byte[] pkcs1) {
+
+        final ByteBuilder content = new ByteBuilder(pkcs1.length + 32);
+        content.append(RSA_ALGORITHM_IDENTIFIER);
+        content.write(0x03);
+        writeLength(content, pkcs1.length + 1);
+        // no unused bits
+        content.write(0x00);
+        content.append(pkcs1);
+
+        return sequence(content);
+    }
+
+    private static byte[] sequence(ByteBuilder content) {
+
+        final ByteBuilder sequence = new ByteBuilder(content.length() + 6);
+        sequence.write(0x30);
+        writeLength(sequence, content.length());
+        sequence.write(content.array(), 0, content.length());
+        return sequence.toByteArray();
+    }
+
+    // definite length, the short form below 128 bytes
+    private static void writeLength(ByteBuilder out, int length) {
+
+        if (length < 0x80) {
+            out.write(length);
+            return;
+        }
+
+        int bytes = 0;
+        for (int l = length; l > 0; l >>>= 8) {
+            bytes++;
+        }
+        out.write(0x80 | bytes);
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write(length >>> (i * 8));
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/*
+ * The signature field of a configuration, a DKIM-Signature or one of the signed fields of
+ * an ARC set. The tags that are the same for every message (v, a, q, c, s, d) are serialized,
+ * folded and canonicalized once; a Field appends the per-message tags behind them into
+ * buffers that are reused by the signing thread.
+ *
+ * The static tags end in ';', so their canonical form followed by the canonicalized rest
+ * of the field equals the canonical form of the whole field.
+ */
+
+final class SignatureTemplate {
+
+    static final String DKIM_SIGNATURE_HEADER = "DKIM-Signature";
+
+    // buffers grown beyond this by an unusually large header block aren't kept for the next message
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final ThreadLocal<Field> FIELDS = new ThreadLocal<Field>();
+
+    private final SigningContext signingContext;
+    private final Canonicalization headerCanonicalization;
+    private final byte[] prefix;
+    private final int prefixColumn;
+    private final byte @Nullable [] canonicalPrefix;
+
+    /*
+     * staticTags are pairs of tag name and value.
+     */
+    SignatureTemplate(String headerName, SigningContext signingContext, Canonicalization headerCanonicalization,
+                      String... staticTags) throws DkimSignerException {
+
+        this.signingContext = signingContext;
+        this.headerCanonicalization = headerCanonicalization;
+
+        final Field field = new Field(this);
+        final ByteBuilder canonical = new ByteBuilder(256);
+        try {
+            field.folder.start(headerName);
+            for (int i = 0; i < staticTags.length; i += 2) {
+                field.tag(staticTags[i], staticTags[i + 1]);
+            }
+            this.prefix = field.line.toByteArray();
+            this.prefixColumn = field.folder.column();
+
+            headerCanonicalization.canonicalizeHeader(prefix, 0, prefix.length, canonical);
+            this.canonicalPrefix = headerCanonicalization.canonicalizeHeaderContinuation(prefix, 0, 0, new ByteBuilder(0))
+                    ? canonical.toByteArray()
+                    : null;
+        } catch (IOException ioe) {
+            throw new DkimSignerException("The header canonicalization failed", ioe);
+        }
+    }
+
+    static SignatureTemplate dkimSignature(SigningContext signingContext, Canonicalization headerCanonicalization,
+                                           Canonicalization bodyCanonicalization, String selector, String signingDomain) throws DkimSignerException {
+
+        return new SignatureTemplate(DKIM_SIGNATURE_HEADER, signingContext, headerCanonicalization,
+                "v", "1",
+                "a", signingContext.getSigningAlgorithm().getRfc4871Notation(),
+                "q", "dns/txt",
+                "c", headerCanonicalization.getType() + '/' + bodyCanonicalization.getType(),
+                "s", selector,
+                "d", signingDomain);
+    }
+
+    /*
+     * A field holding the static tags, to be completed with the per-message tags and signed.
+     * It belongs to the calling thread and is valid until its next call of newField().
+     */
+    Field newField() {
+
+        Field field = FIELDS.get();
+        if (field == null || field.line.array().length > MAX_RETAINED_CAPACITY || field.data.array().length > MAX_RETAINED_CAPACITY) {
+            field = new Field(this);
+            FIELDS.set(field);
+        }
+
+        field.template = this;
+        field.line.reset();
+        field.line.append(prefix);
+        field.folder.resume(prefixColumn);
+        return field;
+    }
+
+    // the folding of the tags whose values may be broken, RFC 6376 3.5
+    private static HeaderFolder.Folding folding(String tag) {
+        switch (tag) {
+            case "h":
+                return HeaderFolder.Folding.HEADER_NAMES;
+            case "z":
+                return HeaderFolder.Folding.HEADER_COPIES;
+            case "bh":
+            case "b":
+                return HeaderFolder.Folding.BASE64;
+            default:
+                return HeaderFolder.Folding.NONE;
+        }
+    }
+
+    static final class Field {
+
+        private SignatureTemplate template;
+        private final ByteBuilder line = new ByteBuilder(512);
+        private final ByteBuilder data = new ByteBuilder(4096);
+        private final HeaderFolder folder = new HeaderFolder(line);
+
+        private Field(SignatureTemplate template) {
+            this.template = template;
+        }
+
+        Field tag(String name, String value) {
+            try {
+                folder.tag(name, value, folding(name));
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Writing into memory failed", ioe);
+            }
+            return this;
+        }
+
+        /*
+         * Signs the canonicalized header fields followed by this field with an empty b= tag,
+         * and returns the complete header line.
+         */
+        String sign(ByteBuilder canonicalHeaders) throws DkimSignerException {
+            return sign(canonicalHeaders, DkimMetrics.NOOP);
+        }
+
+        // reports the private key operation alone to metrics.signed()
+        String sign(ByteBuilder canonicalHeaders, DkimMetrics metrics) throws DkimSignerException {
+
+            data.reset();
+            data.write(canonicalHeaders.array(), 0, canonicalHeaders.length());
+            try {
+                folder.openTag("b");
+                if (template.canonicalPrefix != null) {
+                    data.append(template.canonicalPrefix);
+                    final int prefixLength = template.prefix.length;
+                    template.headerCanonicalization.canonicalizeHeaderContinuation(line.array(), prefixLength, line.length() - prefixLength, data);
+                } else {
+                    template.headerCanonicalization.canonicalizeHeader(line.array(), 0, line.length(), data);
+                }
+
+                final long start = metrics != DkimMetrics.NOOP ? System.nanoTime() : 0;
+                final byte[] signature = template.signingContext.sign(data.array(), 0, data.length());
+                if (metrics != DkimMetrics.NOOP) {
+                    metrics.signed(template.signingContext.getSigningAlgorithm(), System.nanoTime() - start);
+                }
+                folder.value(DkimUtil.base64Encode(signature), HeaderFolder.Folding.BASE64, 0);
+            } catch (IOException ioe) {
+                throw new DkimSignerException("The header canonicalization failed", ioe);
+            }
+            return line.toString();
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.github.darkwrat.dkim;
+
+import java.util.List;
+
+/*
+ * A message whose DKIM-Signature has been computed ahead of sending. The message keeps the
+ * signature, so writing it to the SMTP connection no longer involves the private key
+ * operation as long as it isn't modified.
+ */
+
+public final class SignedMessage {
+
+    private final SmtpDkimMessage message;
+    private final List<String> signatureHeaderLines;
+
+    SignedMessage(SmtpDkimMessage message, List<String> signatureHeaderLines) {
+        this.message = message;
+        this.signatureHeaderLines = signatureHeaderLines;
+    }
+
+    public SmtpDkimMessage getMessage() {
+        return message;
+    }
+
+    // the signature of the first signer
+    public String getSignatureHeaderLine() {
+        return signatureHeaderLines.get(0);
+    }
+
+    public List<String> getSignatureHeaderLines() {
+        return signatureHeaderLines;
+    }
+
+}
@@ -1,7 +1,16 @@
 package com.github.darkwrat.dkim;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.security.Key;
+import java.security.PrivateKey;
+import java.util.Arrays;
+
 /*
  * Allowed signing algorithms by DKIM RFC 4871 with translation to different Java notations
+ *
+ * ed25519-sha256 (RFC 8463) signs the SHA-256 hash of the header data with PureEdDSA; it
+ * needs a JCA provider knowing Ed25519, e.g. the JDK from version 15 on.
  * 
  * @author Florian Sager, http://www.agitos.de, 22.11.2008
  */
@@ -12,16 +21,76 @@ public class SigningAlgorithm {
     public static final SigningAlgorithm SHA256withRSA = new SigningAlgorithm("rsa-sha256", "SHA256withRSA", "sha-256");
     @SuppressWarnings("ConstantNamingConvention")
     public static final SigningAlgorithm SHA1withRSA = new SigningAlgorithm("rsa-sha1", "SHA1withRSA", "sha-1");
+    @SuppressWarnings("ConstantNamingConvention")
+    public static final SigningAlgorithm ED25519SHA256 = new SigningAlgorithm("ed25519-sha256", "Ed25519", "sha-256", "Ed25519", true);
+
+    // id-Ed25519 (RFC 8410 3) as a DER OBJECT IDENTIFIER
+    private static final byte[] ED25519_OID = {0x06, 0x03, 0x2b, 0x65, 0x70};
 
     private String rfc4871Notation;
     private String javaSecNotation;
     private String javaHashNotation;
+    private String keyAlgorithm;
+    private boolean prehashed;
 
     // 1. argument: RFC 4871 format, 2. argument: java representation, 3. argument: java hashing digest
     public SigningAlgorithm(String rfc4871Notation, String javaSecNotation, String javaHashNotation) {
+        this(rfc4871Notation, javaSecNotation, javaHashNotation, "RSA", false);
+    }
+
+    // 4. argument: java key algorithm, 5. argument: whether the signature is made over the hash of the data
+    public SigningAlgorithm(String rfc4871Notation, String javaSecNotation, String javaHashNotation, String keyAlgorithm, boolean prehashed) {
         this.rfc4871Notation = rfc4871Notation;
         this.javaSecNotation = javaSecNotation;
         this.javaHashNotation = javaHashNotation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.prehashed = prehashed;
+    }
+
+    /*
+     * The default algorithm for a key: ed25519-sha256 for Ed25519 keys, rsa-sha256 otherwise.
+     */
+    public static SigningAlgorithm forKey(PrivateKey privkey) {
+        return isEd25519Key(privkey) ? ED25519SHA256 : SHA256withRSA;
+    }
+
+    // the algorithm named by an a= tag, null if it isn't one of the above
+    static @Nullable SigningAlgorithm forRfc4871Notation(String notation) {
+        for (SigningAlgorithm algorithm : new SigningAlgorithm[]{SHA256withRSA, ED25519SHA256, SHA1withRSA}) {
+            if (algorithm.rfc4871Notation.equalsIgnoreCase(notation)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    static boolean isEd25519Key(Key key) {
+
+        // providers like Bouncy Castle name the curve, the JDK calls Ed25519 and Ed448 keys EdDSA alike
+        final String algorithm = key.getAlgorithm();
+        if ("Ed25519".equalsIgnoreCase(algorithm)) {
+            return true;
+        }
+        if (!"EdDSA".equalsIgnoreCase(algorithm)) {
+            return false;
+        }
+
+        // so the curve is taken from the AlgorithmIdentifier at the start of the PKCS#8 or X.509 encoding
+        final byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            return false;
+        }
+        for (int i = 0; i + ED25519_OID.length <= Math.min(encoded.length, 16); i++) {
+            if (Arrays.equals(Arrays.copyOfRange(encoded, i, i + ED25519_OID.length), ED25519_OID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isEdDsaKey(Key key) {
+        final String algorithm = key.getAlgorithm();
+        return "EdDSA".equalsIgnoreCase(algorithm) || "Ed25519".equalsIgnoreCase(algorithm) || "Ed448".equalsIgnoreCase(algorithm);
     }
 
     public String getJavaHashNotation() {
@@ -36,4 +105,12 @@ public class SigningAlgorithm {
         return rfc4871Notation;
     }
 
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public boolean isPrehashed() {
+        return prehashed;
+    }
+
 }
@@ -0,0 +1,147 @@
+package com.github.darkwrat.dkim;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Binds a private key to a signing algorithm. Neither Signature nor MessageDigest is
+ * thread-safe, so every thread keeps one of each per algorithm, shared by all contexts and
+ * initialized with the key of a context for each signature; instances of this class can
+ * therefore be shared freely between threads without locking. A thread holds as many JCA
+ * objects with many keys as with one; a key stays in its Signature only until the thread
+ * signs with another one.
+ */
+
+final class SigningContext {
+
+    private static final ThreadLocal<Map<String, Signature>> SIGNATURES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+
+    private final SigningAlgorithm signingAlgorithm;
+    private final PrivateKey privkey;
+
+    SigningContext(SigningAlgorithm signingAlgorithm, PrivateKey privkey) throws DkimSignerException {
+
+        this.signingAlgorithm = signingAlgorithm;
+        this.privkey = privkey;
+
+        // an Ed448 key would be taken by the JCA and make signatures no verifier accepts as ed25519-sha256
+        if (SigningAlgorithm.isEdDsaKey(privkey) && !SigningAlgorithm.isEd25519Key(privkey)) {
+            throw new DkimSignerException("The provided " + privkey.getAlgorithm() + " private key is not an Ed25519 key, other EdDSA curves are not defined for DKIM");
+        }
+        if (signingAlgorithm.isPrehashed() && !SigningAlgorithm.isEd25519Key(privkey)) {
+            throw new DkimSignerException("The provided " + privkey.getAlgorithm() + " private key is invalid for " + signingAlgorithm.getRfc4871Notation());
+        }
+
+        // fail early on unknown algorithms or unusable keys
+        getMessageDigest();
+        initSign(signature());
+    }
+
+    SigningAlgorithm getSigningAlgorithm() {
+        return signingAlgorithm;
+    }
+
+    PrivateKey getPrivateKey() {
+        return privkey;
+    }
+
+    /*
+     * Returns the calling thread's digest of this hash algorithm in its initial state.
+     */
+    MessageDigest getMessageDigest() throws DkimSignerException {
+        return messageDigest(signingAlgorithm);
+    }
+
+    byte[] sign(byte[] data, int off, int len) throws DkimSignerException {
+
+        final Signature signature = signature();
+        initSign(signature);
+        try {
+            if (signingAlgorithm.isPrehashed()) {
+                // RFC 8463: Ed25519 is applied to the SHA-256 hash of the data, not the data itself
+                final MessageDigest md = getMessageDigest();
+                md.update(data, off, len);
+                signature.update(md.digest());
+            } else {
+                signature.update(data, off, len);
+            }
+            return signature.sign();
+        } catch (SignatureException se) {
+            // the instance may be left in an undefined state, start over with a fresh one
+            discardSignature(signingAlgorithm);
+            throw new DkimSignerException("The signing operation by Java security failed", se);
+        }
+    }
+
+    /*
+     * A digest of its own for the caller, for hashing alongside the per-thread one.
+     */
+    MessageDigest newMessageDigest() throws DkimSignerException {
+
+        try {
+            return MessageDigest.getInstance(signingAlgorithm.getJavaHashNotation());
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new DkimSignerException("The hashing algorithm " + signingAlgorithm.getJavaHashNotation() + " is not known by the JVM", nsae);
+        }
+    }
+
+    // the calling thread's Signature of this algorithm, initialized with whichever key it was used with last
+    private Signature signature() throws DkimSignerException {
+        return signature(signingAlgorithm);
+    }
+
+    private void initSign(Signature signature) throws DkimSignerException {
+        try {
+            signature.initSign(privkey);
+        } catch (InvalidKeyException ike) {
+            throw new DkimSignerException("The provided " + privkey.getAlgorithm() + " private key is invalid for " + signingAlgorithm.getRfc4871Notation(), ike);
+        }
+    }
+
+    /*
+     * The calling thread's instances of an algorithm, the verifier takes its own from here as well.
+     */
+    static MessageDigest messageDigest(SigningAlgorithm algorithm) throws DkimSignerException {
+
+        final Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest md = digests.get(algorithm.getJavaHashNotation());
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(algorithm.getJavaHashNotation());
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new DkimSignerException("The hashing algorithm " + algorithm.getJavaHashNotation() + " is not known by the JVM", nsae);
+            }
+            digests.put(algorithm.getJavaHashNotation(), md);
+        }
+        md.reset();
+        return md;
+    }
+
+    static Signature signature(SigningAlgorithm algorithm) throws DkimSignerException {
+
+        final Map<String, Signature> signatures = SIGNATURES.get();
+        Signature signature = signatures.get(algorithm.getJavaSecNotation());
+        if (signature == null) {
+            try {
+                signature = Signature.getInstance(algorithm.getJavaSecNotation());
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new DkimSignerException("The signing algorithm " + algorithm.getJavaSecNotation() + " is not known by the JVM", nsae);
+            }
+            signatures.put(algorithm.getJavaSecNotation(), signature);
+        }
+        return signature;
+    }
+
+    // after a SignatureException the instance may be left in an undefined state, the next call gets a fresh one
+    static void discardSignature(SigningAlgorithm algorithm) {
+        SIGNATURES.get().remove(algorithm.getJavaSecNotation());
+    }
+
+}
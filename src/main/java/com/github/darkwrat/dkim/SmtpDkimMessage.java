@@ -1,43 +1,110 @@
 package com.github.darkwrat.dkim;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.activation.DataHandler;
+import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeUtility;
 
 import com.sun.mail.smtp.SMTPMessage;
-import com.sun.mail.util.LineOutputStream;
+import org.jetbrains.annotations.Nullable;
 
 /*
  * Extension of SMTPMessage for the inclusion of a DKIM signature.
+ *
+ * The encoded body and the DKIM-Signature header are kept after the first writeTo(), so
+ * retries and repeated writes of an unchanged message skip encoding and signing. Changes
+ * through the header and content setters of this class drop the cached data; changes made
+ * to body parts of a multipart content are only noticed after invalidateSignature().
+ * saveChanges(), which Transport.send() calls, leaves the headers of a signed message as
+ * they were signed, so a message signed ahead of sending keeps its signature and Message-ID.
+ *
+ * For mailing list fan-out, one PreparedBody can be shared by many messages with
+ * setPreparedBody(), the body is then encoded and hashed only once for all of them.
+ *
+ * Bodies larger than the session property mail.smtp.dkim.spoolthreshold (in bytes) are
+ * encoded to a temporary file in mail.smtp.dkim.spooldir (default: java.io.tmpdir) instead
+ * of the heap and hashed while being written. The file is removed when the body is dropped
+ * by a modification, invalidateSignature() or close(), so open the message in a
+ * try-with-resources block; a file left over is deleted once the message has been garbage
+ * collected or when the JVM exits.
+ *
+ * Further signers added with addSigner() put their own DKIM-Signature on the message, e.g.
+ * an Ed25519 one next to the RSA signature. All signatures are made in one pass: header
+ * fields are canonicalized once per header canonicalization and the body is hashed once per
+ * pair of body canonicalization and hash algorithm.
+ *
+ * With setArcSeal() a forwarding host adds an ARC set above the DKIM signatures; its
+ * ARC-Message-Signature is made in the same pass and shares header and body hashing with
+ * the DKIM signers.
  * 
  * @author Florian Sager, http://www.agitos.de, 22.11.2008
  */
 
-public class SmtpDkimMessage extends SMTPMessage {
+public class SmtpDkimMessage extends SMTPMessage implements AutoCloseable {
 
-    private DkimSigner signer;
-    private String encodedBody;
+    private static final String SPOOL_THRESHOLD_PROPERTY = "mail.smtp.dkim.spoolthreshold";
+    private static final String SPOOL_DIRECTORY_PROPERTY = "mail.smtp.dkim.spooldir";
+
+    // the signer given to the constructor comes first, followed by those from addSigner()
+    private final List<DkimSigner> signers = new ArrayList<DkimSigner>(2);
+    private final List<DkimSignOptions> signOptions = new ArrayList<DkimSignOptions>(2);
+
+    private PreparedBody body;
+    private boolean bodyShared = false;
+    private boolean bodyOwned = false;
+    private List<String> signatureHeaderLines;
+    private DkimSignerConfig[] signatureConfigs;
+    // the header as signed, written out by writeTo()
+    private HeaderBlock signedHeaders;
+    private @Nullable ArcSealer arcSealer;
+    private String arcAuthenticationResults;
+    private ArcSealer.ChainValidation arcChainValidation;
+    private List<String> arcHeaderLines = Collections.emptyList();
 
     public SmtpDkimMessage(Session session, DkimSigner signer) {
+        this(session, signer, DkimSignOptions.DEFAULT);
+    }
+
+    public SmtpDkimMessage(Session session, DkimSigner signer, DkimSignOptions signOptions) {
         super(session);
-        this.signer = signer;
+        this.signers.add(signer);
+        this.signOptions.add(signOptions);
     }
 
     public SmtpDkimMessage(MimeMessage message, DkimSigner signer) throws MessagingException {
+        this(message, signer, DkimSignOptions.DEFAULT);
+    }
+
+    public SmtpDkimMessage(MimeMessage message, DkimSigner signer, DkimSignOptions signOptions) throws MessagingException {
         super(message);
-        this.signer = signer;
+        this.signers.add(signer);
+        this.signOptions.add(signOptions);
     }
 
     public SmtpDkimMessage(Session session, InputStream is, DkimSigner signer) throws MessagingException {
+        this(session, is, signer, DkimSignOptions.DEFAULT);
+    }
+
+    public SmtpDkimMessage(Session session, InputStream is, DkimSigner signer, DkimSignOptions signOptions) throws MessagingException {
         super(session, is);
-        this.signer = signer;
+        this.signers.add(signer);
+        this.signOptions.add(signOptions);
     }
 
     /**
@@ -65,18 +132,240 @@ public class SmtpDkimMessage extends SMTPMessage {
             saveChanges();
         }
 
-        final ByteArrayOutputStream osBody = new ByteArrayOutputStream();
-        // First, write out the body to the body buffer
-        if (modified) {
-            // Finally, the content. Encode if required.
-            // XXX: May need to account for ESMTP ?
-            final OutputStream osEncoding = MimeUtility.encode(osBody, this.getEncoding());
-            this.getDataHandler().writeTo(osEncoding);
-            osEncoding.flush(); // Needed to complete encoding
-        } else {
-            // Else, the content is untouched, so we can just output it
-            // Finally, the content.
-            if (content == null) {
+        // First and second, encode and sign the body unless nothing has changed since the last call
+        final List<String> signatureHeaderLines = signAll();
+        final PreparedBody body = getBody();
+
+        // Third, write out the header, set generated signatures to the top, below an ARC set
+        final ByteBuilder signatures = new ByteBuilder(512 * (signatureHeaderLines.size() + arcHeaderLines.size()));
+        for (String arcHeaderLine : arcHeaderLines) {
+            signatures.append(arcHeaderLine).append("\r\n");
+        }
+        for (String signatureHeaderLine : signatureHeaderLines) {
+            signatures.append(signatureHeaderLine).append("\r\n");
+        }
+        signatures.writeTo(os);
+
+        // the bytes the signatures were computed from, without converting the lines again
+        signedHeaders.writeTo(os, ignoreList);
+
+        // The CRLF separator between header and content
+        os.write('\r');
+        os.write('\n');
+
+        // Send signed mail to waiting DATA command
+        body.writeTo(os);
+        os.flush();
+    }
+
+    /*
+     * Returns the DKIM-Signature header line of the first signer for the current state of the
+     * message, signing it only if there is no signature left from an earlier call. Safe to
+     * call ahead of writeTo(), e.g. on a worker thread, as long as no other thread uses the
+     * message at the same time.
+     */
+    public String sign() throws MessagingException {
+        return signAll().get(0);
+    }
+
+    /*
+     * Like sign(), but returns the header lines of all signers in the order they were added.
+     */
+    public List<String> signAll() throws MessagingException {
+
+        if (!saved) {
+            saveChanges();
+        }
+
+        final DkimSignerConfig[] configs = currentConfigs();
+        if (signatureHeaderLines == null || !Arrays.equals(signatureConfigs, configs)) {
+            final HeaderBlock headers = new HeaderBlock(this);
+            final List<String> headerLines = new ArrayList<String>(configs.length);
+            try {
+                for (int i = 0; i < configs.length; i++) {
+                    headerLines.add(DkimSigner.sign(this, signOptions.get(i), configs[i], headers));
+                }
+                arcHeaderLines = arcSealer == null
+                        ? Collections.<String>emptyList()
+                        : Collections.unmodifiableList(arcSealer.seal(this, arcAuthenticationResults, arcChainValidation, headers));
+            } catch (DkimSignerException e) {
+                throw new MessagingException(e.getLocalizedMessage(), e);
+            }
+            signatureHeaderLines = Collections.unmodifiableList(headerLines);
+            signatureConfigs = configs;
+            signedHeaders = headers;
+        }
+
+        return signatureHeaderLines;
+    }
+
+    // Arrays.equals() on these compares by identity, configs have no equals() of their own
+    private DkimSignerConfig[] currentConfigs() {
+        final DkimSignerConfig[] configs = new DkimSignerConfig[signers.size()];
+        for (int i = 0; i < configs.length; i++) {
+            configs[i] = signers.get(i).getConfig();
+        }
+        return configs;
+    }
+
+    /*
+     * Has the message sealed with an ARC set when it is signed. authenticationResults are the
+     * results of the checks made on arrival, e.g. ArcSealer.authenticationResults() of its
+     * DKIM verification; chainValidation is the result of validating the ARC sets it arrived
+     * with. A null sealer removes the seal.
+     */
+    public void setArcSeal(@Nullable ArcSealer sealer, String authenticationResults, ArcSealer.ChainValidation chainValidation) {
+        this.arcSealer = sealer;
+        this.arcAuthenticationResults = authenticationResults;
+        this.arcChainValidation = chainValidation;
+        this.signatureHeaderLines = null;
+    }
+
+    /*
+     * The ARC set added by setArcSeal() from the top down, signing the message if needed;
+     * empty if it isn't sealed.
+     */
+    public List<String> getArcHeaderLines() throws MessagingException {
+        signAll();
+        return arcHeaderLines;
+    }
+
+    /*
+     * Returns the encoded body of this message, encoding it if that hasn't happened yet. The
+     * result can be shared with other messages having the same content via setPreparedBody().
+     */
+    public PreparedBody prepareBody() throws MessagingException {
+        final PreparedBody preparedBody = getBody();
+        // handed out, so its spool file must outlive changes to this message
+        bodyOwned = false;
+        return preparedBody;
+    }
+
+    PreparedBody getBody() throws MessagingException {
+
+        if (body == null) {
+            if (!saved) {
+                saveChanges();
+            }
+
+            try {
+                body = encodeBody();
+            } catch (IOException ioe) {
+                throw new MessagingException("The body encoding failed", ioe);
+            }
+            bodyOwned = true;
+        }
+
+        return body;
+    }
+
+    /*
+     * Uses a body prepared from another message as the content of this one; its Content-*
+     * headers are copied, so the body has to be set after the other headers.
+     */
+    public void setPreparedBody(PreparedBody preparedBody) throws MessagingException {
+
+        for (String[] header : preparedBody.getContentHeaders()) {
+            setHeader(header[0], header[1]);
+        }
+
+        releaseBody();
+        this.body = preparedBody;
+        this.bodyShared = true;
+        this.signatureHeaderLines = null;
+    }
+
+    // Without own content only the message level headers are updated by saveChanges(), once signed none are
+    @Override
+    protected synchronized void updateHeaders() throws MessagingException {
+
+        if (signatureHeaderLines != null) {
+            return;
+        }
+
+        if (!bodyShared) {
+            super.updateHeaders();
+            return;
+        }
+
+        setHeader("MIME-Version", "1.0");
+        if (getHeader("Date") == null) {
+            setSentDate(new Date());
+        }
+        updateMessageID();
+    }
+
+    private String[][] getContentHeaders() throws MessagingException {
+
+        final List<String[]> contentHeaders = new ArrayList<String[]>();
+        final Enumeration<?> headers = getAllHeaders();
+        while (headers.hasMoreElements()) {
+            final Header header = (Header) headers.nextElement();
+            if (isContentHeader(header.getName())) {
+                contentHeaders.add(new String[]{header.getName(), header.getValue()});
+            }
+        }
+        return contentHeaders.toArray(new String[contentHeaders.size()][]);
+    }
+
+    private static boolean isContentHeader(String name) {
+        return name.regionMatches(true, 0, "Content-", 0, 8);
+    }
+
+    private PreparedBody encodeBody() throws IOException, MessagingException {
+
+        if (!modified && content != null) {
+            // The content is untouched and already in memory, share it instead of copying
+            return new PreparedBody(BodyBuffer.of(ByteBuilder.wrap(content)), getContentHeaders());
+        }
+
+        // hash the body for this message's signers while it is written to the buffer, once for
+        // each body canonicalization and hash algorithm in use; the tee hands the encoded bytes
+        // to the buffer and the hashers in chunks that are still cached for the next of them
+        final List<DkimSignerConfig> configs = new ArrayList<DkimSignerConfig>(signers.size() + 1);
+        for (DkimSigner signer : signers) {
+            configs.add(signer.getConfig());
+        }
+        if (arcSealer != null) {
+            configs.add(arcSealer.getConfig());
+        }
+        final Map<List<Object>, DkimSignerConfig> hashConfigs = new LinkedHashMap<List<Object>, DkimSignerConfig>();
+        for (DkimSignerConfig config : configs) {
+            final List<Object> key = PreparedBody.bodyHashKey(config.getBodyCanonicalization(), config.getSigningContext());
+            if (!hashConfigs.containsKey(key)) {
+                hashConfigs.put(key, config);
+            }
+        }
+
+        final BodyHasher[] bodyHashers = new BodyHasher[hashConfigs.size()];
+        final OutputStream[] targets = new OutputStream[bodyHashers.length + 1];
+        final BodyBuffer buffer = new BodyBuffer(getSpoolThreshold(), getSpoolDirectory());
+        targets[0] = buffer;
+        int i = 0;
+        for (DkimSignerConfig config : hashConfigs.values()) {
+            try {
+                // the per-thread digest of a context can be in use by only one hasher at a time
+                bodyHashers[i] = new BodyHasher(config.getBodyCanonicalization(), config.getSigningContext().newMessageDigest(), config.getMetrics());
+            } catch (DkimSignerException e) {
+                throw new MessagingException(e.getLocalizedMessage(), e);
+            }
+            targets[++i] = bodyHashers[i - 1];
+        }
+        // a failed encoding leaves no spool file behind
+        boolean encoded = false;
+        try {
+            final OutputStream osBody = new TeeOutputStream(targets);
+            // the encoding is reported once, to the first signer
+            final DkimMetrics metrics = configs.get(0).getMetrics();
+            final long start = metrics != DkimMetrics.NOOP ? System.nanoTime() : 0;
+            if (modified) {
+                // Finally, the content. Encode if required.
+                // XXX: May need to account for ESMTP ?
+                final OutputStream osEncoding = MimeUtility.encode(osBody, this.getEncoding());
+                this.getDataHandler().writeTo(osEncoding);
+                osEncoding.flush(); // Needed to complete encoding
+            } else {
+                // Else, the content is untouched, so we can just output it
                 // call getContentStream to give subclass a chance to
                 // provide the data on demand
                 final InputStream is = getContentStream();
@@ -88,46 +377,189 @@ public class SmtpDkimMessage extends SMTPMessage {
                     osBody.write(buf, 0, len);
                 is.close();
                 buf = null;
-            } else {
-                osBody.write(content);
             }
+            // the last chunk is still in the tee
             osBody.flush();
+            buffer.close();
+            if (metrics != DkimMetrics.NOOP) {
+                metrics.bodyEncoded(buffer.length(), System.nanoTime() - start);
+            }
+
+            final PreparedBody preparedBody = new PreparedBody(buffer, getContentHeaders());
+            i = 0;
+            for (DkimSignerConfig config : hashConfigs.values()) {
+                final BodyHasher bodyHasher = bodyHashers[i++];
+                preparedBody.putBodyHash(config.getBodyCanonicalization(), config.getSigningContext(),
+                        new BodyHash(bodyHasher.finish(), bodyHasher.getLength()));
+            }
+            encoded = true;
+            return preparedBody;
+        } finally {
+            if (!encoded) {
+                try {
+                    buffer.close();
+                } catch (IOException ignored) {
+                    // the file is deleted anyway
+                }
+                buffer.delete();
+            }
+        }
+    }
+
+    private long getSpoolThreshold() throws MessagingException {
+
+        final String threshold = session == null ? null : session.getProperty(SPOOL_THRESHOLD_PROPERTY);
+        if (threshold == null) {
+            return 0;
         }
-        encodedBody = osBody.toString();
 
-        // Second, sign the message
-        final String signatureHeaderLine;
         try {
-            signatureHeaderLine = signer.sign(this);
-        } catch (Exception e) {
-            throw new MessagingException(e.getLocalizedMessage(), e);
+            return Long.parseLong(threshold.trim());
+        } catch (NumberFormatException nfe) {
+            throw new MessagingException(SPOOL_THRESHOLD_PROPERTY + " has to be a number of bytes, not " + threshold, nfe);
+        }
+    }
+
+    private File getSpoolDirectory() {
+        final String directory = session == null ? null : session.getProperty(SPOOL_DIRECTORY_PROPERTY);
+        return directory == null ? null : new File(directory);
+    }
+
+    private void releaseBody() {
+        if (body != null && bodyOwned) {
+            body.close();
+        }
+        body = null;
+        bodyOwned = false;
+    }
+
+    /*
+     * Drops the cached signature and encoded body, the next writeTo() encodes and signs again.
+     */
+    public void invalidateSignature() {
+        signatureHeaderLines = null;
+        releaseBody();
+        bodyShared = false;
+    }
+
+    /*
+     * Releases the encoded body and its spool file once the message is sent; the message
+     * stays usable, a later writeTo() encodes and signs it again.
+     */
+    @Override
+    public void close() {
+        invalidateSignature();
+    }
+
+    // updateHeaders() sets the Content-* headers again on every saveChanges(), mostly to the same value
+    @Override
+    public void setHeader(String name, String value) throws MessagingException {
+        final String[] current = getHeader(name);
+        super.setHeader(name, value);
+        if (current == null || current.length != 1 || !current[0].equals(value)) {
+            headerChanged(name);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) throws MessagingException {
+        super.addHeader(name, value);
+        headerChanged(name);
+    }
+
+    @Override
+    public void removeHeader(String name) throws MessagingException {
+        final boolean present = getHeader(name) != null;
+        super.removeHeader(name);
+        if (present) {
+            headerChanged(name);
         }
+    }
 
-        // Third, write out the header to the header buffer
-        final LineOutputStream los = new LineOutputStream(os);
+    @Override
+    public void addHeaderLine(String line) throws MessagingException {
+        super.addHeaderLine(line);
+        final int colonPos = line.indexOf(':');
+        headerChanged(colonPos == -1 ? line : line.substring(0, colonPos));
+    }
 
-        // set generated signature to the top
-        los.writeln(signatureHeaderLine);
+    // setText() and all setContent() variants end up here
+    @Override
+    public void setDataHandler(DataHandler dh) throws MessagingException {
+        super.setDataHandler(dh);
+        invalidateSignature();
+    }
 
-        final Enumeration hdrLines = getNonMatchingHeaderLines(ignoreList);
-        while (hdrLines.hasMoreElements()) {
-            los.writeln((String) hdrLines.nextElement());
+    private void headerChanged(String name) {
+        signatureHeaderLines = null;
+        // Content-Type and Content-Transfer-Encoding determine how the body is encoded
+        if (!bodyShared && isContentHeader(name)) {
+            releaseBody();
         }
+    }
 
-        // The CRLF separator between header and content
-        los.writeln();
+    public DkimSigner getSigner() {
+        return signers.get(0);
+    }
 
-        // Send signed mail to waiting DATA command
-        os.write(osBody.toByteArray());
-        os.flush();
+    public List<DkimSigner> getSigners() {
+        return Collections.unmodifiableList(signers);
+    }
+
+    /*
+     * Adds a signer for another DKIM-Signature, typically with a different selector,
+     * algorithm or signing domain. The options apply to this signer only.
+     */
+    public void addSigner(DkimSigner signer, DkimSignOptions signOptions) {
+        this.signers.add(signer);
+        this.signOptions.add(signOptions);
+        this.signatureHeaderLines = null;
+        // a body encoded before has no hash for the new signer yet, it is computed on signing
+    }
+
+    public void addSigner(DkimSigner signer) {
+        addSigner(signer, DkimSignOptions.DEFAULT);
+    }
+
+    public DkimSignOptions getSignOptions() {
+        return signOptions.get(0);
     }
 
+    // the options of the first signer
+    public void setSignOptions(DkimSignOptions signOptions) {
+        this.signOptions.set(0, signOptions);
+        this.signatureHeaderLines = null;
+    }
+
+    /*
+     * The encoded body as a String, built on each call; prefer getEncodedBodyStream().
+     */
     public String getEncodedBody() {
-        return encodedBody;
+        try {
+            return body == null ? null : new String(body.toByteArray());
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Reading the spooled body failed", ioe);
+        }
     }
 
+    /*
+     * Reads the encoded body straight from the buffer or spool file it was encoded into,
+     * encoding it first if needed.
+     */
+    public InputStream getEncodedBodyStream() throws MessagingException, IOException {
+        return getBody().newInputStream();
+    }
+
+    /*
+     * Replaces the encoded body with the given one, which has to match the Content-* headers.
+     * saveChanges() still updates all headers from the content as before; a change of the
+     * content or its Content-* headers drops the given body again.
+     */
     public void setEncodedBody(String encodedBody) {
-        this.encodedBody = encodedBody;
+        releaseBody();
+        this.body = PreparedBody.of(encodedBody.getBytes());
+        this.bodyShared = false;
+        this.signatureHeaderLines = null;
     }
 
     // Don't allow to switch to 8-bit MIME, instead 7-bit ascii should be kept
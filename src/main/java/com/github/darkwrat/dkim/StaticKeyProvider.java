@@ -0,0 +1,26 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.security.PrivateKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * A fixed set of keys, parsed by the factory methods of KeyProvider.
+ */
+
+final class StaticKeyProvider implements KeyProvider {
+
+    private final Map<String, PrivateKey> keys;
+
+    StaticKeyProvider(Map<String, PrivateKey> keys) {
+        this.keys = new HashMap<String, PrivateKey>(keys);
+    }
+
+    @Override
+    public @Nullable PrivateKey getKey(String domain, String selector) {
+        return keys.get(KeyProvider.keyName(domain, selector));
+    }
+
+}
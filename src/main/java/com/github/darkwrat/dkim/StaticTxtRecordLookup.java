@@ -0,0 +1,250 @@
+package com.github.darkwrat.dkim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * TXT records held in memory, given as a map or read from a zone file. Lookups never fail
+ * temporarily, which makes it the backend for tests and for keys published by hand.
+ */
+
+final class StaticTxtRecordLookup implements TxtRecordLookup {
+
+    private static final long[] TTL_UNITS = {1, 60, 3600, 86400, 604800};
+    private static final Answer NO_RECORDS = new Answer(Collections.<String>emptyList(), -1);
+
+    private final Map<String, Answer> answers;
+
+    private StaticTxtRecordLookup(Map<String, Answer> answers) {
+        this.answers = answers;
+    }
+
+    static StaticTxtRecordLookup of(Map<String, ? extends List<String>> records) {
+
+        final Map<String, Answer> answers = new HashMap<String, Answer>();
+        for (Map.Entry<String, ? extends List<String>> entry : records.entrySet()) {
+            answers.put(normalizeName(entry.getKey()), new Answer(new ArrayList<String>(entry.getValue()), -1));
+        }
+        return new StaticTxtRecordLookup(answers);
+    }
+
+    @Override
+    public List<String> lookup(String name) {
+        return query(name).getRecords();
+    }
+
+    @Override
+    public Answer query(String name) {
+        final Answer answer = answers.get(normalizeName(name));
+        return answer == null ? NO_RECORDS : answer;
+    }
+
+    static String normalizeName(String name) {
+        final String trimmed = name.trim().toLowerCase(Locale.ROOT);
+        return trimmed.endsWith(".") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    /*
+     * Reads the TXT records of a master file: $ORIGIN and $TTL, owners relative to the origin
+     * or "@", omitted owners and TTLs, parentheses across lines, comments and the \X and \DDD
+     * escapes. The TTL of a name is the lowest TTL of its records.
+     */
+    static StaticTxtRecordLookup parseZoneFile(Path file) throws IOException {
+
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.ISO_8859_1);
+        final Map<String, List<String>> records = new LinkedHashMap<String, List<String>>();
+        final Map<String, Long> ttls = new HashMap<String, Long>();
+
+        String origin = null;
+        String owner = null;
+        long defaultTtl = -1;
+        long lastTtl = -1;
+
+        final List<String> tokens = new ArrayList<String>();
+        int lineIndex = 0;
+        while (lineIndex < lines.size()) {
+            final int firstLine = lineIndex + 1;
+            final String first = lines.get(lineIndex);
+            final boolean ownerOmitted = !first.isEmpty() && (first.charAt(0) == ' ' || first.charAt(0) == '\t');
+
+            // one entry, continued on the following lines while parentheses are open
+            tokens.clear();
+            int depth = 0;
+            do {
+                if (lineIndex == lines.size()) {
+                    throw new IOException(file + ":" + firstLine + ": unbalanced parentheses");
+                }
+                depth = tokenize(lines.get(lineIndex++), depth, tokens);
+                if (depth < 0) {
+                    throw new IOException(file + ":" + lineIndex + ": unbalanced parentheses");
+                }
+            } while (depth > 0);
+
+            if (tokens.isEmpty()) {
+                continue;
+            }
+
+            final String directive = tokens.get(0);
+            if ("$ORIGIN".equalsIgnoreCase(directive) && tokens.size() > 1) {
+                origin = absoluteName(tokens.get(1), origin);
+                continue;
+            }
+            if ("$TTL".equalsIgnoreCase(directive) && tokens.size() > 1) {
+                defaultTtl = ttl(tokens.get(1), file, firstLine);
+                continue;
+            }
+            if (directive.startsWith("$")) {
+                throw new IOException(file + ":" + firstLine + ": " + directive + " is not supported");
+            }
+
+            int i = 0;
+            if (!ownerOmitted) {
+                owner = absoluteName(tokens.get(i++), origin);
+            } else if (owner == null) {
+                throw new IOException(file + ":" + firstLine + ": the first record has no owner");
+            }
+
+            // TTL and class come in either order
+            long ttl = -1;
+            for (int n = 0; n < 2 && i < tokens.size(); n++) {
+                final String token = tokens.get(i);
+                if (!token.isEmpty() && Character.isDigit(token.charAt(0))) {
+                    ttl = ttl(token, file, firstLine);
+                    i++;
+                } else if (isClass(token)) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            if (i == tokens.size()) {
+                throw new IOException(file + ":" + firstLine + ": the record has no type");
+            }
+
+            if (ttl != -1) {
+                lastTtl = ttl;
+            } else {
+                ttl = defaultTtl != -1 ? defaultTtl : lastTtl;
+            }
+
+            if (!"TXT".equalsIgnoreCase(tokens.get(i++))) {
+                continue;
+            }
+
+            final StringBuilder record = new StringBuilder();
+            for (; i < tokens.size(); i++) {
+                record.append(tokens.get(i));
+            }
+
+            final List<String> ownerRecords = records.computeIfAbsent(owner, name -> new ArrayList<String>());
+            ownerRecords.add(record.toString());
+            final Long ownerTtl = ttls.get(owner);
+            ttls.put(owner, ownerTtl == null || ttl != -1 && ttl < ownerTtl ? ttl : ownerTtl);
+        }
+
+        final Map<String, Answer> answers = new HashMap<String, Answer>();
+        for (Map.Entry<String, List<String>> entry : records.entrySet()) {
+            answers.put(entry.getKey(), new Answer(entry.getValue(), ttls.get(entry.getKey())));
+        }
+        return new StaticTxtRecordLookup(answers);
+    }
+
+    // adds the tokens of the line and returns the parenthesis depth after it
+    private static int tokenize(String line, int depth, List<String> tokens) {
+
+        final StringBuilder token = new StringBuilder();
+        boolean inToken = false;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                if (i + 3 < line.length() && isDigits(line, i + 1, i + 4)) {
+                    token.append((char) Integer.parseInt(line.substring(i + 1, i + 4)));
+                    i += 3;
+                } else {
+                    token.append(line.charAt(++i));
+                }
+                inToken = true;
+            } else if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (quoted) {
+                token.append(c);
+            } else if (c == ';') {
+                break;
+            } else if (c == ' ' || c == '\t' || c == '(' || c == ')') {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+                depth += c == '(' ? 1 : c == ')' ? -1 : 0;
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return depth;
+    }
+
+    private static boolean isDigits(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isClass(String token) {
+        return "IN".equalsIgnoreCase(token) || "CH".equalsIgnoreCase(token) || "HS".equalsIgnoreCase(token) || "CS".equalsIgnoreCase(token);
+    }
+
+    private static String absoluteName(String name, @Nullable String origin) {
+
+        if ("@".equals(name)) {
+            return origin == null ? "" : origin;
+        }
+        if (name.endsWith(".") || origin == null) {
+            return normalizeName(name);
+        }
+        return normalizeName(name) + '.' + origin;
+    }
+
+    // seconds, or a sum of numbers with the units w, d, h, m and s as BIND reads them, e.g. 1h30m
+    private static long ttl(String value, Path file, int line) throws IOException {
+
+        long ttl = 0;
+        long number = -1;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = Character.toLowerCase(value.charAt(i));
+            if (c >= '0' && c <= '9') {
+                number = (number == -1 ? 0 : number * 10) + (c - '0');
+                continue;
+            }
+
+            final int unit = "smhdw".indexOf(c);
+            if (unit == -1 || number == -1) {
+                throw new IOException(file + ":" + line + ": the TTL " + value + " is invalid");
+            }
+            ttl += number * TTL_UNITS[unit];
+            number = -1;
+        }
+        return number == -1 ? ttl : ttl + number;
+    }
+
+}
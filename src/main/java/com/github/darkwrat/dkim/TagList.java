@@ -0,0 +1,87 @@
+package com.github.darkwrat.dkim;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Parser for the tag=value lists of DKIM-Signature fields and key records (RFC 6376 3.2).
+ * Values are unfolded and trimmed; whitespace inside a value is kept, the callers remove
+ * it where the tag's syntax allows it, e.g. in base64 values.
+ */
+
+final class TagList {
+
+    private TagList() {
+    }
+
+    /*
+     * The tags in the order they appear. A tag given twice or a tag without a name or "="
+     * makes the whole list invalid.
+     */
+    static Map<String, String> parse(CharSequence list) throws DkimSignerException {
+
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+        final int length = list.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && list.charAt(end) != ';') {
+                end++;
+            }
+
+            final String spec = unfold(list, start, end);
+            if (!spec.isEmpty()) {
+                final int equals = spec.indexOf('=');
+                final String name = equals == -1 ? "" : spec.substring(0, equals).trim();
+                if (name.isEmpty() || !isTagName(name)) {
+                    throw new DkimSignerException("The tag " + spec + " is malformed");
+                }
+                if (tags.put(name, spec.substring(equals + 1).trim()) != null) {
+                    throw new DkimSignerException("The tag " + name + " occurs more than once");
+                }
+            }
+            start = end + 1;
+        }
+        return Collections.unmodifiableMap(tags);
+    }
+
+    // the value without any whitespace, for base64 values such as b= and p=
+    static String removeWhitespace(String value) {
+
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unfold(CharSequence list, int start, int end) {
+
+        final StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = list.charAt(i);
+            if (c != '\r' && c != '\n') {
+                sb.append(c);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    // tag-name = ALPHA *ALNUMPUNC, ALNUMPUNC being letters, digits and "_"
+    private static boolean isTagName(String name) {
+
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean alpha = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+            if (!alpha && (i == 0 || (c < '0' || c > '9') && c != '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
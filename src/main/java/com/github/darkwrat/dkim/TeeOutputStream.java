@@ -0,0 +1,75 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes everything to several streams, e.g. the body buffer and the body hashers.
+ *
+ * The bytes are passed on in chunks small enough to stay in the CPU cache while each target
+ * in turn reads them: small writes, like the single bytes of a quoted-printable encoder, are
+ * gathered, large ones are handed out slice by slice. flush() passes on what is gathered.
+ */
+
+final class TeeOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final OutputStream[] targets;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int count = 0;
+
+    TeeOutputStream(OutputStream... targets) {
+        this.targets = targets;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == CHUNK_SIZE) {
+            drain();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (len <= CHUNK_SIZE - count) {
+            System.arraycopy(b, off, chunk, count, len);
+            count += len;
+            return;
+        }
+
+        drain();
+        if (len < CHUNK_SIZE) {
+            System.arraycopy(b, off, chunk, 0, len);
+            count = len;
+            return;
+        }
+        for (int start = off; start < off + len; start += CHUNK_SIZE) {
+            writeTargets(b, start, Math.min(CHUNK_SIZE, off + len - start));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        for (OutputStream target : targets) {
+            target.flush();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            writeTargets(chunk, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeTargets(byte[] b, int off, int len) throws IOException {
+        for (OutputStream target : targets) {
+            target.write(b, off, len);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Source of DNS TXT records, the DKIM key records of verified signatures are fetched
+ * through it. Implementations other than dns() serve tests and offline setups.
+ */
+
+public interface TxtRecordLookup {
+
+    /*
+     * The TXT records at name, each with its strings concatenated; an empty list if the name
+     * doesn't exist or has no TXT records. An IOException reports a temporary failure, e.g.
+     * a timeout, so the lookup may succeed when tried again.
+     */
+    List<String> lookup(String name) throws IOException;
+
+    /*
+     * Like lookup(), along with the TTL of the records if the source knows it. DkimKeyResolver
+     * caches the answer for that long.
+     */
+    default Answer query(String name) throws IOException {
+        return new Answer(lookup(name), -1);
+    }
+
+    // DNS lookups through JNDI with the resolvers configured for the JVM
+    static TxtRecordLookup dns() {
+        return new JndiTxtRecordLookup();
+    }
+
+    /*
+     * A fixed set of records by name, e.g. "sel._domainkey.example.com"; names are compared
+     * ignoring case and a trailing dot.
+     */
+    static TxtRecordLookup of(Map<String, ? extends List<String>> records) {
+        return StaticTxtRecordLookup.of(records);
+    }
+
+    /*
+     * The TXT records of a zone file in master file format (RFC 1035 5), with their TTLs.
+     * Records of other types are skipped, the file is read once.
+     */
+    static TxtRecordLookup zoneFile(Path file) throws IOException {
+        return StaticTxtRecordLookup.parseZoneFile(file);
+    }
+
+    final class Answer {
+
+        private final List<String> records;
+        private final long ttlSeconds;
+
+        /*
+         * ttlSeconds is -1 if the source doesn't know how long the records may be cached.
+         */
+        public Answer(List<String> records, long ttlSeconds) {
+            this.records = Collections.unmodifiableList(records);
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        public List<String> getRecords() {
+            return records;
+        }
+
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+    }
+
+}
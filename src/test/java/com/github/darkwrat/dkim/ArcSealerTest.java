@@ -0,0 +1,240 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/*
+ * Seals a message at two hops and checks each ARC set against the public key of the test
+ * key in keys/. The signatures are checked here with relaxed header canonicalization, which
+ * the sealer is configured with.
+ */
+
+public class ArcSealerTest {
+
+    private static final String RESULTS = "dkim=pass header.d=example.com header.s=default; spf=pass smtp.mailfrom=sender@example.com;"
+            + " dmarc=pass header.from=example.com";
+
+    private final Session session = Session.getInstance(new Properties());
+    private PublicKey publicKey;
+    private DkimSigner signer;
+    private ArcSealer sealer;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        final String pem = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(pem)));
+
+        signer = new DkimSigner(DkimSignerConfig.builder("example.com", "default", PrivateKeyReader.read(Paths.get("keys/private.key.der")))
+                .headerCanonicalization(Canonicalization.RELAXED)
+                .bodyCanonicalization(Canonicalization.RELAXED)
+                .build());
+        sealer = new ArcSealer(signer.getConfig(), "mx.example.com");
+    }
+
+    @Test
+    public void firstSetHasInstanceOneAndNoChain() throws Exception {
+
+        final String message = firstHop();
+        final List<String[]> fields = fields(message);
+
+        assertEquals(count(fields, ArcSealer.ARC_SEAL), 1);
+        assertEquals(tags(find(fields, ArcSealer.ARC_SEAL, 1)).get("cv"), "none");
+        assertTrue(find(fields, ArcSealer.ARC_AUTHENTICATION_RESULTS, 1).contains("mx.example.com;"));
+        // the set is on top, above the DKIM signature
+        assertEquals(fields.get(0)[0], ArcSealer.ARC_SEAL);
+        assertEquals(fields.get(3)[0], "DKIM-Signature");
+        assertSetVerifies(message, 1);
+    }
+
+    @Test
+    public void secondSetCoversTheFirst() throws Exception {
+
+        final String message = hop(firstHop(), ArcSealer.ChainValidation.PASS);
+        final List<String[]> fields = fields(message);
+
+        assertEquals(count(fields, ArcSealer.ARC_SEAL), 2);
+        assertEquals(tags(find(fields, ArcSealer.ARC_SEAL, 2)).get("cv"), "pass");
+        assertEquals(tags(find(fields, ArcSealer.ARC_SEAL, 1)).get("cv"), "none");
+        assertSetVerifies(message, 1);
+        assertSetVerifies(message, 2);
+    }
+
+    @Test
+    public void secondSetRequiresChainValidation() throws Exception {
+        try {
+            hop(firstHop(), ArcSealer.ChainValidation.NONE);
+            fail("cv=none accepted for a second ARC set");
+        } catch (MessagingException expected) {
+            // the first set is the only one with cv=none
+        }
+    }
+
+    @Test
+    public void authenticationResultsAreFolded() throws Exception {
+
+        final String results = find(fields(firstHop()), ArcSealer.ARC_AUTHENTICATION_RESULTS, 1);
+
+        assertTrue(results.contains("\r\n"));
+        for (String line : results.split("\r\n")) {
+            assertTrue(line.length() <= HeaderFolder.MAX_LINE_LENGTH, line);
+        }
+    }
+
+    private String firstHop() throws Exception {
+
+        final SmtpDkimMessage message = new SmtpDkimMessage(session, signer);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("list@example.org"));
+        message.setSubject("arc  test");
+        message.setText("hello  world \n\n", "utf-8");
+        message.setArcSeal(sealer, RESULTS, ArcSealer.ChainValidation.PASS);
+        return write(message);
+    }
+
+    // the message as the next hop receives and seals it
+    private String hop(String received, ArcSealer.ChainValidation chainValidation) throws Exception {
+
+        final MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(received.getBytes(StandardCharsets.ISO_8859_1)));
+        final SmtpDkimMessage message = new SmtpDkimMessage(parsed, signer);
+        message.setArcSeal(sealer, "dkim=pass header.d=example.com", chainValidation);
+        return write(message);
+    }
+
+    private static String write(SmtpDkimMessage message) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private void assertSetVerifies(String message, int instance) throws Exception {
+
+        final List<String[]> fields = fields(message);
+
+        // the message signature is made like a DKIM signature and shares its body hash
+        final String messageSignature = find(fields, ArcSealer.ARC_MESSAGE_SIGNATURE, instance);
+        final Map<String, String> signatureTags = tags(messageSignature);
+        assertEquals(signatureTags.get("bh"), tags(fieldsNamed(fields, "DKIM-Signature").get(0)).get("bh"));
+
+        final StringBuilder signed = new StringBuilder();
+        final Map<String, Integer> used = new HashMap<String, Integer>();
+        for (String name : signatureTags.get("h").split(":")) {
+            final List<String> instances = fieldsNamed(fields, name.trim());
+            final int seen = used.merge(name.trim().toLowerCase(Locale.ROOT), 1, Integer::sum);
+            // taken from the bottom up, one that isn't there counts as empty
+            if (seen <= instances.size()) {
+                signed.append(relaxed(instances.get(instances.size() - seen))).append("\r\n");
+            }
+        }
+        signed.append(relaxed(withoutSignature(messageSignature)));
+        assertTrue(verifies(signed, signatureTags.get("b")), "ARC-Message-Signature i=" + instance);
+
+        // the seal covers all sets up to its own, each as results, message signature and seal
+        final StringBuilder chain = new StringBuilder();
+        for (int i = 1; i <= instance; i++) {
+            final String seal = find(fields, ArcSealer.ARC_SEAL, i);
+            chain.append(relaxed(find(fields, ArcSealer.ARC_AUTHENTICATION_RESULTS, i))).append("\r\n");
+            chain.append(relaxed(find(fields, ArcSealer.ARC_MESSAGE_SIGNATURE, i))).append("\r\n");
+            chain.append(relaxed(i == instance ? withoutSignature(seal) : seal));
+            if (i < instance) {
+                chain.append("\r\n");
+            }
+        }
+        assertTrue(verifies(chain, tags(find(fields, ArcSealer.ARC_SEAL, instance)).get("b")), "ARC-Seal i=" + instance);
+    }
+
+    private boolean verifies(CharSequence data, String signature) throws Exception {
+        final Signature rsa = Signature.getInstance("SHA256withRSA");
+        rsa.initVerify(publicKey);
+        rsa.update(data.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return rsa.verify(Base64.getDecoder().decode(signature));
+    }
+
+    // name and whole field of each header field, from the top down
+    private static List<String[]> fields(String message) {
+
+        final List<String[]> fields = new ArrayList<String[]>();
+        for (String field : message.substring(0, message.indexOf("\r\n\r\n")).split("\r\n(?![ \t])")) {
+            fields.add(new String[]{field.substring(0, field.indexOf(':')), field});
+        }
+        return fields;
+    }
+
+    private static List<String> fieldsNamed(List<String[]> fields, String name) {
+
+        final List<String> named = new ArrayList<String>();
+        for (String[] field : fields) {
+            if (field[0].equalsIgnoreCase(name)) {
+                named.add(field[1]);
+            }
+        }
+        return named;
+    }
+
+    private static int count(List<String[]> fields, String name) {
+        return fieldsNamed(fields, name).size();
+    }
+
+    private static String find(List<String[]> fields, String name, int instance) throws DkimSignerException {
+
+        for (String field : fieldsNamed(fields, name)) {
+            final String value = field.substring(field.indexOf(':') + 1).trim();
+            // the results start with i=, which makes the rest of the value no tag list
+            final String i = name.equals(ArcSealer.ARC_AUTHENTICATION_RESULTS) ? value.substring(0, value.indexOf(';')).substring(2) : tags(field).get("i");
+            if (Integer.toString(instance).equals(i)) {
+                return field;
+            }
+        }
+        throw new AssertionError("No " + name + " with i=" + instance);
+    }
+
+    private static Map<String, String> tags(String field) throws DkimSignerException {
+        final Map<String, String> tags = new HashMap<String, String>();
+        for (Map.Entry<String, String> tag : TagList.parse(field.substring(field.indexOf(':') + 1)).entrySet()) {
+            tags.put(tag.getKey(), tag.getValue().replaceAll("\\s", ""));
+        }
+        return Collections.unmodifiableMap(tags);
+    }
+
+    // RFC 6376 3.4.2
+    private static String relaxed(String field) {
+        final int colon = field.indexOf(':');
+        return field.substring(0, colon).trim().toLowerCase(Locale.ROOT) + ':'
+                + field.substring(colon + 1).replace("\r\n", "").replaceAll("[ \t]+", " ").trim();
+    }
+
+    private static String withoutSignature(String field) {
+        return field.replaceAll("(?<=[;:\\s]b=)[^;]*", "");
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+/*
+ * Compares the state machines with the regular expressions they replaced, which are kept
+ * here as the reference. The old body code failed on bodies that are, or come down to, a
+ * single line end and on single bytes, so those are checked against the RFC 6376 result.
+ */
+
+public class CanonicalizationTest {
+
+    @DataProvider
+    public Object[][] bodies() {
+        return new Object[][]{
+                {"Hello world\r\n"},
+                {"no line end at all"},
+                {"trailing spaces   \r\nand tabs\t\t\r\n"},
+                {"mixed \t \t run  \t\r\n \tleading\r\n"},
+                {"inner  \t  whitespace\013\fand more\r\n"},
+                {"trailing empty lines\r\n\r\n\r\n\r\n"},
+                {"trailing blanks on empty lines\r\n  \r\n\t\r\n"},
+                {"bare\rCR and a bare CR at the end\r"},
+                {"bare\nLF lines\nending bare\n"},
+                {"bare LF\n\n\n"},
+                {"CR before CRLF\r\r\n"},
+                {"\r\n\r\nleading empty lines\r\n"},
+        };
+    }
+
+    // the results of shortBodies() don't depend on how they are written either
+    @DataProvider
+    public Object[][] allBodies() {
+
+        final Object[][] bodies = bodies();
+        final String[] shortBodies = {"", "\r\n", "x", "x\r\n", " \r\n", "\r\n\r\n\r\n\r\n", "\t \r\n\r\n"};
+        final Object[][] all = new Object[bodies.length + shortBodies.length][];
+        System.arraycopy(bodies, 0, all, 0, bodies.length);
+        for (int i = 0; i < shortBodies.length; i++) {
+            all[bodies.length + i] = new Object[]{shortBodies[i]};
+        }
+        return all;
+    }
+
+    @Test(dataProvider = "bodies")
+    public void simpleBodyMatchesTheRegularExpressions(String body) throws Exception {
+        assertEquals(body(Canonicalization.SIMPLE, body), oldSimpleBody(body));
+        assertEquals(Canonicalization.SIMPLE.canonicalizeBody(body), oldSimpleBody(body));
+    }
+
+    @Test(dataProvider = "bodies")
+    public void relaxedBodyMatchesTheRegularExpressions(String body) throws Exception {
+        assertEquals(body(Canonicalization.RELAXED, body), oldRelaxedBody(body));
+        assertEquals(Canonicalization.RELAXED.canonicalizeBody(body), oldRelaxedBody(body));
+    }
+
+    @Test(dataProvider = "allBodies")
+    public void bodyDoesNotDependOnWriteBoundaries(String body) throws Exception {
+
+        for (Canonicalization canonicalization : new Canonicalization[]{Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+            final String whole = body(canonicalization, body);
+            final byte[] in = body.getBytes(StandardCharsets.ISO_8859_1);
+
+            // a single split at every position, which also splits each CRLF and whitespace run
+            for (int split = 0; split <= in.length; split++) {
+                final ByteBuilder out = new ByteBuilder(in.length + 2);
+                final BodyCanonicalizer canonicalizer = canonicalization.newBodyCanonicalizer(out);
+                canonicalizer.write(in, 0, split);
+                canonicalizer.write(in, split, in.length - split);
+                canonicalizer.finish();
+                assertEquals(string(out), whole, canonicalization.getType() + " split at " + split);
+            }
+
+            final ByteBuilder out = new ByteBuilder(in.length + 2);
+            final BodyCanonicalizer canonicalizer = canonicalization.newBodyCanonicalizer(out);
+            for (byte b : in) {
+                canonicalizer.write(b);
+            }
+            canonicalizer.finish();
+            assertEquals(string(out), whole, canonicalization.getType() + " byte by byte");
+        }
+    }
+
+    @Test
+    public void shortBodies() throws Exception {
+        for (Canonicalization canonicalization : new Canonicalization[]{Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+            assertEquals(body(canonicalization, ""), "\r\n");
+            assertEquals(body(canonicalization, "\r\n"), "\r\n");
+            assertEquals(body(canonicalization, "x"), "x\r\n");
+            assertEquals(body(canonicalization, "x\r\n"), "x\r\n");
+            // a body of empty lines only
+            assertEquals(body(canonicalization, "\r\n\r\n\r\n\r\n"), "\r\n");
+        }
+        assertEquals(body(Canonicalization.SIMPLE, " \r\n"), " \r\n");
+        assertEquals(body(Canonicalization.RELAXED, " \r\n"), "\r\n");
+        assertEquals(body(Canonicalization.SIMPLE, "\t \r\n\r\n"), "\t \r\n");
+        assertEquals(body(Canonicalization.RELAXED, "\t \r\n\r\n"), "\r\n");
+    }
+
+    @DataProvider
+    public Object[][] headers() {
+        return new Object[][]{
+                {"Subject", " A simple subject"},
+                {"SUBJECT ", "  padded\t value  "},
+                {"Subject", " folded\r\n value\r\n\tover three lines"},
+                {"Subject", "\r\n starts folded"},
+                {"To", " a@example.com,\r\n \t b@example.com \r\n"},
+                {"X-Empty", ""},
+                {"X-Blank", "   \t "},
+                {"Content-Type", " text/plain;\r\n\tcharset=\"utf-8\"\013\f;  format=flowed"},
+        };
+    }
+
+    @Test(dataProvider = "headers")
+    public void headerMatchesTheRegularExpressions(String name, String value) throws Exception {
+
+        assertEquals(Canonicalization.SIMPLE.canonicalizeHeader(name, value), name + ':' + value);
+        assertEquals(header(Canonicalization.SIMPLE, name, value), name + ':' + value);
+
+        assertEquals(Canonicalization.RELAXED.canonicalizeHeader(name, value), oldRelaxedHeader(name, value));
+        assertEquals(header(Canonicalization.RELAXED, name, value), oldRelaxedHeader(name, value));
+    }
+
+    @Test(dataProvider = "headers")
+    public void relaxedContinuationMatchesWholeField(String name, String value) throws Exception {
+
+        // the field is split behind its first non-whitespace value byte, as the signature template does
+        final String field = name + ':' + value;
+        int split = field.indexOf(':') + 1;
+        while (split < field.length() && field.charAt(split) <= ' ') {
+            split++;
+        }
+        if (split == field.length()) {
+            return;
+        }
+        split++;
+
+        final byte[] bytes = field.getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuilder out = new ByteBuilder(bytes.length);
+        Canonicalization.RELAXED.canonicalizeHeader(bytes, 0, split, out);
+        Canonicalization.RELAXED.canonicalizeHeaderContinuation(bytes, split, bytes.length - split, out);
+
+        assertEquals(string(out), oldRelaxedHeader(name, value));
+    }
+
+    private static String body(Canonicalization canonicalization, String body) throws IOException {
+
+        final byte[] in = body.getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuilder out = new ByteBuilder(in.length + 2);
+        final BodyCanonicalizer canonicalizer = canonicalization.newBodyCanonicalizer(out);
+        canonicalizer.write(in, 0, in.length);
+        canonicalizer.finish();
+        return string(out);
+    }
+
+    private static String header(Canonicalization canonicalization, String name, String value) throws IOException {
+
+        final byte[] field = (name + ':' + value).getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuilder out = new ByteBuilder(field.length);
+        canonicalization.canonicalizeHeader(field, 0, field.length, out);
+        return string(out);
+    }
+
+    private static String string(ByteBuilder out) {
+        return new String(out.array(), 0, out.length(), StandardCharsets.ISO_8859_1);
+    }
+
+    // the replaced implementations
+
+    private static String oldSimpleBody(String body) {
+
+        if (body == null || body.isEmpty()) {
+            return "\r\n";
+        }
+        if (!"\r\n".equals(body.substring(body.length() - 2, body.length()))) {
+            return body + "\r\n";
+        }
+        while ("\r\n\r\n".equals(body.substring(body.length() - 4, body.length()))) {
+            body = body.substring(0, body.length() - 2);
+        }
+        return body;
+    }
+
+    private static String oldRelaxedBody(String body) {
+
+        if (body == null || body.isEmpty()) {
+            return "\r\n";
+        }
+        body = body.replaceAll("[ \\t\\x0B\\f]+", " ");
+        body = body.replaceAll(" \r\n", "\r\n");
+        if (!"\r\n".equals(body.substring(body.length() - 2, body.length()))) {
+            return body + "\r\n";
+        }
+        while ("\r\n\r\n".equals(body.substring(body.length() - 4, body.length()))) {
+            body = body.substring(0, body.length() - 2);
+        }
+        return body;
+    }
+
+    private static String oldRelaxedHeader(String name, String value) {
+        return name.trim().toLowerCase() + ':' + value.replaceAll("\\s+", " ").trim();
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.github.darkwrat.dkim;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+/*
+ * Decodes the RSA public key of the test key in keys/ from a key record.
+ */
+
+public class DkimKeyRecordTest {
+
+    private byte[] subjectPublicKeyInfo;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        final String pem = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        subjectPublicKeyInfo = Base64.getDecoder().decode(pem);
+    }
+
+    @Test
+    public void decodesSubjectPublicKeyInfo() throws Exception {
+
+        final DkimKeyRecord record = DkimKeyRecord.parse("v=DKIM1; k=rsa; p=" + base64(subjectPublicKeyInfo));
+
+        assertEquals(record.getKeyType(), "rsa");
+        assertEquals(record.getPublicKey().getEncoded(), subjectPublicKeyInfo);
+    }
+
+    @Test
+    public void decodesBarePkcs1Key() throws Exception {
+
+        // SEQUENCE, AlgorithmIdentifier and the BIT STRING header in front of the RSAPublicKey of the 512 bit key
+        final byte[] pkcs1 = Arrays.copyOfRange(subjectPublicKeyInfo, 2 + 15 + 3, subjectPublicKeyInfo.length);
+
+        final DkimKeyRecord record = DkimKeyRecord.parse("v=DKIM1; p=" + base64(pkcs1));
+
+        assertEquals(record.getPublicKey().getEncoded(), subjectPublicKeyInfo);
+    }
+
+    private static String base64(byte[] der) {
+        return Base64.getEncoder().encodeToString(der);
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.github.darkwrat.dkim;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+/*
+ * Caching of the key records, counting the queries that reach the records held in memory.
+ */
+
+public class DkimKeyResolverTest {
+
+    private static final String BROKEN = "broken._domainkey.example.com";
+
+    private String record;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        final String publicKey = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        record = "v=DKIM1; k=rsa; p=" + publicKey;
+    }
+
+    @Test
+    public void keepsTheRecordForItsTtl() throws Exception {
+
+        final CountingLookup lookup = lookup(10);
+        final DkimKeyResolver resolver = DkimKeyResolver.builder(lookup).executor(Runnable::run)
+                .defaultTtl(200, TimeUnit.MILLISECONDS)
+                .build();
+
+        final DkimKeyRecord key = resolver.get("example.com", "s0");
+        assertSame(resolver.get("Example.COM.", "S0"), key);
+        assertEquals(lookup.count("s0._domainkey.example.com"), 1);
+
+        Thread.sleep(250);
+        assertEquals(resolver.get("example.com", "s0").getPublicKey(), key.getPublicKey());
+        assertEquals(lookup.count("s0._domainkey.example.com"), 2);
+    }
+
+    @Test
+    public void cachesMissingKeysForTheNegativeTtl() throws Exception {
+
+        final CountingLookup lookup = lookup(0);
+        final DkimKeyResolver resolver = DkimKeyResolver.builder(lookup).executor(Runnable::run)
+                .negativeTtl(200, TimeUnit.MILLISECONDS)
+                .build();
+
+        for (int i = 0; i < 2; i++) {
+            assertPermanentFailure(resolver, "missing");
+        }
+        assertEquals(lookup.count("missing._domainkey.example.com"), 1);
+
+        Thread.sleep(250);
+        assertPermanentFailure(resolver, "missing");
+        assertEquals(lookup.count("missing._domainkey.example.com"), 2);
+    }
+
+    @Test
+    public void temporaryFailuresAreNotCached() throws Exception {
+
+        final CountingLookup lookup = lookup(0);
+        final DkimKeyResolver resolver = DkimKeyResolver.builder(lookup).executor(Runnable::run).build();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.get("example.com", "broken");
+                fail("A failed lookup returned a key");
+            } catch (IOException expected) {
+                assertEquals(expected.getMessage(), "timeout");
+            }
+        }
+        assertEquals(lookup.count(BROKEN), 2);
+        assertEquals(resolver.size(), 0);
+    }
+
+    @Test
+    public void concurrentRequestsShareOneLookup() throws Exception {
+
+        final CountingLookup lookup = lookup(1);
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final DkimKeyResolver resolver = DkimKeyResolver.builder(lookup).executor(queued::add).build();
+
+        final CompletableFuture<DkimKeyRecord> first = resolver.resolve("example.com", "s0");
+        final CompletableFuture<DkimKeyRecord> second = resolver.resolve("example.com", "s0");
+        // the second request joins the lookup started by the first
+        assertEquals(queued.size(), 1);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        queued.get(0).run();
+
+        assertSame(first.get(), second.get());
+        assertEquals(lookup.count("s0._domainkey.example.com"), 1);
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsedRecords() throws Exception {
+
+        final CountingLookup lookup = lookup(11);
+        final DkimKeyResolver resolver = DkimKeyResolver.builder(lookup).executor(Runnable::run).maximumSize(10).build();
+
+        for (int i = 0; i < 10; i++) {
+            resolver.get("example.com", "s" + i);
+        }
+        // used again, s1 is now the least recently used
+        resolver.get("example.com", "s0");
+        resolver.get("example.com", "s10");
+
+        // down to 90% of the maximum
+        assertEquals(resolver.size(), 9);
+        resolver.get("example.com", "s0");
+        resolver.get("example.com", "s3");
+        assertEquals(lookup.count("s0._domainkey.example.com"), 1);
+        assertEquals(lookup.count("s3._domainkey.example.com"), 1);
+        resolver.get("example.com", "s1");
+        resolver.get("example.com", "s2");
+        assertEquals(lookup.count("s1._domainkey.example.com"), 2);
+        assertEquals(lookup.count("s2._domainkey.example.com"), 2);
+    }
+
+    private void assertPermanentFailure(DkimKeyResolver resolver, String selector) throws IOException {
+        try {
+            resolver.get("example.com", selector);
+            fail("A key was found for " + selector);
+        } catch (DkimSignerException expected) {
+            assertEquals(expected.getMessage(), "no key for signature");
+        }
+    }
+
+    // keys for the selectors s0 up to the given number, "broken" times out
+    private CountingLookup lookup(int keys) {
+
+        final Map<String, List<String>> records = new HashMap<String, List<String>>();
+        for (int i = 0; i < keys; i++) {
+            final List<String> selectorRecords = new ArrayList<String>();
+            selectorRecords.add(record);
+            records.put("s" + i + "._domainkey.example.com", selectorRecords);
+        }
+        return new CountingLookup(StaticTxtRecordLookup.of(records));
+    }
+
+    private static final class CountingLookup implements TxtRecordLookup {
+
+        private final StaticTxtRecordLookup records;
+        private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+        CountingLookup(StaticTxtRecordLookup records) {
+            this.records = records;
+        }
+
+        @Override
+        public List<String> lookup(String name) throws IOException {
+            return query(name).getRecords();
+        }
+
+        @Override
+        public Answer query(String name) throws IOException {
+            counts.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+            if (BROKEN.equals(name)) {
+                throw new IOException("timeout");
+            }
+            return records.query(name);
+        }
+
+        int count(String name) {
+            final AtomicInteger count = counts.get(name);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+}
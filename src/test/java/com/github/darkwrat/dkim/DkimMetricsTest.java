@@ -0,0 +1,155 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/*
+ * The calls a DkimMetrics gets for each step of signing.
+ */
+
+public class DkimMetricsTest {
+
+    private static final String MESSAGE = "From: sender@example.com\r\n"
+            + "To: rcpt@example.org\r\n"
+            + "Subject: metrics test\r\n"
+            + "\r\n"
+            + "a  body \r\n"
+            + "\r\n";
+
+    private final Session session = Session.getInstance(new Properties());
+    private PrivateKey key;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        key = PrivateKeyReader.read(Paths.get("keys/private.key.der"));
+    }
+
+    @Test
+    public void reportsEachStepOnce() throws Exception {
+
+        final RecordingMetrics metrics = new RecordingMetrics();
+        final DkimSigner signer = signer(metrics);
+
+        signer.sign(MESSAGE.getBytes(StandardCharsets.ISO_8859_1));
+
+        // the canonical body is "a body\r\n"
+        assertEquals(metrics.events, Arrays.asList(
+                "bodyHashed relaxed 12 8",
+                "headerCanonicalized relaxed",
+                "signed rsa-sha256"));
+        assertTrue(metrics.nanos.stream().allMatch(nanos -> nanos >= 0), metrics.nanos.toString());
+    }
+
+    @Test
+    public void reportsTheEncodingOfAMessage() throws Exception {
+
+        final RecordingMetrics metrics = new RecordingMetrics();
+        final SmtpDkimMessage message = message(signer(metrics));
+        message.setText("a body\r\n", "us-ascii");
+
+        message.writeTo(new ByteArrayOutputStream());
+
+        // the hash is completed once the encoding is done
+        assertEquals(metrics.events, Arrays.asList(
+                "bodyEncoded 8",
+                "bodyHashed relaxed 8 8",
+                "headerCanonicalized relaxed",
+                "signed rsa-sha256"));
+
+        // an unchanged message is written from the cache
+        metrics.events.clear();
+        message.writeTo(new ByteArrayOutputStream());
+        assertEquals(metrics.events, Collections.<String>emptyList());
+    }
+
+    @Test
+    public void reportsFailures() throws Exception {
+
+        final RecordingMetrics metrics = new RecordingMetrics();
+        final SmtpDkimMessage message = new SmtpDkimMessage(session, signer(metrics), DkimSignOptions.withIdentity("user@example.org"));
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setText("a body\r\n", "us-ascii");
+
+        try {
+            message.writeTo(new ByteArrayOutputStream());
+            fail("An identity outside the signing domain was accepted");
+        } catch (MessagingException expected) {
+            // the identity has to be in example.com
+        }
+
+        assertTrue(metrics.events.contains("signingFailed IDENTITY"), metrics.events.toString());
+        assertTrue(metrics.events.stream().noneMatch(event -> event.startsWith("signed")), metrics.events.toString());
+    }
+
+    private DkimSigner signer(DkimMetrics metrics) throws Exception {
+        return new DkimSigner(DkimSignerConfig.builder("example.com", "default", key)
+                .bodyCanonicalization(Canonicalization.RELAXED)
+                .metrics(metrics)
+                .build());
+    }
+
+    private SmtpDkimMessage message(DkimSigner signer) throws Exception {
+
+        final SmtpDkimMessage message = new SmtpDkimMessage(session, signer);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("rcpt@example.org"));
+        message.setSubject("metrics test");
+        return message;
+    }
+
+    private static final class RecordingMetrics implements DkimMetrics {
+
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Long> nanos = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void bodyHashed(Canonicalization canonicalization, long bodyBytes, long hashedBytes, long nanos) {
+            record("bodyHashed " + canonicalization.getType() + " " + bodyBytes + " " + hashedBytes, nanos);
+        }
+
+        @Override
+        public void bodyEncoded(long bytes, long nanos) {
+            record("bodyEncoded " + bytes, nanos);
+        }
+
+        @Override
+        public void headerCanonicalized(Canonicalization canonicalization, long nanos) {
+            record("headerCanonicalized " + canonicalization.getType(), nanos);
+        }
+
+        @Override
+        public void signed(SigningAlgorithm algorithm, long nanos) {
+            record("signed " + algorithm.getRfc4871Notation(), nanos);
+        }
+
+        @Override
+        public void signingFailed(Failure failure) {
+            events.add("signingFailed " + failure);
+        }
+
+        private void record(String event, long nanos) {
+            events.add(event);
+            this.nanos.add(nanos);
+        }
+    }
+
+}
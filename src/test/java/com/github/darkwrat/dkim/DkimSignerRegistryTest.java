@@ -0,0 +1,201 @@
+package com.github.darkwrat.dkim;
+
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/*
+ * Loading and reloading of signers from a loader whose keys and versions are set by the tests.
+ */
+
+public class DkimSignerRegistryTest {
+
+    private PrivateKey key;
+    private PrivateKey rotatedKey;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        key = PrivateKeyReader.read(Paths.get("keys/private.key.der"));
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        rotatedKey = generator.generateKeyPair().getPrivate();
+    }
+
+    @Test
+    public void loadsOnFirstUse() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        loader.keys.put("default/example.com", key);
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+
+        assertEquals(loader.loads.get(), 0);
+        final DkimSigner signer = registry.getSigner("example.com");
+        assertNotNull(signer);
+        assertEquals(loader.loads.get(), 1);
+
+        // domain and selector in any case find the same signer
+        assertSame(registry.getSigner("EXAMPLE.com", "Default"), signer);
+        assertSame(registry.getSigner(" example.com ", "DEFAULT"), signer);
+        assertEquals(loader.loads.get(), 1);
+        assertEquals(registry.size(), 1);
+    }
+
+    @Test
+    public void remembersMissingKeys() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+
+        assertNull(registry.getSigner("example.org"));
+        assertNull(registry.getSigner("example.org"));
+        assertEquals(loader.loads.get(), 1);
+    }
+
+    @Test
+    public void failedLoadIsTriedAgain() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        loader.keys.put("default/example.com", key);
+        loader.failing = true;
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+
+        try {
+            registry.getSigner("example.com");
+            fail("The failed load returned a signer");
+        } catch (DkimSignerException expected) {
+            assertEquals(expected.getMessage(), "key unreadable");
+        }
+
+        loader.failing = false;
+        assertNotNull(registry.getSigner("example.com"));
+        assertEquals(loader.loads.get(), 2);
+    }
+
+    @Test
+    public void refreshSwapsTheKeyOfNewVersions() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        loader.keys.put("default/example.com", key);
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+        final DkimSigner signer = registry.getSigner("example.com");
+
+        // an unchanged version is not loaded again
+        registry.refresh();
+        assertEquals(loader.loads.get(), 1);
+
+        loader.keys.put("default/example.com", rotatedKey);
+        loader.version.incrementAndGet();
+        registry.refresh();
+
+        // the same signer, signing with the new key from now on
+        assertSame(registry.getSigner("example.com"), signer);
+        assertSame(signer.getConfig().getPrivateKey(), rotatedKey);
+    }
+
+    @Test
+    public void failedRefreshKeepsTheOldKey() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        loader.keys.put("default/example.com", key);
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+        final DkimSigner signer = registry.getSigner("example.com");
+
+        loader.failing = true;
+        loader.version.incrementAndGet();
+        registry.refresh();
+
+        assertSame(registry.getSigner("example.com"), signer);
+        assertSame(signer.getConfig().getPrivateKey(), key);
+
+        // and takes the new one once it can be read
+        loader.failing = false;
+        loader.keys.put("default/example.com", rotatedKey);
+        registry.refresh();
+        assertSame(signer.getConfig().getPrivateKey(), rotatedKey);
+    }
+
+    @Test
+    public void refreshDropsRemovedKeys() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        loader.keys.put("default/example.com", key);
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+        registry.getSigner("example.com");
+
+        loader.keys.remove("default/example.com");
+        loader.version.incrementAndGet();
+        registry.refresh();
+
+        assertEquals(registry.size(), 0);
+        assertNull(registry.getSigner("example.com"));
+    }
+
+    @Test
+    public void scheduledRefreshPicksUpNewKeys() throws Exception {
+
+        final TestLoader loader = new TestLoader();
+        loader.keys.put("default/example.com", key);
+        final DkimSignerRegistry registry = new DkimSignerRegistry(loader, "default", 100);
+        final DkimSigner signer = registry.getSigner("example.com");
+
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final ScheduledFuture<?> refresh = registry.scheduleRefresh(executor, 10, TimeUnit.MILLISECONDS);
+            loader.keys.put("default/example.com", rotatedKey);
+            loader.version.incrementAndGet();
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (signer.getConfig().getPrivateKey() != rotatedKey && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertSame(signer.getConfig().getPrivateKey(), rotatedKey);
+
+            refresh.cancel(false);
+            assertTrue(refresh.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // keys by selector/domain, all sharing one version
+    private static final class TestLoader implements DkimSignerRegistry.Loader {
+
+        private final Map<String, PrivateKey> keys = new ConcurrentHashMap<String, PrivateKey>();
+        private final AtomicInteger version = new AtomicInteger();
+        private final AtomicInteger loads = new AtomicInteger();
+        private volatile boolean failing = false;
+
+        @Override
+        public DkimSignerConfig load(String domain, String selector) throws DkimSignerException {
+            loads.incrementAndGet();
+            if (failing) {
+                throw new DkimSignerException("key unreadable");
+            }
+            final PrivateKey privateKey = keys.get(selector + '/' + domain);
+            return privateKey == null ? null : DkimSignerConfig.builder(domain, selector, privateKey).build();
+        }
+
+        @Override
+        public long version(String domain, String selector) {
+            return version.get();
+        }
+    }
+
+}
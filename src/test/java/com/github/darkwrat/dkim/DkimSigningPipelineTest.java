@@ -0,0 +1,235 @@
+package com.github.darkwrat.dkim;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/*
+ * Backpressure and shutdown of the pipeline, with signing held back until the tests let it go.
+ */
+
+public class DkimSigningPipelineTest {
+
+    private final Session session = Session.getInstance(new Properties());
+    private DkimSigner signer;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        signer = new DkimSigner(DkimSignerConfig.builder("example.com", "default",
+                PrivateKeyReader.read(Paths.get("keys/private.key.der"))).build());
+    }
+
+    @Test
+    public void submitWaitsForAFreeSlot() throws Exception {
+
+        final GatedExecutor executor = new GatedExecutor();
+        try (DkimSigningPipeline pipeline = new DkimSigningPipeline(executor, 2)) {
+            final CompletableFuture<SignedMessage> first = pipeline.submit(message(signer));
+            final CompletableFuture<SignedMessage> second = pipeline.submit(message(signer));
+
+            final AtomicReference<CompletableFuture<SignedMessage>> third = new AtomicReference<CompletableFuture<SignedMessage>>();
+            final Thread producer = new Thread(() -> {
+                try {
+                    third.set(pipeline.submit(message(signer)));
+                } catch (Exception e) {
+                    third.set(failed(e));
+                }
+            });
+            producer.start();
+
+            // the producer blocks on the semaphore while both slots are taken
+            awaitState(producer, Thread.State.WAITING);
+            assertNull(third.get());
+            assertFalse(first.isDone());
+            assertFalse(second.isDone());
+
+            executor.open();
+            producer.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(producer.isAlive());
+            for (CompletableFuture<SignedMessage> result : Arrays.asList(first, second, third.get())) {
+                assertTrue(result.get(5, TimeUnit.SECONDS).getSignatureHeaderLine().startsWith("DKIM-Signature:"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void trySubmitGivesUpWhenFull() throws Exception {
+
+        final GatedExecutor executor = new GatedExecutor();
+        try (DkimSigningPipeline pipeline = new DkimSigningPipeline(executor, 1)) {
+            final CompletableFuture<SignedMessage> first = pipeline.submit(message(signer));
+
+            assertNull(pipeline.trySubmit(message(signer), 50, TimeUnit.MILLISECONDS));
+            assertEquals(executor.getQueue().size() + executor.getActiveCount(), 1);
+
+            executor.open();
+            first.get(5, TimeUnit.SECONDS);
+            final CompletableFuture<SignedMessage> second = pipeline.trySubmit(message(signer), 5, TimeUnit.SECONDS);
+            assertNotNull(second);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedSigningFreesItsSlot() throws Exception {
+
+        final GatedExecutor executor = new GatedExecutor();
+        executor.open();
+        try (DkimSigningPipeline pipeline = new DkimSigningPipeline(executor, 1)) {
+            // the identity has to be in example.com
+            final SmtpDkimMessage message = message(signer);
+            message.setSignOptions(DkimSignOptions.withIdentity("user@example.org"));
+            final CompletableFuture<SignedMessage> failed = pipeline.submit(message);
+            try {
+                failed.get(5, TimeUnit.SECONDS);
+                fail("An identity outside the signing domain was accepted");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof MessagingException, String.valueOf(expected.getCause()));
+            }
+
+            final CompletableFuture<SignedMessage> next = pipeline.trySubmit(message(signer), 5, TimeUnit.SECONDS);
+            assertNotNull(next);
+            next.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeLeavesTheExecutorOfTheCallerRunning() throws Exception {
+
+        final GatedExecutor executor = new GatedExecutor();
+        executor.open();
+        try {
+            final DkimSigningPipeline pipeline = new DkimSigningPipeline(executor, 1);
+            pipeline.close();
+            assertFalse(executor.isShutdown());
+            pipeline.submit(message(signer)).get(5, TimeUnit.SECONDS);
+
+            // once the caller shuts it down, messages are rejected without keeping their only slot
+            executor.shutdown();
+            for (int i = 0; i < 2; i++) {
+                final CompletableFuture<SignedMessage> rejected = pipeline.trySubmit(message(signer), 5, TimeUnit.SECONDS);
+                assertNotNull(rejected);
+                assertRejected(rejected);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeShutsDownItsOwnExecutorAfterTheSignaturesInFlight() throws Exception {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final DkimSigner gatedSigner = new DkimSigner(signer.getConfig().toBuilder()
+                .metrics(new DkimMetrics() {
+                    @Override
+                    public void headerCanonicalized(Canonicalization canonicalization, long nanos) {
+                        try {
+                            gate.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                })
+                .build());
+
+        final DkimSigningPipeline pipeline = new DkimSigningPipeline(1, 2);
+        final CompletableFuture<SignedMessage> inFlight = pipeline.submit(message(gatedSigner));
+        pipeline.close();
+
+        assertRejected(pipeline.submit(message(signer)));
+        assertFalse(inFlight.isDone());
+
+        gate.countDown();
+        assertTrue(inFlight.get(5, TimeUnit.SECONDS).getSignatureHeaderLine().startsWith("DKIM-Signature:"));
+    }
+
+    private SmtpDkimMessage message(DkimSigner signer) throws MessagingException {
+
+        final SmtpDkimMessage message = new SmtpDkimMessage(session, signer);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("rcpt@example.org"));
+        message.setSubject("pipeline test");
+        message.setText("a body\r\n", "us-ascii");
+        return message;
+    }
+
+    private static void assertRejected(CompletableFuture<SignedMessage> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("A message was signed after shutdown");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException, String.valueOf(expected.getCause()));
+        }
+    }
+
+    private static CompletableFuture<SignedMessage> failed(Throwable t) {
+        final CompletableFuture<SignedMessage> result = new CompletableFuture<SignedMessage>();
+        result.completeExceptionally(t);
+        return result;
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != state) {
+            if (System.nanoTime() - deadline > 0) {
+                fail(thread + " is " + thread.getState() + ", not " + state);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // a single thread that starts no task before open() is called
+    private static final class GatedExecutor extends ThreadPoolExecutor {
+
+        private final CountDownLatch gate = new CountDownLatch(1);
+
+        GatedExecutor() {
+            super(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                t.interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package com.github.darkwrat.dkim;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/*
+ * Verifies messages signed with the test key in keys/ against its public key record.
+ */
+
+public class DkimVerifierTest {
+
+    private static final String MESSAGE = "From: sender@example.com\r\n"
+            + "To: rcpt@example.org\r\n"
+            + "Subject: verifier  test\r\n"
+            + "Date: Sat, 17 Oct 2026 10:00:00 +0000\r\n"
+            + "Message-ID: <verifier-test@example.com>\r\n"
+            + "\r\n"
+            + "Hello,  \r\n"
+            + "\r\n"
+            + "this is the body.\r\n";
+
+    private PrivateKey key;
+    private TxtRecordLookup lookup;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        key = PrivateKeyReader.read(Paths.get("keys/private.key.der"));
+
+        final String publicKey = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        final Map<String, List<String>> records = new HashMap<String, List<String>>();
+        records.put("default._domainkey.example.com", Collections.singletonList("v=DKIM1; k=rsa; p=" + publicKey));
+        lookup = TxtRecordLookup.of(records);
+    }
+
+    @Test
+    public void passesForEachCanonicalization() throws Exception {
+
+        for (Canonicalization header : new Canonicalization[]{Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+            for (Canonicalization body : new Canonicalization[]{Canonicalization.SIMPLE, Canonicalization.RELAXED}) {
+                final DkimSigner signer = signer(config().headerCanonicalization(header).bodyCanonicalization(body));
+
+                final List<DkimVerificationResult> results = verifier().verify(signed(MESSAGE, signer));
+
+                assertEquals(results.size(), 1);
+                assertEquals(results.get(0).getStatus(), DkimVerificationResult.Status.PASS, header + "/" + body + ": " + results.get(0));
+                assertEquals(results.get(0).getDomain(), "example.com");
+                assertEquals(results.get(0).getSelector(), "default");
+            }
+        }
+    }
+
+    @Test
+    public void failsOnBodyHashMismatch() throws Exception {
+
+        final String message = new String(signed(MESSAGE, signer(config())), StandardCharsets.ISO_8859_1)
+                .replace("this is the body.", "this is another body.");
+
+        final DkimVerificationResult result = verifier().verify(bytes(message)).get(0);
+
+        assertEquals(result.getStatus(), DkimVerificationResult.Status.FAIL);
+        assertEquals(result.getReason(), "body hash did not verify");
+    }
+
+    @Test
+    public void failsOnTamperedSignedHeader() throws Exception {
+
+        final String message = new String(signed(MESSAGE, signer(config())), StandardCharsets.ISO_8859_1)
+                .replace("Subject: verifier  test", "Subject: verifier  tests");
+
+        final DkimVerificationResult result = verifier().verify(bytes(message)).get(0);
+
+        assertEquals(result.getStatus(), DkimVerificationResult.Status.FAIL);
+        assertEquals(result.getReason(), "signature did not verify");
+    }
+
+    @Test
+    public void lengthTagCoversOnlyTheSignedBody() throws Exception {
+
+        final String appended = "appended by a mailing list\r\n";
+
+        final String withLength = new String(signed(MESSAGE, signer(config().lengthParam(true))), StandardCharsets.ISO_8859_1);
+        final DkimVerificationResult result = verifier().verify(bytes(withLength + appended)).get(0);
+        assertEquals(result.getStatus(), DkimVerificationResult.Status.PASS, String.valueOf(result));
+        assertTrue(result.getTags().containsKey("l"));
+
+        final String withoutLength = new String(signed(MESSAGE, signer(config())), StandardCharsets.ISO_8859_1);
+        assertEquals(verifier().verify(bytes(withoutLength + appended)).get(0).getStatus(), DkimVerificationResult.Status.FAIL);
+    }
+
+    @Test
+    public void oversignedHeaderCannotBeAdded() throws Exception {
+
+        final String message = new String(signed(MESSAGE, signer(config().oversignHeaders("Subject"))), StandardCharsets.ISO_8859_1);
+        assertEquals(verifier().verify(bytes(message)).get(0).getStatus(), DkimVerificationResult.Status.PASS);
+
+        // a second Subject field is covered by the empty instance the signature claims
+        final int bodyStart = message.indexOf("\r\n\r\n") + 2;
+        final String added = message.substring(0, bodyStart) + "Subject: added later\r\n" + message.substring(bodyStart);
+        final DkimVerificationResult result = verifier().verify(bytes(added)).get(0);
+
+        assertEquals(result.getStatus(), DkimVerificationResult.Status.FAIL);
+    }
+
+    @Test
+    public void oversignedHeadersAreListedOnceMore() throws Exception {
+
+        // two To fields, no Reply-To
+        final String message = "To: second@example.org\r\n" + MESSAGE;
+        final DkimSigner signer = signer(config().oversignHeaders("From", "To", "Reply-To"));
+
+        final DkimVerificationResult result = verifier().verify(signed(message, signer)).get(0);
+
+        assertEquals(result.getStatus(), DkimVerificationResult.Status.PASS, String.valueOf(result));
+        final Map<String, Integer> listed = new HashMap<String, Integer>();
+        for (String name : result.getTags().get("h").split(":")) {
+            listed.merge(name.trim().toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+        assertEquals(listed.get("from"), Integer.valueOf(2));
+        assertEquals(listed.get("to"), Integer.valueOf(3));
+        assertEquals(listed.get("reply-to"), Integer.valueOf(1));
+        // not oversigned
+        assertEquals(listed.get("subject"), Integer.valueOf(1));
+    }
+
+    @Test
+    public void rejectsSha1UnlessAccepted() throws Exception {
+
+        final byte[] message = signed(MESSAGE, signer(config().signingAlgorithm(SigningAlgorithm.SHA1withRSA)));
+
+        final DkimVerificationResult rejected = verifier().verify(message).get(0);
+        assertEquals(rejected.getStatus(), DkimVerificationResult.Status.PERMERROR);
+        assertEquals(rejected.getAlgorithm(), "rsa-sha1");
+
+        final DkimVerifier accepting = DkimVerifier.builder(lookup).minimumKeyBits(512).acceptSha1(true).build();
+        assertEquals(accepting.verify(message).get(0).getStatus(), DkimVerificationResult.Status.PASS);
+    }
+
+    @Test
+    public void rejectsShortKeysByDefault() throws Exception {
+
+        final DkimVerificationResult result = new DkimVerifier(lookup).verify(signed(MESSAGE, signer(config()))).get(0);
+
+        assertEquals(result.getStatus(), DkimVerificationResult.Status.PERMERROR);
+    }
+
+    @Test
+    public void allPolicyVerifiesEverySignature() throws Exception {
+
+        final byte[] message = signed(MESSAGE, unknownSelector(), signer(config()));
+
+        final List<DkimVerificationResult> results = verifier(DkimVerifier.Policy.ALL).verify(message);
+
+        assertEquals(results.size(), 2);
+        assertEquals(results.get(0).getStatus(), DkimVerificationResult.Status.PERMERROR);
+        assertEquals(results.get(0).getSelector(), "unknown");
+        assertEquals(results.get(1).getStatus(), DkimVerificationResult.Status.PASS);
+    }
+
+    @Test
+    public void firstPassPolicyStopsAtPassingSignature() throws Exception {
+
+        final List<DkimVerificationResult> results = verifier(DkimVerifier.Policy.FIRST_PASS)
+                .verify(signed(MESSAGE, signer(config()), unknownSelector()));
+
+        assertEquals(results.size(), 1);
+        assertTrue(results.get(0).isPass());
+    }
+
+    @Test
+    public void allRequiredPolicyStopsAtFailingSignature() throws Exception {
+
+        final List<DkimVerificationResult> results = verifier(DkimVerifier.Policy.ALL_REQUIRED)
+                .verify(signed(MESSAGE, unknownSelector(), signer(config())));
+
+        assertEquals(results.size(), 1);
+        assertFalse(results.get(0).isPass());
+        assertEquals(results.get(0).getSelector(), "unknown");
+
+        final List<DkimVerificationResult> passing = verifier(DkimVerifier.Policy.ALL_REQUIRED)
+                .verify(signed(MESSAGE, signer(config()), signer(config().headerCanonicalization(Canonicalization.SIMPLE))));
+        assertEquals(passing.size(), 2);
+        assertTrue(passing.get(0).isPass() && passing.get(1).isPass());
+    }
+
+    @Test
+    public void unsignedMessageHasNoResults() {
+        assertTrue(verifier().verify(bytes(MESSAGE)).isEmpty());
+    }
+
+    private DkimSignerConfig.Builder config() {
+        return DkimSignerConfig.builder("example.com", "default", key);
+    }
+
+    private static DkimSigner signer(DkimSignerConfig.Builder config) throws DkimSignerException {
+        return new DkimSigner(config.build());
+    }
+
+    private DkimSigner unknownSelector() throws DkimSignerException {
+        return new DkimSigner(DkimSignerConfig.builder("example.com", "unknown", key).build());
+    }
+
+    private DkimVerifier verifier() {
+        return verifier(DkimVerifier.Policy.ALL);
+    }
+
+    // the test key has only 512 bits
+    private DkimVerifier verifier(DkimVerifier.Policy policy) {
+        return DkimVerifier.builder(lookup).minimumKeyBits(512).policy(policy).build();
+    }
+
+    // the signature of the first signer ends up on top
+    private static byte[] signed(String message, DkimSigner... signers) throws DkimSignerException {
+
+        final StringBuilder signatures = new StringBuilder();
+        for (DkimSigner signer : signers) {
+            signatures.append(signer.sign(bytes(message))).append("\r\n");
+        }
+        return bytes(signatures + message);
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.github.darkwrat.dkim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/*
+ * Folds long tag values of each kind behind the usual leading tags of a DKIM-Signature.
+ */
+
+public class HeaderFolderTest {
+
+    private static final String FOLD = "\r\n\t";
+
+    @DataProvider
+    public Object[][] values() {
+
+        final StringBuilder names = new StringBuilder();
+        for (String name : Arrays.asList("From", "To", "Cc", "Subject", "Date", "Message-ID", "Reply-To", "In-Reply-To",
+                "References", "MIME-Version", "Content-Type", "Content-Transfer-Encoding", "List-Id", "List-Unsubscribe")) {
+            names.append(names.length() == 0 ? "" : ":").append(name);
+        }
+
+        final byte[] signature = new byte[256];
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = (byte) (i * 31);
+        }
+
+        final String copies = "From:Sender=20Name=20<sender@example.com>"
+                + "|To:recipient-with-a-long-name@example.org,=20another.recipient@example.org"
+                + "|Subject:A=20subject=20long=20enough=20to=20be=20broken=20within=20its=20value=20somewhere=20in=20the=20middle"
+                + "|Date:Sat,=2017=20Oct=202026=2010:00:00=20+0000";
+
+        return new Object[][]{
+                {"d", "example.com", HeaderFolder.Folding.NONE},
+                {"h", names.toString(), HeaderFolder.Folding.HEADER_NAMES},
+                {"z", copies, HeaderFolder.Folding.HEADER_COPIES},
+                {"b", DkimUtil.base64Encode(signature), HeaderFolder.Folding.BASE64},
+        };
+    }
+
+    @Test(dataProvider = "values")
+    public void foldsWithinLineLength(String name, String value, HeaderFolder.Folding folding) throws Exception {
+
+        final String field = fold(name, value, folding);
+
+        for (String line : field.split("\r\n")) {
+            assertTrue(line.length() <= HeaderFolder.MAX_LINE_LENGTH, folding + ": " + line);
+        }
+    }
+
+    @Test(dataProvider = "values")
+    public void unfoldsToTheSameTags(String name, String value, HeaderFolder.Folding folding) throws Exception {
+
+        final String field = fold(name, value, folding);
+
+        // between tags a fold takes the place of the space, within a value it is inserted
+        assertEquals(field.replace(FOLD, " ").replace(" ", ""),
+                "DKIM-Signature:v=1;a=rsa-sha256;c=relaxed/relaxed;s=default;t=1792317600;" + name + "=" + value + ";");
+        final int tagStart = field.indexOf(name + '=', field.indexOf("t=1792317600;"));
+        final String folded = field.substring(tagStart + name.length() + 1, field.length() - 1);
+        for (int i : foldPositions(folded)) {
+            assertTrue(folding.isBreak(value, i), folding + " broken at " + i + " in " + value);
+        }
+    }
+
+    @Test
+    public void unbreakableValueRunsOnItsOwnLine() throws Exception {
+
+        final char[] longDomain = new char[90];
+        Arrays.fill(longDomain, 'x');
+        final String value = new String(longDomain) + ".example";
+
+        final String field = fold("d", value, HeaderFolder.Folding.NONE);
+
+        // a line of its own for the value, the fold after the = is folding whitespace as well
+        assertTrue(field.endsWith(FOLD + value + ";"), field);
+    }
+
+    private static String fold(String name, String value, HeaderFolder.Folding folding) throws Exception {
+
+        final ByteBuilder out = new ByteBuilder(1024);
+        final HeaderFolder folder = new HeaderFolder(out);
+        folder.start("DKIM-Signature");
+        folder.tag("v", "1", HeaderFolder.Folding.NONE);
+        folder.tag("a", "rsa-sha256", HeaderFolder.Folding.NONE);
+        folder.tag("c", "relaxed/relaxed", HeaderFolder.Folding.NONE);
+        folder.tag("s", "default", HeaderFolder.Folding.NONE);
+        folder.tag("t", "1792317600", HeaderFolder.Folding.NONE);
+        folder.tag(name, value, folding);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    // the positions in the unfolded value in front of which a fold was inserted
+    private static List<Integer> foldPositions(String folded) {
+
+        final List<Integer> positions = new ArrayList<Integer>();
+        int index = 0;
+        for (int i = 0; i < folded.length(); i++) {
+            if (folded.startsWith(FOLD, i)) {
+                positions.add(index);
+                i += FOLD.length() - 1;
+            } else {
+                index++;
+            }
+        }
+        return positions;
+    }
+
+}
@@ -42,12 +42,14 @@ public class MultipleMailExample {
 
             /* set an address or user-id of the user on behalf this message was signed;
              * this identity is up to you, except the domain part must be the signing domain
-             * or a subdomain of the signing domain.
+             * or a subdomain of the signing domain. The options only apply to this message,
+             * so the same signer can be used by several threads at once.
              */
-            dkimSigner.setIdentity("multipleexample" + i + '@' + testProps.getProperty("mail.smtp.dkim.signingdomain"));
+            final DkimSignOptions signOptions = DkimSignOptions.withIdentity(
+                    "multipleexample" + i + '@' + testProps.getProperty("mail.smtp.dkim.signingdomain"));
 
             // construct the JavaMail message using the DKIM message type from DKIM for JavaMail
-            final Message msg = new SmtpDkimMessage(session, dkimSigner);
+            final Message msg = new SmtpDkimMessage(session, dkimSigner, signOptions);
 
             ///////// end of DKIM FOR JAVAMAIL stuff
 
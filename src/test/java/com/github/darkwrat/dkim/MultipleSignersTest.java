@@ -0,0 +1,242 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/*
+ * Several signatures on one message, made from one encoding of its body and one body hash
+ * for each body canonicalization and hash algorithm.
+ */
+
+public class MultipleSignersTest {
+
+    private final Session session = Session.getInstance(new Properties());
+    private final RecordingMetrics metrics = new RecordingMetrics();
+    private DkimSigner rsaWithLength;
+    private DkimSigner rsa;
+    private DkimSigner ed25519;
+    private DkimVerifier verifier;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        final PrivateKey rsaKey = PrivateKeyReader.read(Paths.get("keys/private.key.der"));
+        final KeyPair ed25519Keys = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+
+        rsaWithLength = new DkimSigner(DkimSignerConfig.builder("example.com", "default", rsaKey)
+                .headerCanonicalization(Canonicalization.SIMPLE)
+                .bodyCanonicalization(Canonicalization.SIMPLE)
+                .lengthParam(true)
+                .metrics(metrics)
+                .build());
+        rsa = new DkimSigner(DkimSignerConfig.builder("example.com", "other", rsaKey)
+                .headerCanonicalization(Canonicalization.SIMPLE)
+                .bodyCanonicalization(Canonicalization.SIMPLE)
+                .metrics(metrics)
+                .build());
+        ed25519 = new DkimSigner(DkimSignerConfig.builder("example.com", "ed", ed25519Keys.getPrivate())
+                .headerCanonicalization(Canonicalization.RELAXED)
+                .bodyCanonicalization(Canonicalization.RELAXED)
+                .metrics(metrics)
+                .build());
+
+        final String rsaPublicKey = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        // the raw key makes up the last 32 bytes of its X.509 encoding
+        final byte[] x509 = ed25519Keys.getPublic().getEncoded();
+        final String ed25519PublicKey = Base64.getEncoder().encodeToString(Arrays.copyOfRange(x509, x509.length - 32, x509.length));
+
+        final Map<String, List<String>> records = new HashMap<String, List<String>>();
+        records.put("default._domainkey.example.com", Collections.singletonList("v=DKIM1; k=rsa; p=" + rsaPublicKey));
+        records.put("other._domainkey.example.com", Collections.singletonList("v=DKIM1; k=rsa; p=" + rsaPublicKey));
+        records.put("ed._domainkey.example.com", Collections.singletonList("v=DKIM1; k=ed25519; p=" + ed25519PublicKey));
+        // the test RSA key has only 512 bits
+        verifier = DkimVerifier.builder(TxtRecordLookup.of(records)).minimumKeyBits(512).build();
+    }
+
+    @Test
+    public void signersShareOneEncodingAndOneHashPerCanonicalization() throws Exception {
+
+        final SmtpDkimMessage message = message(rsaWithLength);
+        message.addSigner(rsa);
+        message.addSigner(ed25519);
+        message.setText("a  body \r\n\r\n", "us-ascii");
+
+        metrics.clear();
+        final String written = write(message);
+
+        assertEquals(metrics.count("bodyEncoded"), 1);
+        // the two simple signers share their body hash, with and without l=
+        assertEquals(metrics.count("bodyHashed simple"), 1);
+        assertEquals(metrics.count("bodyHashed relaxed"), 1);
+        assertEquals(metrics.count("signed"), 3);
+
+        final List<DkimVerificationResult> results = verifier.verify(bytes(written));
+        assertEquals(results.size(), 3);
+        assertSignature(results.get(0), "default", "simple/simple", "rsa-sha256", true);
+        assertSignature(results.get(1), "other", "simple/simple", "rsa-sha256", false);
+        assertSignature(results.get(2), "ed", "relaxed/relaxed", "ed25519-sha256", false);
+
+        // only the signature with l= survives text appended to the body
+        final List<DkimVerificationResult> appended = verifier.verify(bytes(written + "appended\r\n"));
+        assertTrue(appended.get(0).isPass(), String.valueOf(appended.get(0)));
+        assertEquals(appended.get(1).getStatus(), DkimVerificationResult.Status.FAIL);
+        assertEquals(appended.get(2).getStatus(), DkimVerificationResult.Status.FAIL);
+    }
+
+    @Test
+    public void batchesShareOnePreparedBody() throws Exception {
+
+        // a multipart body, hashed for both canonicalizations while its parts are encoded
+        final SmtpDkimMessage template = message(rsaWithLength);
+        template.addSigner(ed25519);
+        final MimeBodyPart text = new MimeBodyPart();
+        text.setText("a  body \r\n", "us-ascii");
+        final MimeBodyPart attachment = new MimeBodyPart();
+        final byte[] data = new byte[3000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+        attachment.setFileName("data.bin");
+        template.setContent(new MimeMultipart(text, attachment));
+
+        metrics.clear();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (PreparedBody body = template.prepareBody()) {
+            assertEquals(metrics.count("bodyEncoded"), 1);
+            assertEquals(metrics.count("bodyHashed simple"), 1);
+            assertEquals(metrics.count("bodyHashed relaxed"), 1);
+
+            final List<SmtpDkimMessage> rsaBatch = batch(rsaWithLength);
+            final List<SmtpDkimMessage> ed25519Batch = batch(ed25519);
+            rsaWithLength.signBatch(rsaBatch, body, executor);
+            ed25519.signBatch(ed25519Batch, body, executor);
+
+            // signed from the hashes made during the encoding
+            assertEquals(metrics.count("bodyEncoded"), 1);
+            assertEquals(metrics.count("bodyHashed simple"), 1);
+            assertEquals(metrics.count("bodyHashed relaxed"), 1);
+            assertEquals(metrics.count("signed"), rsaBatch.size() + ed25519Batch.size());
+
+            final String encodedBody = new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+            final List<SmtpDkimMessage> messages = new ArrayList<SmtpDkimMessage>(rsaBatch);
+            messages.addAll(ed25519Batch);
+            for (SmtpDkimMessage message : messages) {
+                final String written = write(message);
+                assertTrue(written.endsWith("\r\n\r\n" + encodedBody));
+
+                final List<DkimVerificationResult> results = verifier.verify(bytes(written));
+                assertEquals(results.size(), 1);
+                assertTrue(results.get(0).isPass(), String.valueOf(results.get(0)));
+                assertEquals(results.get(0).getTags().containsKey("l"), message.getSigner() == rsaWithLength);
+            }
+            assertEquals(metrics.count("bodyEncoded"), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<SmtpDkimMessage> batch(DkimSigner signer) throws Exception {
+
+        final List<SmtpDkimMessage> batch = new ArrayList<SmtpDkimMessage>();
+        for (int i = 0; i < 3; i++) {
+            final SmtpDkimMessage message = message(signer);
+            message.setRecipient(Message.RecipientType.TO, new InternetAddress("rcpt" + i + "@example.org"));
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    private SmtpDkimMessage message(DkimSigner signer) throws Exception {
+
+        final SmtpDkimMessage message = new SmtpDkimMessage(session, signer);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("rcpt@example.org"));
+        message.setSubject("multiple signers test");
+        return message;
+    }
+
+    private static void assertSignature(DkimVerificationResult result, String selector, String canonicalization,
+                                        String algorithm, boolean length) {
+
+        assertTrue(result.isPass(), String.valueOf(result));
+        final Map<String, String> tags = result.getTags();
+        assertEquals(tags.get("s"), selector);
+        assertEquals(tags.get("c"), canonicalization);
+        assertEquals(tags.get("a"), algorithm);
+        assertEquals(tags.containsKey("l"), length, String.valueOf(tags));
+    }
+
+    private static String write(SmtpDkimMessage message) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // the steps reported by all signers, by name and canonicalization
+    private static final class RecordingMetrics implements DkimMetrics {
+
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void bodyHashed(Canonicalization canonicalization, long bodyBytes, long hashedBytes, long nanos) {
+            events.add("bodyHashed " + canonicalization.getType());
+        }
+
+        @Override
+        public void bodyEncoded(long bytes, long nanos) {
+            events.add("bodyEncoded");
+        }
+
+        @Override
+        public void signed(SigningAlgorithm algorithm, long nanos) {
+            events.add("signed");
+        }
+
+        int count(String event) {
+            synchronized (events) {
+                return (int) events.stream().filter(event::equals).count();
+            }
+        }
+
+        void clear() {
+            events.clear();
+        }
+    }
+
+}
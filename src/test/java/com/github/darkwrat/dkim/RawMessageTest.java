@@ -0,0 +1,291 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/*
+ * Signing a message as it is, from bytes, buffers, streams and files, has to give the
+ * signature SmtpDkimMessage puts on top of the same message. Only t= and b= may differ, when
+ * a second passes between the two; the signature has to verify all the same.
+ */
+
+public class RawMessageTest {
+
+    private static final String MESSAGE = "From: sender@example.com\r\n"
+            + "To: rcpt@example.org,\r\n"
+            + "\tother@example.org\r\n"
+            + "Subject: a subject folded\r\n"
+            + " over  two lines \r\n"
+            + "Date: Sat, 17 Oct 2026 10:00:00 +0000\r\n"
+            + "Message-ID: <raw@example.com>\r\n"
+            + "MIME-Version: 1.0\r\n"
+            + "Content-Type: text/plain; charset=us-ascii\r\n"
+            + "Content-Transfer-Encoding: 7bit\r\n"
+            + "\r\n"
+            + "a  body \r\n"
+            + "\r\n"
+            + "with trailing lines\r\n"
+            + "\r\n"
+            + "\r\n";
+
+    private final Session session = Session.getInstance(new Properties());
+    private PrivateKey key;
+    private DkimVerifier verifier;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        key = PrivateKeyReader.read(Paths.get("keys/private.key.der"));
+
+        final String publicKey = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        // the test key has only 512 bits
+        verifier = DkimVerifier.builder(TxtRecordLookup.of(Collections.singletonMap("default._domainkey.example.com",
+                Collections.singletonList("v=DKIM1; k=rsa; p=" + publicKey)))).minimumKeyBits(512).build();
+    }
+
+    @DataProvider
+    public Object[][] canonicalizations() {
+        return new Object[][]{
+                {Canonicalization.SIMPLE},
+                {Canonicalization.RELAXED},
+        };
+    }
+
+    @Test
+    public void locatesTheFieldsWithTheirFolding() {
+
+        final RawMessage message = RawMessage.parse(bytes(MESSAGE));
+
+        assertEquals(message.size(), 8);
+        assertEquals(message.name(1), "To");
+        assertEquals(message.value(1), " rcpt@example.org,\r\n\tother@example.org");
+        assertEquals(message.value(2), " a subject folded\r\n over  two lines ");
+        assertEquals(message.bodyLength(), "a  body \r\n\r\nwith trailing lines\r\n\r\n\r\n".length());
+    }
+
+    @Test
+    public void bareLfHeaderIsCopiedWithCrlf() {
+
+        final RawMessage message = RawMessage.parse(bytes(MESSAGE.replace("\r\n", "\n")));
+
+        assertEquals(message.size(), 8);
+        assertEquals(message.value(2), " a subject folded\r\n over  two lines ");
+        // the body is left as it is
+        assertEquals(message.bodyLength(), "a  body \n\nwith trailing lines\n\n\n".length());
+    }
+
+    @Test(dataProvider = "canonicalizations")
+    public void bytesAndBuffersAreSignedLikeTheMimeMessage(Canonicalization canonicalization) throws Exception {
+
+        final DkimSigner signer = signer(canonicalization);
+        final String[] signed = signedBySmtpDkimMessage(signer, MESSAGE);
+        final byte[] message = bytes(signed[1]);
+
+        assertSignedLike(signer.sign(message), signed);
+
+        // an array backed buffer between other bytes
+        final ByteBuffer heap = ByteBuffer.wrap(surrounded(message), 3, message.length);
+        assertSignedLike(signer.sign(heap), signed);
+        assertEquals(heap.position(), 3);
+        assertEquals(heap.remaining(), message.length);
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(message.length + 6);
+        direct.put(surrounded(message));
+        direct.position(3).limit(3 + message.length);
+        assertSignedLike(signer.sign(direct), signed);
+        assertEquals(direct.position(), 3);
+        assertEquals(direct.remaining(), message.length);
+    }
+
+    @Test(dataProvider = "canonicalizations")
+    public void filesAreSignedLikeTheMimeMessage(Canonicalization canonicalization) throws Exception {
+
+        final DkimSigner signer = signer(canonicalization);
+        final String[] signed = signedBySmtpDkimMessage(signer, MESSAGE);
+        final byte[] message = bytes(signed[1]);
+
+        final Path file = Files.createTempFile("dkim-raw", ".eml");
+        try {
+            Files.write(file, surrounded(message));
+            // a region of a mapped file
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 3, message.length);
+                assertSignedLike(signer.sign(mapped), signed);
+            }
+
+            Files.write(file, message);
+            assertSignedLike(signer.sign(file), signed);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // every split of the message between two reads, CR and LF of the empty line included
+    @Test(dataProvider = "canonicalizations")
+    public void streamsAreSignedLikeTheMimeMessageWhereverTheReadsEnd(Canonicalization canonicalization) throws Exception {
+
+        final DkimSigner signer = signer(canonicalization);
+        final String[] signed = signedBySmtpDkimMessage(signer, MESSAGE);
+        final byte[] message = bytes(signed[1]);
+
+        for (int split = 1; split < message.length; split++) {
+            assertSignedLike(signer.sign(new SplitInputStream(message, split)), signed, "split at " + split);
+        }
+        assertSignedLike(signer.sign(new ChunkedInputStream(message, 1)), signed);
+        assertSignedLike(signer.sign(new ChunkedInputStream(message, 7)), signed);
+        assertSignedLike(signer.sign(new ByteArrayInputStream(message)), signed);
+    }
+
+    @Test(dataProvider = "canonicalizations")
+    public void bareLfHeaderIsSignedLikeTheMimeMessage(Canonicalization canonicalization) throws Exception {
+
+        final DkimSigner signer = signer(canonicalization);
+        final String[] signed = signedBySmtpDkimMessage(signer, MESSAGE);
+        final int bodyStart = signed[1].indexOf("\r\n\r\n") + 4;
+        final byte[] message = bytes(signed[1].substring(0, bodyStart).replace("\r\n", "\n") + signed[1].substring(bodyStart));
+
+        assertSignedLike(signer.sign(message), signed);
+        assertSignedLike(signer.sign(direct(message)), signed);
+        for (int split = 1; split < message.length; split++) {
+            assertSignedLike(signer.sign(new SplitInputStream(message, split)), signed, "split at " + split);
+        }
+    }
+
+    @Test(dataProvider = "canonicalizations")
+    public void messageWithoutBodyIsSignedLikeTheMimeMessage(Canonicalization canonicalization) throws Exception {
+
+        final DkimSigner signer = signer(canonicalization);
+        final String header = MESSAGE.substring(0, MESSAGE.indexOf("\r\n\r\n") + 4);
+        final String[] signed = signedBySmtpDkimMessage(signer, header);
+        final String written = signed[1];
+        assertEquals(written.substring(written.length() - 4), "\r\n\r\n");
+
+        // with the empty line ending the header, and without it
+        for (String message : new String[]{written, written.substring(0, written.length() - 2)}) {
+            final byte[] bytes = bytes(message);
+            assertSignedLike(signer.sign(bytes), signed);
+            assertSignedLike(signer.sign(direct(bytes)), signed);
+            for (int split = 1; split < bytes.length; split++) {
+                assertSignedLike(signer.sign(new SplitInputStream(bytes, split)), signed, "split at " + split);
+            }
+        }
+    }
+
+    private DkimSigner signer(Canonicalization canonicalization) throws Exception {
+        return new DkimSigner(DkimSignerConfig.builder("example.com", "default", key)
+                .headerCanonicalization(canonicalization)
+                .bodyCanonicalization(canonicalization)
+                .build());
+    }
+
+    // the signature SmtpDkimMessage writes on top of the message, and the message below it
+    private String[] signedBySmtpDkimMessage(DkimSigner signer, String message) throws Exception {
+
+        try (SmtpDkimMessage smtpDkimMessage = new SmtpDkimMessage(session, new ByteArrayInputStream(bytes(message)), signer)) {
+            final String signature = smtpDkimMessage.sign();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            smtpDkimMessage.writeTo(out);
+
+            final String written = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+            assertEquals(written.substring(0, signature.length() + 2), signature + "\r\n");
+            return new String[]{signature, written.substring(signature.length() + 2)};
+        }
+    }
+
+    private void assertSignedLike(String signature, String[] signed) throws Exception {
+        assertSignedLike(signature, signed, "");
+    }
+
+    private void assertSignedLike(String signature, String[] signed, String message) throws Exception {
+
+        final Map<String, String> tags = tags(signature);
+        final Map<String, String> expected = tags(signed[0]);
+        for (String tag : new String[]{"t", "b"}) {
+            tags.remove(tag);
+            expected.remove(tag);
+        }
+        assertEquals(tags, expected, message);
+
+        final DkimVerificationResult result = verifier.verify(bytes(signature + "\r\n" + signed[1])).get(0);
+        assertTrue(result.isPass(), message + " " + result);
+    }
+
+    private static Map<String, String> tags(String signature) throws DkimSignerException {
+        return new HashMap<String, String>(TagList.parse(signature.substring(signature.indexOf(':') + 1)));
+    }
+
+    private static byte[] surrounded(byte[] message) {
+        final byte[] bytes = new byte[message.length + 6];
+        System.arraycopy(message, 0, bytes, 3, message.length);
+        bytes[0] = bytes[message.length + 3] = '\n';
+        return bytes;
+    }
+
+    private static ByteBuffer direct(byte[] message) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(message.length);
+        buffer.put(message);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // the bytes up to split with the first read, the rest with the second
+    private static final class SplitInputStream extends ByteArrayInputStream {
+
+        private final int split;
+
+        SplitInputStream(byte[] bytes, int split) {
+            super(bytes);
+            this.split = split;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, pos < split ? Math.min(len, split - pos) : len);
+        }
+    }
+
+    // at most chunk bytes with each read
+    private static final class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int chunk;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.github.darkwrat.dkim;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/*
+ * ed25519-sha256 with the key and the signed message of RFC 8463 Appendix A.
+ */
+
+public class SigningAlgorithmTest {
+
+    // RFC 8463 A.2
+    private static final String PRIVATE_KEY = "nWGxne/9WmC6hEr0kuwsxERJxWl7MmkZcDusAxyuf2A=";
+    private static final String KEY_RECORD = "v=DKIM1; k=ed25519; p=11qYAYKxCrfVS/7TyWQHOg7hcvPapiMlrwIaaPcHURo=";
+
+    // RFC 8463 A.3, without its RSA signature
+    private static final String SIGNATURE = "DKIM-Signature: v=1; a=ed25519-sha256; c=relaxed/relaxed;\r\n"
+            + " d=football.example.com; i=@football.example.com;\r\n"
+            + " q=dns/txt; s=brisbane; t=1528637909; h=from : to :\r\n"
+            + " subject : date : message-id : from : subject : date;\r\n"
+            + " bh=2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=;\r\n"
+            + " b=/gCrinpcQOoIfuHNQIbq4pgh9kyIK3AQUdt9OdqQehSwhEIug4D11Bu\r\n"
+            + " sFa3bT3FY5OsU7ZbnKELq+eXdp1Q1Dw==\r\n";
+    private static final String MESSAGE = "From: Joe SixPack <joe@football.example.com>\r\n"
+            + "To: Suzie Q <suzie@shopping.example.net>\r\n"
+            + "Subject: Is dinner ready?\r\n"
+            + "Date: Fri, 11 Jul 2003 21:00:37 -0700 (PDT)\r\n"
+            + "Message-ID: <20030712040037.46341.5F8J@football.example.com>\r\n"
+            + "\r\n"
+            + "Hi.\r\n"
+            + "\r\n"
+            + "We lost the game.  Are you hungry yet?\r\n"
+            + "\r\n"
+            + "Joe.\r\n";
+
+    private final DkimVerifier verifier = new DkimVerifier(TxtRecordLookup.of(
+            Collections.singletonMap("brisbane._domainkey.football.example.com", Collections.singletonList(KEY_RECORD))));
+
+    @Test
+    public void verifiesTheRfcExample() {
+
+        final List<DkimVerificationResult> results = verifier.verify(bytes(SIGNATURE + MESSAGE));
+
+        assertEquals(results.get(0).getStatus(), DkimVerificationResult.Status.PASS, String.valueOf(results.get(0)));
+        assertEquals(results.get(0).getAlgorithm(), "ed25519-sha256");
+    }
+
+    @Test
+    public void signsTheRfcExample() throws Exception {
+
+        final PrivateKey key = rfcKey();
+        assertSame(SigningAlgorithm.forKey(key), SigningAlgorithm.ED25519SHA256);
+
+        final DkimSigner signer = new DkimSigner(DkimSignerConfig.builder("football.example.com", "brisbane", key)
+                .headerCanonicalization(Canonicalization.RELAXED)
+                .bodyCanonicalization(Canonicalization.RELAXED)
+                .build());
+        final String signature = signer.sign(bytes(MESSAGE));
+
+        assertTrue(signature.contains("a=ed25519-sha256;"), signature);
+        // same body hash as the example
+        assertTrue(signature.replaceAll("\\s", "").contains("bh=2jUSOH9NhtVGCQWNr9BrIAPreKQjO6Sn7XIkfJVOzv8=;"), signature);
+        assertEquals(verifier.verify(bytes(signature + "\r\n" + MESSAGE)).get(0).getStatus(), DkimVerificationResult.Status.PASS);
+
+        // and a modified header is caught
+        final String modified = MESSAGE.replace("Is dinner ready?", "Is lunch ready?");
+        assertEquals(verifier.verify(bytes(signature + "\r\n" + modified)).get(0).getStatus(), DkimVerificationResult.Status.FAIL);
+    }
+
+    @Test
+    public void decodesRawKeyRecord() throws Exception {
+
+        final DkimKeyRecord record = DkimKeyRecord.parse(KEY_RECORD);
+
+        assertEquals(record.getKeyType(), "ed25519");
+        assertTrue(SigningAlgorithm.isEd25519Key(record.getPublicKey()));
+    }
+
+    @Test
+    public void tellsEd448FromEd25519() throws Exception {
+
+        final PrivateKey ed25519 = KeyPairGenerator.getInstance("Ed25519").generateKeyPair().getPrivate();
+        final PrivateKey ed448 = KeyPairGenerator.getInstance("Ed448").generateKeyPair().getPrivate();
+
+        assertTrue(SigningAlgorithm.isEd25519Key(ed25519));
+        assertFalse(SigningAlgorithm.isEd25519Key(ed448));
+        assertTrue(SigningAlgorithm.isEd25519Key(rfcKey()));
+    }
+
+    @Test
+    public void rejectsEd448Keys() throws Exception {
+
+        final PrivateKey ed448 = KeyPairGenerator.getInstance("Ed448").generateKeyPair().getPrivate();
+
+        for (SigningAlgorithm algorithm : new SigningAlgorithm[]{null, SigningAlgorithm.ED25519SHA256}) {
+            final DkimSignerConfig.Builder config = DkimSignerConfig.builder("example.com", "default", ed448);
+            if (algorithm != null) {
+                config.signingAlgorithm(algorithm);
+            }
+            try {
+                config.build();
+                fail("An Ed448 key was accepted");
+            } catch (DkimSignerException expected) {
+                assertTrue(expected.getMessage().contains("Ed25519"), expected.getMessage());
+            }
+        }
+    }
+
+    // the 32 byte seed in a PKCS#8 structure (RFC 8410 7)
+    private static PrivateKey rfcKey() throws Exception {
+
+        final byte[] prefix = {0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x04, 0x22, 0x04, 0x20};
+        final byte[] seed = Base64.getDecoder().decode(PRIVATE_KEY);
+        final byte[] pkcs8 = new byte[prefix.length + seed.length];
+        System.arraycopy(prefix, 0, pkcs8, 0, prefix.length);
+        System.arraycopy(seed, 0, pkcs8, prefix.length, seed.length);
+        return KeyFactory.getInstance("Ed25519").generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,320 @@
+package com.github.darkwrat.dkim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Header;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/*
+ * Caching, spooling and header handling of the signed message.
+ */
+
+public class SmtpDkimMessageTest {
+
+    private static final int SPOOL_THRESHOLD = 1000;
+
+    private final Session session = Session.getInstance(new Properties());
+    private DkimSigner signer;
+    private DkimVerifier verifier;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+
+        signer = new DkimSigner(DkimSignerConfig.builder("example.com", "default", PrivateKeyReader.read(Paths.get("keys/private.key.der")))
+                .build());
+
+        final String publicKey = new String(Files.readAllBytes(Paths.get("keys/default.pub.pem")), StandardCharsets.US_ASCII)
+                .replaceAll("-----[^-]+-----", "")
+                .replaceAll("\\s", "");
+        verifier = DkimVerifier.builder(TxtRecordLookup.of(Collections.singletonMap("default._domainkey.example.com",
+                Collections.singletonList("v=DKIM1; k=rsa; p=" + publicKey)))).minimumKeyBits(512).build();
+    }
+
+    private interface HeaderChange {
+        void apply(SmtpDkimMessage message) throws MessagingException;
+    }
+
+    @Test
+    public void spoolFileIsDeletedOnClose() throws Exception {
+
+        final Path spoolDirectory = Files.createTempDirectory("dkim-spool");
+        try (SmtpDkimMessage message = message(spoolSession(spoolDirectory))) {
+            message.setText(text(10 * SPOOL_THRESHOLD));
+            message.writeTo(new ByteArrayOutputStream());
+
+            assertEquals(spoolFiles(spoolDirectory).length, 1);
+        }
+
+        assertEquals(spoolFiles(spoolDirectory).length, 0);
+        Files.delete(spoolDirectory);
+    }
+
+    @Test
+    public void spoolFileIsDeletedWhenEncodingFails() throws Exception {
+
+        final Path spoolDirectory = Files.createTempDirectory("dkim-spool");
+        final SmtpDkimMessage message = message(spoolSession(spoolDirectory));
+        // the content breaks off after it has been spooled
+        message.setDataHandler(new DataHandler(new FailingDataSource(10 * SPOOL_THRESHOLD)));
+        try {
+            message.writeTo(new ByteArrayOutputStream());
+            fail("The broken content was encoded");
+        } catch (MessagingException expected) {
+            assertTrue(expected.getCause() instanceof IOException, String.valueOf(expected.getCause()));
+        }
+
+        assertEquals(spoolFiles(spoolDirectory).length, 0);
+        Files.delete(spoolDirectory);
+    }
+
+    @Test
+    public void unchangedMessageIsWrittenFromTheCache() throws Exception {
+
+        final SmtpDkimMessage message = message(session);
+        message.setText("hello world");
+        final String first = write(message);
+        final PreparedBody body = message.getBody();
+        final String signature = message.sign();
+
+        assertEquals(write(message), first);
+        assertSame(message.getBody(), body);
+        assertSame(message.sign(), signature);
+    }
+
+    @DataProvider
+    public Object[][] headerChanges() {
+        return new Object[][]{
+                {"setHeader", (HeaderChange) message -> message.setHeader("Subject", "another subject")},
+                {"addHeader", (HeaderChange) message -> message.addHeader("Cc", "cc@example.org")},
+                {"removeHeader", (HeaderChange) message -> message.removeHeader("Reply-To")},
+                {"addHeaderLine", (HeaderChange) message -> message.addHeaderLine("Cc: cc@example.org")},
+        };
+    }
+
+    @Test(dataProvider = "headerChanges")
+    public void headerChangeSignsAgain(String name, HeaderChange change) throws Exception {
+
+        final SmtpDkimMessage message = message(session);
+        message.setReplyTo(InternetAddress.parse("reply@example.com"));
+        message.setText("hello world");
+        write(message);
+        final PreparedBody body = message.getBody();
+        final String signature = message.sign();
+
+        change.apply(message);
+        final String changed = write(message);
+
+        assertNotSame(message.sign(), signature, name);
+        // the body is not encoded again for a header outside Content-*
+        assertSame(message.getBody(), body, name);
+        assertTrue(verifier.verify(changed.getBytes(StandardCharsets.ISO_8859_1)).get(0).isPass(), name);
+    }
+
+    @Test
+    public void contentHeaderChangeEncodesAgain() throws Exception {
+
+        final SmtpDkimMessage message = message(session);
+        message.setText("hello world");
+        write(message);
+        final PreparedBody body = message.getBody();
+
+        message.setHeader("Content-Transfer-Encoding", "base64");
+        final String changed = write(message);
+
+        assertNotSame(message.getBody(), body);
+        assertTrue(changed.endsWith("\r\n\r\naGVsbG8gd29ybGQ="), changed);
+        assertTrue(verifier.verify(changed.getBytes(StandardCharsets.ISO_8859_1)).get(0).isPass());
+    }
+
+    @Test
+    public void contentChangeHashesTheBodyAgain() throws Exception {
+
+        final SmtpDkimMessage message = message(session);
+        message.setText("hello world");
+        final String first = write(message);
+
+        // setText() goes through setDataHandler()
+        message.setText("goodbye world");
+        final String changed = write(message);
+
+        assertTrue(changed.endsWith("\r\n\r\ngoodbye world"), changed);
+        assertNotEquals(bodyHash(changed), bodyHash(first));
+        assertTrue(verifier.verify(changed.getBytes(StandardCharsets.ISO_8859_1)).get(0).isPass());
+    }
+
+    @Test
+    public void saveChangesUpdatesHeadersAfterSetEncodedBody() throws Exception {
+
+        final SmtpDkimMessage plain = message(session);
+        plain.setText("hello world");
+        plain.saveChanges();
+
+        final SmtpDkimMessage encoded = message(session);
+        encoded.setText("hello world");
+        encoded.setEncodedBody("hello world");
+        encoded.saveChanges();
+
+        // the same headers as without the encoded body, including those of the content
+        assertEquals(headers(encoded), headers(plain));
+        assertEquals(encoded.getHeader("Content-Transfer-Encoding", null), "7bit");
+        assertTrue(write(encoded).endsWith("\r\n\r\nhello world"));
+    }
+
+    @Test
+    public void saveChangesKeepsTheSignedHeaders() throws Exception {
+
+        final SmtpDkimMessage message = message(session);
+        message.setText("hello world");
+        final String signed = write(message);
+        final String messageId = message.getMessageID();
+
+        message.saveChanges();
+
+        assertEquals(message.getMessageID(), messageId);
+        assertEquals(write(message), signed);
+
+        // until the message is changed
+        message.setSubject("another subject");
+        message.saveChanges();
+        assertTrue(!messageId.equals(message.getMessageID()));
+    }
+
+    private SmtpDkimMessage message(Session session) throws Exception {
+
+        final SmtpDkimMessage message = new SmtpDkimMessage(session, signer);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("rcpt@example.org"));
+        message.setSubject("message test");
+        return message;
+    }
+
+    private static String write(SmtpDkimMessage message) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    // name and value of each header field apart from the Message-ID, which is unique
+    private static List<String> headers(SmtpDkimMessage message) throws Exception {
+
+        final List<String> headers = new ArrayList<String>();
+        final Enumeration<?> all = message.getAllHeaders();
+        while (all.hasMoreElements()) {
+            final Header header = (Header) all.nextElement();
+            if (!header.getName().equalsIgnoreCase("Message-ID")) {
+                headers.add(header.getName() + ": " + header.getValue());
+            }
+        }
+        return headers;
+    }
+
+    private static String bodyHash(String message) throws Exception {
+        final String signature = message.substring(0, message.indexOf("\r\n", message.indexOf("bh=")));
+        return TagList.parse(signature.substring(signature.indexOf(':') + 1)).get("bh");
+    }
+
+    private static Session spoolSession(Path spoolDirectory) {
+
+        final Properties properties = new Properties();
+        properties.setProperty("mail.smtp.dkim.spoolthreshold", Integer.toString(SPOOL_THRESHOLD));
+        properties.setProperty("mail.smtp.dkim.spooldir", spoolDirectory.toString());
+        return Session.getInstance(properties);
+    }
+
+    private static File[] spoolFiles(Path spoolDirectory) {
+        return spoolDirectory.toFile().listFiles();
+    }
+
+    private static String text(int length) {
+
+        final StringBuilder text = new StringBuilder(length + 80);
+        while (text.length() < length) {
+            text.append("A line of the body, long enough to be spooled after a few of them.\r\n");
+        }
+        return text.toString();
+    }
+
+    // plain text which fails after the given number of bytes
+    private static final class FailingDataSource implements DataSource {
+
+        private final int length;
+
+        FailingDataSource(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+
+                private int read = 0;
+
+                @Override
+                public int read() throws IOException {
+                    if (read == length) {
+                        throw new IOException("broken content");
+                    }
+                    return read++ % 64 == 63 ? '\n' : 'a';
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (read == length) {
+                        throw new IOException("broken content");
+                    }
+                    final int n = Math.min(len, length - read);
+                    for (int i = 0; i < n; i++) {
+                        b[off + i] = (byte) read();
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "text/plain; charset=us-ascii";
+        }
+
+        @Override
+        public String getName() {
+            return "broken";
+        }
+
+    }
+
+}